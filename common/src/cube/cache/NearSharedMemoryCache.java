@@ -0,0 +1,329 @@
+/**
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2021 Shixin Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.cache;
+
+import cube.core.CacheKey;
+import cube.core.CacheTransaction;
+import cube.core.CacheValue;
+import cube.core.TransactionContext;
+import cube.report.MetricsSource;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 带本地近端缓存的 Shared Memory 缓存。
+ * 读取时先查询进程内的近端缓存，未命中再访问集群。近端缓存按照容量和存活时间淘汰，
+ * 容量满时淘汰最近最少使用的数据。本节点的 {@code put} 、 {@code remove} 和 {@code execute} 会同步更新近端缓存，
+ * 其他节点的修改在近端数据过期后可见，因此存活时间决定了最大的数据陈旧时长。
+ * 未命中时先在近端缓存里占位，只有占位在读取集群期间没有被本节点的修改替换或者移除时才写入读取的数据，
+ * 避免较慢的读取覆盖本节点更新的数据。
+ * 近端缓存返回的 {@link CacheValue} 在多次读取之间共享，调用者不应修改其内容。
+ */
+public class NearSharedMemoryCache extends SharedMemoryCache implements MetricsSource {
+
+    public final static String TYPE = "NSMC";
+
+    /**
+     * 近端缓存的分段数量。
+     */
+    private final static int SEGMENTS = 16;
+
+    /**
+     * 近端缓存的最大数据条目数。
+     */
+    private int nearCapacity = 10000;
+
+    /**
+     * 近端缓存数据的存活时间，单位：毫秒。
+     */
+    private long nearExpiry = 10L * 1000L;
+
+    private Segment[] segments;
+
+    private final AtomicLong hits = new AtomicLong(0);
+
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * 构造函数。
+     *
+     * @param name 缓存器名称。
+     */
+    public NearSharedMemoryCache(String name) {
+        super(name, TYPE);
+        this.segments = createSegments(this.nearCapacity);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void configure(JSONObject config) {
+        super.configure(config);
+
+        this.nearCapacity = config.optInt("nearCapacity", this.nearCapacity);
+        this.nearExpiry = config.optLong("nearExpiry", this.nearExpiry);
+        this.segments = createSegments(this.nearCapacity);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void stop() {
+        super.stop();
+
+        for (Segment segment : this.segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(CacheKey key, CacheValue value) {
+        super.put(key, value);
+        this.segment(key.get()).put(key.get(), value, System.currentTimeMillis() + this.nearExpiry);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CacheValue get(CacheKey key) {
+        String k = key.get();
+        Segment segment = this.segment(k);
+
+        CacheValue value = segment.get(k, System.currentTimeMillis());
+        if (null != value) {
+            this.hits.incrementAndGet();
+            return value;
+        }
+
+        this.misses.incrementAndGet();
+
+        NearEntry pending = segment.reserve(k, System.currentTimeMillis() + this.nearExpiry);
+
+        value = super.get(key);
+        if (null != value) {
+            segment.install(k, pending, value, System.currentTimeMillis() + this.nearExpiry);
+        }
+        else {
+            segment.release(k, pending);
+        }
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void remove(CacheKey key) {
+        this.segment(key.get()).remove(key.get());
+        super.remove(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void execute(final CacheKey key, final CacheTransaction transaction) {
+        // 事务可能修改数据，事务前后都使近端数据失效
+        final Segment segment = this.segment(key.get());
+        segment.remove(key.get());
+
+        super.execute(key, new CacheTransaction() {
+            @Override
+            public void perform(TransactionContext context) {
+                try {
+                    transaction.perform(context);
+                } finally {
+                    segment.remove(key.get());
+                }
+            }
+        });
+    }
+
+    /**
+     * 返回近端缓存命中次数。
+     *
+     * @return 返回近端缓存命中次数。
+     */
+    public long getNearHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * 返回近端缓存未命中次数。
+     *
+     * @return 返回近端缓存未命中次数。
+     */
+    public long getNearMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * 返回近端缓存当前的数据条目数。
+     *
+     * @return 返回近端缓存当前的数据条目数。
+     */
+    public int getNearSize() {
+        int size = 0;
+        for (Segment segment : this.segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getMetricsName() {
+        return this.getName();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public JSONObject getMetrics() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("nearHits", this.hits.get());
+            json.put("nearMisses", this.misses.get());
+            json.put("nearSize", this.getNearSize());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+
+    private Segment segment(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return this.segments[h & (SEGMENTS - 1)];
+    }
+
+    private static Segment[] createSegments(int capacity) {
+        Segment[] segments = new Segment[SEGMENTS];
+        int each = Math.max(1, capacity / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; ++i) {
+            segments[i] = new Segment(each);
+        }
+        return segments;
+    }
+
+    /**
+     * 近端缓存分段，按照访问顺序淘汰。
+     */
+    private static class Segment {
+
+        private final LinkedHashMap<String, NearEntry> map;
+
+        protected Segment(final int capacity) {
+            this.map = new LinkedHashMap<String, NearEntry>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, NearEntry> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        protected synchronized CacheValue get(String key, long now) {
+            NearEntry entry = this.map.get(key);
+            if (null == entry) {
+                return null;
+            }
+
+            if (entry.expireAt <= now) {
+                this.map.remove(key);
+                return null;
+            }
+
+            // 占位条目没有数据
+            return entry.value;
+        }
+
+        protected synchronized NearEntry reserve(String key, long expireAt) {
+            NearEntry pending = new NearEntry(null, expireAt);
+            this.map.put(key, pending);
+            return pending;
+        }
+
+        protected synchronized void install(String key, NearEntry pending, CacheValue value, long expireAt) {
+            // 占位已被替换或者移除时放弃写入
+            if (this.map.get(key) == pending) {
+                this.map.put(key, new NearEntry(value, expireAt));
+            }
+        }
+
+        protected synchronized void release(String key, NearEntry pending) {
+            if (this.map.get(key) == pending) {
+                this.map.remove(key);
+            }
+        }
+
+        protected synchronized void put(String key, CacheValue value, long expireAt) {
+            this.map.put(key, new NearEntry(value, expireAt));
+        }
+
+        protected synchronized void remove(String key) {
+            this.map.remove(key);
+        }
+
+        protected synchronized void clear() {
+            this.map.clear();
+        }
+
+        protected synchronized int size() {
+            return this.map.size();
+        }
+    }
+
+    /**
+     * 近端缓存数据条目，数据为 {@code null} 时表示正在从集群读取的占位条目。
+     */
+    private static class NearEntry {
+
+        protected final CacheValue value;
+
+        protected final long expireAt;
+
+        protected NearEntry(CacheValue value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+}
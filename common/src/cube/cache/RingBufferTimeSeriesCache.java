@@ -0,0 +1,378 @@
+/**
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2021 Shixin Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.cache;
+
+import cube.core.AbstractTimeSeriesCache;
+import cube.core.CacheKey;
+import cube.core.CacheValue;
+import cube.core.TimeSeriesHandler;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于环形缓冲的进程内时序缓存。
+ * 每个数据键对应一个环形缓冲，缓冲按需扩容到最大容量，满时覆盖最早的数据点，超过存活时间的数据点在写入时淘汰。
+ * 每写入一定次数清理一次所有数据键，数据点全部过期的缓冲被移除。
+ * 数据点按时间戳有序存放，范围查询使用二分查找定位起点。适用于单节点部署。
+ */
+public class RingBufferTimeSeriesCache extends AbstractTimeSeriesCache {
+
+    public final static String TYPE = "RBTSC";
+
+    /**
+     * 缓冲的初始容量。
+     */
+    private final static int INITIAL_CAPACITY = 16;
+
+    /**
+     * 每写入该次数清理一次过期的缓冲。
+     */
+    private final static int SWEEP_INTERVAL = 4096;
+
+    /**
+     * 每个数据键保存的最大数据点数量。
+     */
+    private int capacity = 1024;
+
+    /**
+     * 数据点存活时间，单位：毫秒。
+     */
+    private long expiry = 24L * 60L * 60L * 1000L;
+
+    private final ConcurrentHashMap<String, Series> seriesMap;
+
+    private final AtomicLong addCount = new AtomicLong(0);
+
+    /**
+     * 构造函数。
+     *
+     * @param name 缓存器名称。
+     */
+    public RingBufferTimeSeriesCache(String name) {
+        super(name, TYPE);
+        this.seriesMap = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void configure(JSONObject config) {
+        super.configure(config);
+
+        this.capacity = Math.max(1, config.optInt("capacity", this.capacity));
+        this.expiry = config.optLong("expiry", this.expiry);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void start() {
+        // Nothing
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void stop() {
+        this.seriesMap.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void add(CacheKey key, CacheValue value) {
+        long timestamp = value.getTimestamp();
+        this.add(key, value, (timestamp == 0) ? System.currentTimeMillis() : timestamp);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void add(CacheKey key, CacheValue value, long timestamp) {
+        long expireBefore = System.currentTimeMillis() - this.expiry;
+
+        while (true) {
+            Series series = this.seriesMap.get(key.get());
+            if (null == series) {
+                series = new Series(this.capacity);
+                Series current = this.seriesMap.putIfAbsent(key.get(), series);
+                if (null != current) {
+                    series = current;
+                }
+            }
+
+            if (series.add(timestamp, value.get(), expireBefore)) {
+                break;
+            }
+
+            // 缓冲已被移除，使用新的缓冲
+            this.seriesMap.remove(key.get(), series);
+        }
+
+        if (this.addCount.incrementAndGet() % SWEEP_INTERVAL == 0) {
+            this.sweep(expireBefore);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<CacheValue> query(CacheKey key, long beginningTime, long endingTime) {
+        final ArrayList<CacheValue> result = new ArrayList<>();
+        this.query(key, beginningTime, endingTime, new TimeSeriesHandler() {
+            @Override
+            public boolean handle(long timestamp, JSONObject value) {
+                result.add(new CacheValue(value, timestamp));
+                return true;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void query(CacheKey key, long beginningTime, long endingTime, TimeSeriesHandler handler) {
+        Series series = this.seriesMap.get(key.get());
+        if (null == series) {
+            return;
+        }
+
+        series.query(beginningTime, endingTime, handler);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void delete(CacheKey key, long timestamp) {
+        Series series = this.seriesMap.get(key.get());
+        if (null == series) {
+            return;
+        }
+
+        if (series.delete(timestamp)) {
+            this.seriesMap.remove(key.get(), series);
+        }
+    }
+
+    /**
+     * 返回指定时间范围内的数据点数量。
+     *
+     * @param key 数据键。
+     * @param beginningTime 起始时间戳。
+     * @param endingTime 截止时间戳。
+     * @return 返回数据点数量。
+     */
+    public int count(CacheKey key, long beginningTime, long endingTime) {
+        Series series = this.seriesMap.get(key.get());
+        if (null == series) {
+            return 0;
+        }
+
+        return series.count(beginningTime, endingTime);
+    }
+
+    /**
+     * 移除数据点全部过期的缓冲。
+     *
+     * @param expireBefore 过期时间戳。
+     */
+    private void sweep(long expireBefore) {
+        for (Map.Entry<String, Series> e : this.seriesMap.entrySet()) {
+            if (e.getValue().delete(expireBefore)) {
+                this.seriesMap.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * 单个数据键的环形缓冲。
+     */
+    private static class Series {
+
+        private final int capacity;
+
+        private long[] timestamps;
+
+        private JSONObject[] values;
+
+        /**
+         * 最早数据点的位置。
+         */
+        private int head = 0;
+
+        /**
+         * 数据点数量。
+         */
+        private int size = 0;
+
+        /**
+         * 缓冲已从缓存里移除，不再接受写入。
+         */
+        private boolean removed = false;
+
+        protected Series(int capacity) {
+            this.capacity = capacity;
+            int initial = Math.min(capacity, INITIAL_CAPACITY);
+            this.timestamps = new long[initial];
+            this.values = new JSONObject[initial];
+        }
+
+        /**
+         * 写入数据点。
+         *
+         * @return 缓冲已被移除时返回 {@code false} 。
+         */
+        protected synchronized boolean add(long timestamp, JSONObject value, long expireBefore) {
+            if (this.removed) {
+                return false;
+            }
+
+            // 淘汰过期数据点
+            while (this.size > 0 && this.timestamps[this.head] < expireBefore) {
+                this.removeFirst();
+            }
+
+            if (this.size == this.timestamps.length) {
+                if (this.timestamps.length < this.capacity) {
+                    this.grow();
+                }
+                else {
+                    // 缓冲已满，覆盖最早的数据点
+                    this.removeFirst();
+                }
+            }
+
+            // 找到插入位置，通常追加在末尾
+            int pos = this.size;
+            while (pos > 0 && this.timestamps[this.index(pos - 1)] > timestamp) {
+                int from = this.index(pos - 1);
+                int to = this.index(pos);
+                this.timestamps[to] = this.timestamps[from];
+                this.values[to] = this.values[from];
+                --pos;
+            }
+
+            int index = this.index(pos);
+            this.timestamps[index] = timestamp;
+            this.values[index] = value;
+            ++this.size;
+            return true;
+        }
+
+        protected synchronized void query(long beginningTime, long endingTime, TimeSeriesHandler handler) {
+            for (int i = this.lowerBound(beginningTime); i < this.size; ++i) {
+                int index = this.index(i);
+                long timestamp = this.timestamps[index];
+                if (timestamp > endingTime) {
+                    break;
+                }
+
+                if (!handler.handle(timestamp, this.values[index])) {
+                    break;
+                }
+            }
+        }
+
+        protected synchronized int count(long beginningTime, long endingTime) {
+            int end = (endingTime == Long.MAX_VALUE) ? this.size : this.lowerBound(endingTime + 1);
+            return Math.max(0, end - this.lowerBound(beginningTime));
+        }
+
+        /**
+         * 删除指定时间戳之前的数据点。缓冲为空时标记为已移除，之后的写入使用新的缓冲。
+         *
+         * @param timestamp 时间戳。
+         * @return 如果缓冲已空返回 {@code true} 。
+         */
+        protected synchronized boolean delete(long timestamp) {
+            while (this.size > 0 && this.timestamps[this.head] < timestamp) {
+                this.removeFirst();
+            }
+
+            if (this.size == 0) {
+                this.removed = true;
+            }
+            return this.removed;
+        }
+
+        private void grow() {
+            int length = Math.min(this.capacity, this.timestamps.length * 2);
+            long[] timestamps = new long[length];
+            JSONObject[] values = new JSONObject[length];
+            for (int i = 0; i < this.size; ++i) {
+                int index = this.index(i);
+                timestamps[i] = this.timestamps[index];
+                values[i] = this.values[index];
+            }
+            this.timestamps = timestamps;
+            this.values = values;
+            this.head = 0;
+        }
+
+        private void removeFirst() {
+            this.values[this.head] = null;
+            this.head = (this.head + 1) % this.timestamps.length;
+            --this.size;
+        }
+
+        private int index(int offset) {
+            return (this.head + offset) % this.timestamps.length;
+        }
+
+        /**
+         * 返回第一个时间戳不小于指定值的数据点偏移量。
+         */
+        private int lowerBound(long timestamp) {
+            int low = 0;
+            int high = this.size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (this.timestamps[this.index(mid)] < timestamp) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
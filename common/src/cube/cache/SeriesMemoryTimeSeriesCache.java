@@ -32,6 +32,7 @@ import cell.adapter.extra.timeseries.SeriesMemoryConfig;
 import cube.core.AbstractTimeSeriesCache;
 import cube.core.CacheKey;
 import cube.core.CacheValue;
+import cube.core.TimeSeriesHandler;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -136,6 +137,19 @@ public class SeriesMemoryTimeSeriesCache extends AbstractTimeSeriesCache {
         return result;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void query(CacheKey key, long beginningTime, long endingTime, TimeSeriesHandler handler) {
+        List<SeriesItem> list = this.memory.query(key.get(), beginningTime, endingTime);
+        for (SeriesItem item : list) {
+            if (!handler.handle(item.timestamp, item.data)) {
+                break;
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -53,6 +53,16 @@ public class SharedMemoryCache extends AbstractCache {
         super(name, TYPE);
     }
 
+    /**
+     * 构造函数。
+     *
+     * @param name 缓存器名称。
+     * @param type 缓存器类型。
+     */
+    protected SharedMemoryCache(String name, String type) {
+        super(name, type);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -71,11 +71,14 @@ public final class HierarchyNodes {
                 }
             }
 
-            // 查找子节点
+            // 批量查找子节点
             JSONArray childrenJson = data.getJSONArray("children");
+            List<CacheKey> keys = new ArrayList<>(childrenJson.length());
             for (int i = 0, len = childrenJson.length(); i < len; ++i) {
-                String uk = childrenJson.getString(i);
-                CacheValue childValue = cache.get(new CacheKey(uk));
+                keys.add(new CacheKey(childrenJson.getString(i)));
+            }
+
+            for (CacheValue childValue : cache.get(keys)) {
                 if (null != childValue) {
                     HierarchyNode child = new HierarchyNode(childValue.get());
                     node.addChild(child);
@@ -144,19 +147,20 @@ public final class HierarchyNodes {
      */
     public static List<HierarchyNode> traversalChildren(Cache cache, HierarchyNode node) {
         if (null != node.unloadChildrenKeys && !node.unloadChildrenKeys.isEmpty()) {
-            List<String> keys = new ArrayList<>(node.unloadChildrenKeys);
-            for (int i = 0; i < keys.size(); ++i) {
-                String key = keys.get(i);
+            List<CacheKey> keys = new ArrayList<>(node.unloadChildrenKeys.size());
+            for (String key : node.unloadChildrenKeys) {
+                keys.add(new CacheKey(key));
+            }
 
-                CacheValue value = cache.get(new CacheKey(key));
+            // 批量读取子节点
+            List<CacheValue> values = cache.get(keys);
+            for (CacheValue value : values) {
                 if (null != value) {
                     HierarchyNode child = new HierarchyNode(value.get());
 
                     node.addChild(child);
                 }
             }
-
-            keys.clear();
         }
 
         return node.getChildren();
@@ -28,6 +28,9 @@ package cube.core;
 
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * 缓存抽象层。
  */
@@ -89,4 +92,16 @@ public abstract class AbstractCache implements Cache {
     public void configure(JSONObject config) {
         this.config = config;
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<CacheValue> get(List<CacheKey> keys) {
+        List<CacheValue> result = new ArrayList<>(keys.size());
+        for (CacheKey key : keys) {
+            result.add(this.get(key));
+        }
+        return result;
+    }
 }
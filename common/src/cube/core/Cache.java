@@ -28,6 +28,8 @@ package cube.core;
 
 import org.json.JSONObject;
 
+import java.util.List;
+
 /**
  * 缓存器接口。
  */
@@ -87,6 +89,14 @@ public interface Cache {
      */
     public CacheValue get(CacheKey key);
 
+    /**
+     * 批量读取数据。
+     *
+     * @param keys 数据主键列表。
+     * @return 返回与主键顺序一致的数据值列表，没有数据的主键对应 {@code null} 。
+     */
+    public List<CacheValue> get(List<CacheKey> keys);
+
     /**
      * 以表达式描述的方式读取数据。
      *
@@ -36,11 +36,23 @@ public class Conditional {
 
     public final static String Quote = "`";
 
+    private final static StorageField[] NO_PARAMETERS = new StorageField[0];
+
     /**
      * 句式的 SQL 语句。
      */
     private String sql;
 
+    /**
+     * 使用占位符的 SQL 语句。
+     */
+    private String preparedSQL;
+
+    /**
+     * 占位符对应的绑定参数。
+     */
+    private StorageField[] parameters;
+
     /**
      * 构造函数。
      *
@@ -48,6 +60,39 @@ public class Conditional {
      */
     protected Conditional(String sql) {
         this.sql = sql;
+        this.preparedSQL = sql;
+        this.parameters = NO_PARAMETERS;
+    }
+
+    /**
+     * 构造函数。
+     *
+     * @param sql 指定 SQL 字符串。
+     * @param preparedSQL 指定使用占位符的 SQL 字符串。
+     * @param parameters 指定占位符对应的绑定参数。
+     */
+    protected Conditional(String sql, String preparedSQL, StorageField[] parameters) {
+        this.sql = sql;
+        this.preparedSQL = preparedSQL;
+        this.parameters = parameters;
+    }
+
+    /**
+     * 获取使用占位符 {@code ?} 的 SQL 语句。
+     *
+     * @return 返回使用占位符的 SQL 语句。
+     */
+    public String getPreparedSQL() {
+        return this.preparedSQL;
+    }
+
+    /**
+     * 获取占位符对应的绑定参数，顺序与占位符出现的顺序一致。
+     *
+     * @return 返回绑定参数数组。
+     */
+    public StorageField[] getParameters() {
+        return this.parameters;
     }
 
     @Override
@@ -81,11 +126,24 @@ public class Conditional {
      */
     public static Conditional createBracket(Conditional[] conditionals) {
         StringBuilder buf = new StringBuilder("( ");
+        StringBuilder prepared = new StringBuilder("( ");
+        int count = 0;
         for (Conditional cond : conditionals) {
             buf.append(cond.sql).append(" ");
+            prepared.append(cond.preparedSQL).append(" ");
+            count += cond.parameters.length;
         }
         buf.append(")");
-        return new Conditional(buf.toString());
+        prepared.append(")");
+
+        StorageField[] parameters = new StorageField[count];
+        int index = 0;
+        for (Conditional cond : conditionals) {
+            System.arraycopy(cond.parameters, 0, parameters, index, cond.parameters.length);
+            index += cond.parameters.length;
+        }
+
+        return new Conditional(buf.toString(), prepared.toString(), parameters);
     }
 
     /**
@@ -95,7 +153,8 @@ public class Conditional {
      * @return 返回条件句式实例。
      */
     public static Conditional createLimit(int num) {
-        return new Conditional("LIMIT " + num);
+        return new Conditional("LIMIT " + num, "LIMIT ?",
+                new StorageField[] { new StorageField("limit", LiteralBase.INT, num) });
     }
 
     /**
@@ -106,7 +165,27 @@ public class Conditional {
      * @return 返回条件句式实例。
      */
     public static Conditional createLimit(int pos, int count) {
-        return new Conditional("LIMIT " + pos + "," + count);
+        return new Conditional("LIMIT " + pos + "," + count, "LIMIT ?,?",
+                new StorageField[] { new StorageField("pos", LiteralBase.INT, pos),
+                        new StorageField("count", LiteralBase.INT, count) });
+    }
+
+    /**
+     * 创建 ORDER BY 排序。
+     *
+     * @param fieldNames 指定排序字段，按先后顺序排序。
+     * @param desc 是否降序排序。
+     * @return 返回条件句式实例。
+     */
+    public static Conditional createOrderBy(String[] fieldNames, boolean desc) {
+        StringBuilder buf = new StringBuilder("ORDER BY ");
+        for (String fieldName : fieldNames) {
+            buf.append(Quote).append(fieldName).append(Quote);
+            buf.append(desc ? " DESC" : " ASC").append(",");
+        }
+        // 修正逗号
+        buf.delete(buf.length() - 1, buf.length());
+        return new Conditional(buf.toString());
     }
 
     /**
@@ -138,12 +217,9 @@ public class Conditional {
         }
 
         String table = field.getTableName();
-        if (null != table) {
-            return new Conditional(Quote + table + Quote + "." + Quote + field.getName() + Quote + "=" + value);
-        }
-        else {
-            return new Conditional(Quote + field.getName() + Quote + "=" + value);
-        }
+        String column = (null != table) ? Quote + table + Quote + "." + Quote + field.getName() + Quote
+                : Quote + field.getName() + Quote;
+        return new Conditional(column + "=" + value, column + "=?", new StorageField[] { field });
     }
 
     /**
@@ -168,7 +244,7 @@ public class Conditional {
      * @return 返回条件句式实例。
      */
     public static Conditional createGreaterThan(StorageField field) {
-        return new Conditional(Quote + field.getName() + Quote + ">" + field.getValue().toString());
+        return Conditional.createComparison(field, ">");
     }
 
     /**
@@ -178,7 +254,7 @@ public class Conditional {
      * @return 返回条件句式实例。
      */
     public static Conditional createGreaterThanEqual(StorageField field) {
-        return new Conditional(Quote + field.getName() + Quote + ">=" + field.getValue().toString());
+        return Conditional.createComparison(field, ">=");
     }
 
     /**
@@ -188,7 +264,7 @@ public class Conditional {
      * @return 返回条件句式实例。
      */
     public static Conditional createLessThan(StorageField field) {
-        return new Conditional(Quote + field.getName() + Quote + "<" + field.getValue().toString());
+        return Conditional.createComparison(field, "<");
     }
 
     /**
@@ -198,7 +274,7 @@ public class Conditional {
      * @return 返回条件句式实例。
      */
     public static Conditional createLessThanEqual(StorageField field) {
-        return new Conditional(Quote + field.getName() + Quote + "<=" + field.getValue().toString());
+        return Conditional.createComparison(field, "<=");
     }
 
     /**
@@ -236,6 +312,32 @@ public class Conditional {
         buf.delete(buf.length() - 1, buf.length());
 
         buf.append(")");
-        return new Conditional(buf.toString());
+
+        StringBuilder prepared = new StringBuilder();
+        prepared.append(Quote).append(field.getName()).append(Quote);
+        prepared.append(" IN (");
+        StorageField[] parameters = new StorageField[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            prepared.append("?,");
+            parameters[i] = new StorageField(field.getName(), field.getLiteralBase(), values[i]);
+        }
+        // 修正逗号
+        prepared.delete(prepared.length() - 1, prepared.length());
+        prepared.append(")");
+
+        return new Conditional(buf.toString(), prepared.toString(), parameters);
+    }
+
+    /**
+     * 创建比较运算。
+     *
+     * @param field 字段描述。
+     * @param operator 比较运算符。
+     * @return 返回条件句式实例。
+     */
+    private static Conditional createComparison(StorageField field, String operator) {
+        String column = Quote + field.getName() + Quote;
+        return new Conditional(column + operator + field.getValue().toString(),
+                column + operator + "?", new StorageField[] { field });
     }
 }
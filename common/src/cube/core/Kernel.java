@@ -28,6 +28,9 @@ package cube.core;
 
 import cell.api.Nucleus;
 import cell.util.log.Logger;
+import cube.cache.NearSharedMemoryCache;
+import cube.cache.RingBufferTimeSeriesCache;
+import cube.cache.SeriesMemoryTimeSeriesCache;
 import cube.cache.SharedMemoryCache;
 import cube.mq.AdapterMQ;
 import org.json.JSONObject;
@@ -63,6 +66,11 @@ public final class Kernel {
      */
     private ConcurrentHashMap<String, AbstractCache> cacheMap;
 
+    /**
+     * 存储时序缓存的映射。
+     */
+    private ConcurrentHashMap<String, AbstractTimeSeriesCache> tsCacheMap;
+
     /**
      * 存储消息队列的映射。
      */
@@ -90,6 +98,7 @@ public final class Kernel {
         this.nucleus = nucleus;
         this.moduleMap = new ConcurrentHashMap<>();
         this.cacheMap = new ConcurrentHashMap<>();
+        this.tsCacheMap = new ConcurrentHashMap<>();
         this.mqMap = new ConcurrentHashMap<>();
         this.nodeName = UUID.randomUUID().toString();
         this.pluginManager = new PluginManager(this);
@@ -134,6 +143,12 @@ public final class Kernel {
             cache.start();
         }
 
+        Iterator<AbstractTimeSeriesCache> tsciter = this.tsCacheMap.values().iterator();
+        while (tsciter.hasNext()) {
+            AbstractTimeSeriesCache cache = tsciter.next();
+            cache.start();
+        }
+
         Iterator<AbstractMQ> mqiter = this.mqMap.values().iterator();
         while (mqiter.hasNext()) {
             AbstractMQ mq = mqiter.next();
@@ -179,6 +194,12 @@ public final class Kernel {
             mq.stop();
         }
 
+        Iterator<AbstractTimeSeriesCache> tsciter = this.tsCacheMap.values().iterator();
+        while (tsciter.hasNext()) {
+            AbstractTimeSeriesCache cache = tsciter.next();
+            cache.stop();
+        }
+
         Iterator<AbstractCache> citer = this.cacheMap.values().iterator();
         while (citer.hasNext()) {
             AbstractCache cache = citer.next();
@@ -251,6 +272,10 @@ public final class Kernel {
                 cache = new SharedMemoryCache(name);
                 cache.configure(config);
             }
+            else if (NearSharedMemoryCache.TYPE.equalsIgnoreCase(type)) {
+                cache = new NearSharedMemoryCache(name);
+                cache.configure(config);
+            }
         } catch (Exception e) {
             Logger.w(this.getClass(), "installCache", e);
         }
@@ -290,6 +315,15 @@ public final class Kernel {
         return this.cacheMap.get(name);
     }
 
+    /**
+     * 获取所有缓存器。
+     *
+     * @return 返回所有缓存器的列表。
+     */
+    public List<AbstractCache> getCaches() {
+        return new ArrayList<>(this.cacheMap.values());
+    }
+
     /**
      * 获取指定名称时序缓存器。
      *
@@ -297,7 +331,54 @@ public final class Kernel {
      * @return 返回时序缓存器实例。
      */
     public TimeSeriesCache getTimeSeriesCache(String name) {
-        return null;
+        return this.tsCacheMap.get(name);
+    }
+
+    /**
+     * 安装时序缓存。
+     *
+     * @param name 指定缓存名称。
+     * @param config 指定缓存配置信息。
+     */
+    public AbstractTimeSeriesCache installTimeSeriesCache(String name, JSONObject config) {
+        AbstractTimeSeriesCache cache = null;
+        try {
+            String type = config.getString("type");
+            if (SeriesMemoryTimeSeriesCache.TYPE.equalsIgnoreCase(type)) {
+                cache = new SeriesMemoryTimeSeriesCache(name);
+                cache.configure(config);
+            }
+            else if (RingBufferTimeSeriesCache.TYPE.equalsIgnoreCase(type)) {
+                cache = new RingBufferTimeSeriesCache(name);
+                cache.configure(config);
+            }
+        } catch (Exception e) {
+            Logger.w(this.getClass(), "installTimeSeriesCache", e);
+        }
+
+        if (null == cache) {
+            return null;
+        }
+
+        this.tsCacheMap.put(name, cache);
+
+        if (this.started) {
+            cache.start();
+        }
+
+        return cache;
+    }
+
+    /**
+     * 卸载时序缓存。
+     *
+     * @param name 指定缓存名称。
+     */
+    public void uninstallTimeSeriesCache(String name) {
+        AbstractTimeSeriesCache cache = this.tsCacheMap.remove(name);
+        if (null != cache) {
+            cache.stop();
+        }
     }
 
     /**
@@ -312,6 +393,7 @@ public final class Kernel {
             String type = config.getString("type");
             if (AdapterMQ.TYPE.equalsIgnoreCase(type)) {
                 mq = new AdapterMQ(name);
+                mq.configure(config);
             }
         } catch (Exception e) {
             Logger.w(this.getClass(), "installMQ", e);
@@ -336,7 +418,7 @@ public final class Kernel {
      * @param name 指定队列名称。
      */
     public void uninstallMQ(String name) {
-        AbstractMQ mq = this.mqMap.get(name);
+        AbstractMQ mq = this.mqMap.remove(name);
         if (null != mq) {
             mq.stop();
         }
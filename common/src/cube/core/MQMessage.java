@@ -26,11 +26,88 @@
 
 package cube.core;
 
+import cube.common.JSONable;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 /**
  * 消息队列消息。
  */
-public abstract class MQMessage {
+public class MQMessage implements JSONable {
+
+    /**
+     * 消息负载。
+     */
+    private final JSONObject payload;
+
+    /**
+     * 消息发布时间戳。
+     */
+    private final long timestamp;
+
+    /**
+     * 构造函数。
+     *
+     * @param payload 消息负载。
+     */
+    public MQMessage(JSONObject payload) {
+        this(payload, System.currentTimeMillis());
+    }
+
+    /**
+     * 构造函数。
+     *
+     * @param payload 消息负载。
+     * @param timestamp 消息发布时间戳。
+     */
+    public MQMessage(JSONObject payload, long timestamp) {
+        this.payload = payload;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * 获取消息负载。
+     *
+     * @return 返回消息负载。
+     */
+    public JSONObject getPayload() {
+        return this.payload;
+    }
+
+    /**
+     * 获取消息发布时间戳。
+     *
+     * @return 返回消息发布时间戳。
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * 从 JSON 数据创建消息。
+     *
+     * @param json 消息的 JSON 格式数据。
+     * @return 返回消息实例。
+     * @throws JSONException
+     */
+    public static MQMessage create(JSONObject json) throws JSONException {
+        return new MQMessage(json.getJSONObject("payload"), json.getLong("timestamp"));
+    }
+
+    @Override
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("payload", this.payload);
+            json.put("timestamp", this.timestamp);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
 
-    public MQMessage() {
+    @Override
+    public JSONObject toCompactJSON() {
+        return this.toJSON();
     }
 }
@@ -29,8 +29,46 @@ package cube.core;
 /**
  * 消息队列主题。
  */
-public abstract class MQTopic {
+public class MQTopic {
 
-    public MQTopic() {
+    /**
+     * 主题名称。
+     */
+    private final String name;
+
+    /**
+     * 构造函数。
+     *
+     * @param name 主题名称。
+     */
+    public MQTopic(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 获取主题名称。
+     *
+     * @return 返回主题名称。
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (null != object && object instanceof MQTopic) {
+            return ((MQTopic) object).name.equals(this.name);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return this.name.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
     }
 }
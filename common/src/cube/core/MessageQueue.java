@@ -53,8 +53,28 @@ public interface MessageQueue {
 
     public void stop();
 
-    public void publish(MQTopic topic, MQMessage json);
+    /**
+     * 向主题发布消息。
+     *
+     * @param topic 主题。
+     * @param message 消息。
+     */
+    public void publish(MQTopic topic, MQMessage message);
+
+    /**
+     * 订阅主题。
+     *
+     * @param topic 主题。
+     * @param listener 消息监听器。
+     */
+    public void subscribe(MQTopic topic, MQListener listener);
 
-    public void subscribe(MQTopic topic);
+    /**
+     * 取消订阅主题。
+     *
+     * @param topic 主题。
+     * @param listener 消息监听器。
+     */
+    public void unsubscribe(MQTopic topic, MQListener listener);
 
 }
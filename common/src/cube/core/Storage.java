@@ -68,10 +68,48 @@ public interface Storage {
 
     public boolean executeCreate(String table, StorageField[] fields);
 
+    /**
+     * 创建表，并在表上创建索引。
+     *
+     * @param table 表名。
+     * @param fields 字段描述。
+     * @param indexes 索引描述。
+     * @return 表和所有索引都创建成功返回 {@code true} 。
+     */
+    public boolean executeCreate(String table, StorageField[] fields, StorageIndex[] indexes);
+
+    /**
+     * 在表上创建索引，如果索引已经存在则不做任何操作。
+     *
+     * @param table 表名。
+     * @param index 索引描述。
+     * @return 索引创建成功或者已经存在返回 {@code true} 。
+     */
+    public boolean executeCreateIndex(String table, StorageIndex index);
+
+    /**
+     * 为已存在的表添加字段，字段已存在时不做修改。
+     *
+     * @param table 表名。
+     * @param field 字段描述。
+     * @return 字段已存在或添加成功返回 {@code true} 。
+     */
+    public boolean executeAddColumn(String table, StorageField field);
+
     public boolean executeInsert(String table, StorageField[] fields);
 
     public boolean executeInsert(String table, List<StorageField[]> fieldsList);
 
+    /**
+     * 在同一个事务里批量插入多行数据。
+     *
+     * @param table 表名。
+     * @param fieldsList 行数据列表。
+     * @param failedRows 用于记录插入失败的行在 {@code fieldsList} 中的索引，可以为 {@code null} 。
+     * @return 所有行都插入成功返回 {@code true} 。
+     */
+    public boolean executeInsert(String table, List<StorageField[]> fieldsList, List<Integer> failedRows);
+
     public boolean executeUpdate(String table, StorageField[] fields, Conditional[] conditionals);
 
     public boolean executeDelete(String table, Conditional[] conditionals);
@@ -82,4 +120,15 @@ public interface Storage {
 
     public List<StorageField[]> executeQuery(String[] tables, StorageField[] fields, Conditional[] conditionals);
 
+    /**
+     * 以流的方式执行查询，结果逐行交给处理器，不在内存里保存整个结果集。
+     *
+     * @param table 表名。
+     * @param fields 查询字段。
+     * @param conditionals 查询条件，可以为 {@code null} 。
+     * @param handler 行处理器。
+     * @return 查询执行成功返回 {@code true} 。
+     */
+    public boolean executeQuery(String table, StorageField[] fields, Conditional[] conditionals, QueryHandler handler);
+
 }
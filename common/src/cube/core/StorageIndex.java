@@ -0,0 +1,93 @@
+/**
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2021 Shixin Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.core;
+
+/**
+ * 表索引描述。
+ */
+public class StorageIndex {
+
+    /**
+     * 索引名。
+     */
+    private String name;
+
+    /**
+     * 索引包含的字段，按顺序构成复合索引。
+     */
+    private String[] columns;
+
+    /**
+     * 是否是唯一索引。
+     */
+    private boolean unique;
+
+    /**
+     * 构造函数。
+     *
+     * @param name 索引名。
+     * @param columns 索引字段。
+     */
+    public StorageIndex(String name, String... columns) {
+        this(name, false, columns);
+    }
+
+    /**
+     * 构造函数。
+     *
+     * @param name 索引名。
+     * @param unique 是否是唯一索引。
+     * @param columns 索引字段。
+     */
+    public StorageIndex(String name, boolean unique, String... columns) {
+        this.name = name;
+        this.unique = unique;
+        this.columns = columns;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * 获取在指定表上的索引全名。
+     *
+     * @param table 表名。
+     * @return 返回索引全名。
+     */
+    public String getName(String table) {
+        return "idx_" + table + "_" + this.name;
+    }
+
+    public String[] getColumns() {
+        return this.columns;
+    }
+
+    public boolean isUnique() {
+        return this.unique;
+    }
+}
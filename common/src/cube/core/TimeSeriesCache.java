@@ -100,6 +100,16 @@ public interface TimeSeriesCache {
      */
     public List<CacheValue> query(CacheKey key, long beginningTime, long endingTime);
 
+    /**
+     * 按时间顺序遍历指定时间范围内数据键对应的数据，不为每个数据点创建 {@link CacheValue} 。
+     *
+     * @param key 数据键。
+     * @param beginningTime 查询的起始时间戳。
+     * @param endingTime 查询的截止时间戳。
+     * @param handler 数据点处理器。
+     */
+    public void query(CacheKey key, long beginningTime, long endingTime, TimeSeriesHandler handler);
+
     /**
      * 删除指定时间戳之前的数据。
      *
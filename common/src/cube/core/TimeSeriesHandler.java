@@ -3,7 +3,7 @@
  *
  * The MIT License (MIT)
  *
- * Copyright (c) 2020 Shixin Cube Team.
+ * Copyright (c) 2020-2021 Shixin Cube Team.
  *
  * Permission is hereby granted, free of charge, to any person obtaining a copy
  * of this software and associated documentation files (the "Software"), to deal
@@ -24,27 +24,22 @@
  * SOFTWARE.
  */
 
-package cube.service.messaging;
+package cube.core;
 
-import cube.common.entity.MessageState;
+import org.json.JSONObject;
 
 /**
- * 消息状态束。
+ * 时序数据的逐点处理器。
  */
-public class MessageStateBundle {
+public interface TimeSeriesHandler {
 
-    protected Long messageId;
+    /**
+     * 处理一个时序数据点。
+     *
+     * @param timestamp 数据点的时间戳。
+     * @param value 数据点的值。
+     * @return 返回 {@code false} 停止遍历。
+     */
+    public boolean handle(long timestamp, JSONObject value);
 
-    protected Long contactId;
-
-    protected MessageState state;
-
-    protected long timestamp;
-
-    public MessageStateBundle(Long messageId, Long contactId, MessageState state) {
-        this.messageId = messageId;
-        this.contactId = contactId;
-        this.state = state;
-        this.timestamp = System.currentTimeMillis();
-    }
 }
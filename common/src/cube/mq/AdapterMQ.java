@@ -27,50 +27,525 @@
 package cube.mq;
 
 import cell.adapter.CelletAdapter;
+import cell.adapter.CelletAdapterFactory;
+import cell.adapter.CelletAdapterListener;
+import cell.core.net.Endpoint;
+import cell.core.talk.Primitive;
+import cell.util.CachedQueueExecutor;
+import cell.util.log.Logger;
 import cube.core.AbstractMQ;
+import cube.core.MQListener;
 import cube.core.MQMessage;
 import cube.core.MQTopic;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * 基于适配器实现的 MQ 。
+ * 发布的消息先进入有界的发送队列，由发送线程按照批次大小或者等待时长合并，每个主题每批只发布一次。
+ * 发送队列满时发布方最多阻塞等待 {@code blockTimeout} 毫秒，超时后丢弃消息。
+ * 每个订阅者拥有独立的有界接收队列，投递时不阻塞，队列满时丢弃该订阅者的消息，慢订阅者不影响其他订阅者。
+ * 回环模式下不使用适配器，消息直接投递给本进程内的订阅者。
+ * 适配器模式下本节点发布的消息由适配器按本地订阅直接回送，不经过网络，因此本节点的订阅者同样能收到。
  */
-public class AdapterMQ extends AbstractMQ {
+public class AdapterMQ extends AbstractMQ implements CelletAdapterListener {
 
     public final static String TYPE = "AMQ";
 
-    private String name;
+    /**
+     * 适配器主题前缀。
+     */
+    private final static String TOPIC_PREFIX = "mq:";
+
+    /**
+     * 使用的适配器名称。
+     */
+    private String adapterName = "Contacts";
+
+    /**
+     * 是否使用进程内回环。
+     */
+    private boolean loopback = false;
+
+    /**
+     * 每批次最大消息数量。
+     */
+    private int batchSize = 64;
+
+    /**
+     * 批次最长等待时间，单位：毫秒。
+     */
+    private long linger = 5;
+
+    /**
+     * 发送队列和接收队列的容量。
+     */
+    private int queueCapacity = 1024;
 
-    private JSONObject config;
+    /**
+     * 发送队列满时的最长阻塞时间，单位：毫秒。
+     */
+    private long blockTimeout = 1000;
+
+    /**
+     * 投递线程数量。
+     */
+    private int deliveryThreads = 2;
 
     private CelletAdapter adapter;
 
+    private ArrayBlockingQueue<Outgoing> outgoing;
+
+    private ConcurrentHashMap<MQTopic, CopyOnWriteArrayList<Subscriber>> subscribers;
+
+    private ExecutorService executor;
+
+    private Thread sender;
+
+    private volatile boolean running = false;
+
+    private final AtomicLong publishedCount = new AtomicLong(0);
+
+    private final AtomicLong batchCount = new AtomicLong(0);
+
+    private final AtomicLong deliveredCount = new AtomicLong(0);
+
+    private final AtomicLong droppedCount = new AtomicLong(0);
+
+    private final AtomicLong discardedCount = new AtomicLong(0);
+
     public AdapterMQ(String name) {
         super(name);
+        this.subscribers = new ConcurrentHashMap<>();
     }
 
     @Override
     public void configure(JSONObject config) {
         super.configure(config);
+
+        this.adapterName = config.optString("adapter", this.adapterName);
+        this.loopback = config.optBoolean("loopback", this.loopback);
+        this.batchSize = Math.max(1, config.optInt("batchSize", this.batchSize));
+        this.linger = config.optLong("linger", this.linger);
+        this.queueCapacity = Math.max(1, config.optInt("queueCapacity", this.queueCapacity));
+        this.blockTimeout = config.optLong("blockTimeout", this.blockTimeout);
+        this.deliveryThreads = Math.max(1, config.optInt("deliveryThreads", this.deliveryThreads));
     }
 
     @Override
     public void start() {
+        if (this.running) {
+            return;
+        }
 
+        if (!this.loopback) {
+            this.adapter = CelletAdapterFactory.getInstance().getAdapter(this.adapterName);
+            if (null == this.adapter) {
+                Logger.w(this.getClass(), "Can NOT find adapter \"" + this.adapterName + "\", use loopback mode");
+                this.loopback = true;
+            }
+            else {
+                this.adapter.addListener(this);
+                for (MQTopic topic : this.subscribers.keySet()) {
+                    this.adapter.subscribe(TOPIC_PREFIX + this.getName() + ":" + topic.getName());
+                }
+            }
+        }
+
+        this.outgoing = new ArrayBlockingQueue<>(this.queueCapacity);
+        this.executor = CachedQueueExecutor.newCachedQueueThreadPool(this.deliveryThreads);
+
+        this.running = true;
+        this.sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                send();
+            }
+        }, "AdapterMQ-" + this.getName());
+        this.sender.setDaemon(true);
+        this.sender.start();
     }
 
     @Override
     public void stop() {
+        if (!this.running) {
+            return;
+        }
+
+        this.running = false;
+
+        try {
+            // 等待发送线程处理完队列里的消息
+            this.sender.join(this.linger + 1000L);
+            if (this.sender.isAlive()) {
+                // 超时后中断等待，发送线程退出后才能关闭投递线程
+                Logger.w(this.getClass(), "#stop - sender is still running, interrupt it: " + this.getName());
+                this.sender.interrupt();
+                this.sender.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.sender = null;
+
+        if (null != this.adapter) {
+            this.adapter.removeListener(this);
+            this.adapter = null;
+        }
+
+        ExecutorService executor = this.executor;
+        this.executor = null;
+        executor.shutdown();
+        try {
+            // 等待已调度的订阅者处理完接收队列
+            if (!executor.awaitTermination(this.blockTimeout, TimeUnit.MILLISECONDS)) {
+                Logger.w(this.getClass(), "#stop - delivery is not finished: " + this.getName());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void publish(MQTopic topic, MQMessage message) {
+        if (!this.running) {
+            Logger.w(this.getClass(), "#publish - MQ \"" + this.getName() + "\" is not running");
+            return;
+        }
+
+        boolean accepted = false;
+        try {
+            accepted = this.outgoing.offer(new Outgoing(topic, message), this.blockTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (accepted) {
+            this.publishedCount.incrementAndGet();
+        }
+        else {
+            this.droppedCount.incrementAndGet();
+            Logger.w(this.getClass(), "#publish - outgoing queue is full, drop message on topic: " + topic);
+        }
+    }
+
+    @Override
+    public void subscribe(MQTopic topic, MQListener listener) {
+        CopyOnWriteArrayList<Subscriber> list = this.subscribers.get(topic);
+        if (null == list) {
+            list = new CopyOnWriteArrayList<>();
+            CopyOnWriteArrayList<Subscriber> current = this.subscribers.putIfAbsent(topic, list);
+            if (null != current) {
+                list = current;
+            }
+            else if (null != this.adapter) {
+                this.adapter.subscribe(TOPIC_PREFIX + this.getName() + ":" + topic.getName());
+            }
+        }
+
+        list.add(new Subscriber(topic, listener, this.queueCapacity));
+    }
+
+    @Override
+    public void unsubscribe(MQTopic topic, MQListener listener) {
+        CopyOnWriteArrayList<Subscriber> list = this.subscribers.get(topic);
+        if (null == list) {
+            return;
+        }
+
+        for (Subscriber subscriber : list) {
+            if (subscriber.listener == listener) {
+                list.remove(subscriber);
+            }
+        }
+
+        if (list.isEmpty() && this.subscribers.remove(topic, list) && null != this.adapter) {
+            this.adapter.unsubscribe(TOPIC_PREFIX + this.getName() + ":" + topic.getName());
+        }
+    }
+
+    /**
+     * 获取投递统计数据。
+     *
+     * @return 返回 JSON 格式的统计数据。
+     */
+    public JSONObject getMetrics() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("published", this.publishedCount.get());
+            json.put("batches", this.batchCount.get());
+            json.put("delivered", this.deliveredCount.get());
+            json.put("dropped", this.droppedCount.get());
+            json.put("discarded", this.discardedCount.get());
+            json.put("pending", (null != this.outgoing) ? this.outgoing.size() : 0);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+
+    /**
+     * 获取被指定订阅者丢弃的消息数量。
+     *
+     * @param topic 指定主题。
+     * @param listener 指定监听器。
+     * @return 返回被丢弃的消息数量。
+     */
+    public long getDiscardedCount(MQTopic topic, MQListener listener) {
+        CopyOnWriteArrayList<Subscriber> list = this.subscribers.get(topic);
+        if (null == list) {
+            return 0;
+        }
+
+        long count = 0;
+        for (Subscriber subscriber : list) {
+            if (subscriber.listener == listener) {
+                count += subscriber.discarded.get();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 发送线程，合并批次并发布。
+     */
+    private void send() {
+        List<Outgoing> batch = new ArrayList<>(this.batchSize);
 
+        while (this.running || !this.outgoing.isEmpty()) {
+            try {
+                Outgoing first = this.outgoing.poll(100, TimeUnit.MILLISECONDS);
+                if (null == first) {
+                    continue;
+                }
+                batch.add(first);
+
+                // 在等待时长内凑满批次
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.linger);
+                while (batch.size() < this.batchSize) {
+                    if (this.outgoing.drainTo(batch, this.batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+
+                    Outgoing next = this.outgoing.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (null == next) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            this.flush(batch);
+            batch.clear();
+        }
+    }
+
+    private void flush(List<Outgoing> batch) {
+        // 按主题分组，每个主题发布一次
+        LinkedHashMap<MQTopic, List<MQMessage>> groups = new LinkedHashMap<>();
+        for (Outgoing out : batch) {
+            List<MQMessage> list = groups.get(out.topic);
+            if (null == list) {
+                list = new ArrayList<>();
+                groups.put(out.topic, list);
+            }
+            list.add(out.message);
+        }
+
+        for (Map.Entry<MQTopic, List<MQMessage>> e : groups.entrySet()) {
+            this.batchCount.incrementAndGet();
+
+            if (this.loopback) {
+                this.dispatch(e.getKey(), e.getValue());
+                continue;
+            }
+
+            JSONArray array = new JSONArray();
+            for (MQMessage message : e.getValue()) {
+                array.put(message.toJSON());
+            }
+
+            JSONObject data = new JSONObject();
+            try {
+                data.put("topic", e.getKey().getName());
+                data.put("messages", array);
+            } catch (JSONException je) {
+                Logger.w(this.getClass(), "#flush", je);
+                continue;
+            }
+
+            CelletAdapter adapter = this.adapter;
+            if (null == adapter || !adapter.publish(TOPIC_PREFIX + this.getName() + ":" + e.getKey().getName(), data)) {
+                this.droppedCount.addAndGet(e.getValue().size());
+                Logger.w(this.getClass(), "#flush - publish failed on topic: " + e.getKey());
+            }
+        }
+    }
+
+    /**
+     * 将消息放入订阅者的接收队列。
+     */
+    private void dispatch(MQTopic topic, List<MQMessage> messages) {
+        CopyOnWriteArrayList<Subscriber> list = this.subscribers.get(topic);
+        if (null == list) {
+            return;
+        }
+
+        for (Subscriber subscriber : list) {
+            int discarded = 0;
+            for (MQMessage message : messages) {
+                // 不阻塞投递线程
+                if (!subscriber.queue.offer(message)) {
+                    ++discarded;
+                }
+            }
+
+            if (discarded > 0) {
+                this.discardedCount.addAndGet(discarded);
+                if (0 == subscriber.discarded.getAndAdd(discarded)) {
+                    Logger.w(this.getClass(), "#dispatch - subscriber queue is full, discard message on topic: " + topic);
+                }
+            }
+
+            subscriber.schedule();
+        }
     }
 
     @Override
-    public void publish(MQTopic topic, MQMessage json) {
+    public void onDelivered(String topic, Endpoint endpoint, JSONObject jsonObject) {
+        String prefix = TOPIC_PREFIX + this.getName() + ":";
+        if (!topic.startsWith(prefix)) {
+            return;
+        }
+
+        try {
+            MQTopic mqTopic = new MQTopic(jsonObject.getString("topic"));
+            JSONArray array = jsonObject.getJSONArray("messages");
+            List<MQMessage> messages = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); ++i) {
+                messages.add(MQMessage.create(array.getJSONObject(i)));
+            }
 
+            this.dispatch(mqTopic, messages);
+        } catch (JSONException e) {
+            Logger.w(this.getClass(), "#onDelivered", e);
+        }
+    }
+
+    @Override
+    public void onDelivered(String topic, Endpoint endpoint, Primitive primitive) {
+        // Nothing
+    }
+
+    @Override
+    public void onDelivered(List<String> topicList, Endpoint endpoint, Primitive primitive) {
+        // Nothing
     }
 
     @Override
-    public void subscribe(MQTopic topic) {
+    public void onDelivered(List<String> topicList, Endpoint endpoint, JSONObject jsonObject) {
+        for (String topic : topicList) {
+            this.onDelivered(topic, endpoint, jsonObject);
+        }
+    }
+
+    @Override
+    public void onSubscribeFailed(String topic, Endpoint endpoint) {
+        Logger.w(this.getClass(), "Subscribe failed: " + topic + " - " + endpoint.toString());
+    }
+
+    @Override
+    public void onUnsubscribeFailed(String topic, Endpoint endpoint) {
+        Logger.w(this.getClass(), "Unsubscribe failed: " + topic + " - " + endpoint.toString());
+    }
+
+    /**
+     * 待发送的消息。
+     */
+    private class Outgoing {
+
+        protected final MQTopic topic;
+
+        protected final MQMessage message;
+
+        protected Outgoing(MQTopic topic, MQMessage message) {
+            this.topic = topic;
+            this.message = message;
+        }
+    }
+
+    /**
+     * 订阅者，拥有独立的有界接收队列。
+     */
+    private class Subscriber implements Runnable {
+
+        protected final MQTopic topic;
+
+        protected final MQListener listener;
+
+        protected final ArrayBlockingQueue<MQMessage> queue;
+
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        protected final AtomicLong discarded = new AtomicLong(0);
+
+        protected Subscriber(MQTopic topic, MQListener listener, int capacity) {
+            this.topic = topic;
+            this.listener = listener;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        protected void schedule() {
+            ExecutorService executor = AdapterMQ.this.executor;
+            if (null != executor && this.scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // 已停止
+                    this.scheduled.set(false);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            MQMessage message = null;
+            while (null != (message = this.queue.poll())) {
+                try {
+                    this.listener.onMessage(this.topic, message);
+                } catch (Throwable e) {
+                    Logger.w(AdapterMQ.class, "Subscriber error on topic: " + this.topic, e);
+                }
+                deliveredCount.incrementAndGet();
+            }
+
+            this.scheduled.set(false);
 
+            if (!this.queue.isEmpty()) {
+                this.schedule();
+            }
+        }
     }
 }
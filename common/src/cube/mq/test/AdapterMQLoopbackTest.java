@@ -0,0 +1,170 @@
+/**
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2021 Shixin Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.mq.test;
+
+import cube.core.MQListener;
+import cube.core.MQMessage;
+import cube.core.MQTopic;
+import cube.mq.AdapterMQ;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 回环模式下的投递测试。
+ * 慢订阅者的接收队列满后丢弃消息，不阻塞同一主题的快订阅者。
+ */
+public class AdapterMQLoopbackTest {
+
+    private final static int TOTAL = 2000;
+
+    private final static int CAPACITY = 64;
+
+    private AdapterMQ mq;
+
+    private MQTopic topic = new MQTopic("LoopbackTest");
+
+    public AdapterMQLoopbackTest() {
+    }
+
+    public void start() {
+        JSONObject config = new JSONObject();
+        try {
+            config.put("loopback", true);
+            config.put("queueCapacity", CAPACITY);
+            config.put("blockTimeout", 5000L);
+            config.put("deliveryThreads", 2);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        this.mq = new AdapterMQ("LoopbackTest");
+        this.mq.configure(config);
+        this.mq.start();
+    }
+
+    public void testSlowSubscriber() {
+        System.out.println("*** testSlowSubscriber ***");
+
+        final CountDownLatch slowBlocked = new CountDownLatch(1);
+        final CountDownLatch releaseSlow = new CountDownLatch(1);
+        final AtomicInteger slowCount = new AtomicInteger(0);
+        MQListener slow = new MQListener() {
+            @Override
+            public void onMessage(MQTopic topic, MQMessage message) {
+                slowCount.incrementAndGet();
+                slowBlocked.countDown();
+                try {
+                    releaseSlow.await();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+
+        final CountDownLatch fastDone = new CountDownLatch(TOTAL);
+        MQListener fast = new MQListener() {
+            @Override
+            public void onMessage(MQTopic topic, MQMessage message) {
+                fastDone.countDown();
+            }
+        };
+
+        this.mq.subscribe(this.topic, slow);
+        this.mq.subscribe(this.topic, fast);
+
+        long time = System.currentTimeMillis();
+
+        // 发布方按照发送队列的容量限速，快订阅者应当收到全部消息
+        for (int i = 0; i < TOTAL; ++i) {
+            JSONObject payload = new JSONObject();
+            try {
+                payload.put("index", i);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+            this.mq.publish(this.topic, new MQMessage(payload));
+
+            if (i % CAPACITY == 0) {
+                // 等待快订阅者跟上，避免快订阅者自身的接收队列溢出
+                while (fastDone.getCount() > TOTAL - i + CAPACITY / 2) {
+                    Thread.yield();
+                }
+            }
+        }
+
+        boolean fastCompleted = false;
+        try {
+            fastCompleted = fastDone.await(5, TimeUnit.SECONDS);
+            slowBlocked.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        long elapsed = System.currentTimeMillis() - time;
+
+        long slowDiscarded = this.mq.getDiscardedCount(this.topic, slow);
+        long fastDiscarded = this.mq.getDiscardedCount(this.topic, fast);
+
+        releaseSlow.countDown();
+
+        System.out.println("Fast received: " + (TOTAL - fastDone.getCount()) + "/" + TOTAL
+                + " - discarded: " + fastDiscarded + " - " + elapsed + " ms");
+        System.out.println("Slow discarded: " + slowDiscarded);
+        System.out.println("Metrics: " + this.mq.getMetrics().toString());
+
+        if (!fastCompleted || fastDiscarded != 0) {
+            System.out.println("[FAILED] Fast subscriber is blocked by slow subscriber");
+        }
+        else if (slowDiscarded == 0) {
+            System.out.println("[FAILED] Slow subscriber did not discard messages");
+        }
+        else {
+            System.out.println("[OK]");
+        }
+
+        this.mq.unsubscribe(this.topic, slow);
+        this.mq.unsubscribe(this.topic, fast);
+    }
+
+    public void stop() {
+        this.mq.stop();
+    }
+
+    public static void main(String[] args) {
+        AdapterMQLoopbackTest test = new AdapterMQLoopbackTest();
+
+        test.start();
+
+        test.testSlowSubscriber();
+
+        test.stop();
+    }
+}
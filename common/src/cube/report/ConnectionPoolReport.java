@@ -0,0 +1,118 @@
+/**
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2021 Shixin Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.report;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 数据库连接池报告。
+ */
+public class ConnectionPoolReport extends Report {
+
+    public final static String NAME = "ConnectionPoolReport";
+
+    /** 连接池名称。 */
+    public String pool;
+
+    /** 最大连接数。 */
+    public int maxConnections;
+
+    /** 最小空闲连接数。 */
+    public int minConnections;
+
+    /** 借出的连接数。 */
+    public int active;
+
+    /** 空闲的连接数。 */
+    public int idle;
+
+    /** 正在等待连接的线程数。 */
+    public int waiting;
+
+    /** 成功借出连接的累计次数。 */
+    public long acquireCount;
+
+    /** 等待连接超时的累计次数。 */
+    public long timeoutCount;
+
+    /** 检测到的连接泄漏累计次数。 */
+    public long leakCount;
+
+    /** 平均等待时长，单位：毫秒。 */
+    public long averageWait;
+
+    /** 最大等待时长，单位：毫秒。 */
+    public long maxWait;
+
+    public ConnectionPoolReport(String reporter, String pool) {
+        super(ConnectionPoolReport.NAME);
+        this.setReporter(reporter);
+        this.pool = pool;
+    }
+
+    public ConnectionPoolReport(JSONObject json) {
+        super(json);
+
+        try {
+            this.pool = json.getString("pool");
+            this.maxConnections = json.getInt("maxConnections");
+            this.minConnections = json.getInt("minConnections");
+            this.active = json.getInt("active");
+            this.idle = json.getInt("idle");
+            this.waiting = json.getInt("waiting");
+            this.acquireCount = json.getLong("acquireCount");
+            this.timeoutCount = json.getLong("timeoutCount");
+            this.leakCount = json.getLong("leakCount");
+            this.averageWait = json.getLong("averageWait");
+            this.maxWait = json.getLong("maxWait");
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public JSONObject toJSON() {
+        JSONObject json = super.toJSON();
+        try {
+            json.put("pool", this.pool);
+            json.put("maxConnections", this.maxConnections);
+            json.put("minConnections", this.minConnections);
+            json.put("active", this.active);
+            json.put("idle", this.idle);
+            json.put("waiting", this.waiting);
+            json.put("acquireCount", this.acquireCount);
+            json.put("timeoutCount", this.timeoutCount);
+            json.put("leakCount", this.leakCount);
+            json.put("averageWait", this.averageWait);
+            json.put("maxWait", this.maxWait);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+}
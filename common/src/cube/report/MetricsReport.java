@@ -0,0 +1,74 @@
+/**
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2021 Shixin Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.report;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 运行指标报告。
+ */
+public class MetricsReport extends Report {
+
+    public final static String NAME = "MetricsReport";
+
+    /** 指标来源名称。 */
+    public String source;
+
+    /** 指标数据。 */
+    public JSONObject metrics;
+
+    public MetricsReport(String reporter, String source, JSONObject metrics) {
+        super(MetricsReport.NAME);
+        this.setReporter(reporter);
+        this.source = source;
+        this.metrics = metrics;
+    }
+
+    public MetricsReport(JSONObject json) {
+        super(json);
+
+        try {
+            this.source = json.getString("source");
+            this.metrics = json.getJSONObject("metrics");
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public JSONObject toJSON() {
+        JSONObject json = super.toJSON();
+        try {
+            json.put("source", this.source);
+            json.put("metrics", this.metrics);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+}
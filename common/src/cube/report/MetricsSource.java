@@ -3,7 +3,7 @@
  *
  * The MIT License (MIT)
  *
- * Copyright (c) 2020 Shixin Cube Team.
+ * Copyright (c) 2020-2021 Shixin Cube Team.
  *
  * Permission is hereby granted, free of charge, to any person obtaining a copy
  * of this software and associated documentation files (the "Software"), to deal
@@ -24,39 +24,26 @@
  * SOFTWARE.
  */
 
-package cube.service.messaging;
+package cube.report;
+
+import org.json.JSONObject;
 
 /**
- * 消息记录的主键。
+ * 运行指标来源。实现该接口的模块和缓存由守护任务定时生成 {@link MetricsReport} 。
  */
-public class MessageKey {
-
-    protected Long contactId;
-
-    protected Long messageId;
-
-    protected int hash = 0;
-
-    protected MessageKey(Long contactId, Long messageId) {
-        this.contactId = contactId;
-        this.messageId = messageId;
-        this.hash = contactId.hashCode() * 3 + messageId.hashCode() * 7;
-    }
-
-    @Override
-    public boolean equals(Object object) {
-        if (null != object && object instanceof MessageKey) {
-            MessageKey other = (MessageKey) object;
-            if (other.contactId.equals(this.contactId) && other.messageId.equals(this.messageId)) {
-                return true;
-            }
-        }
-
-        return false;
-    }
-
-    @Override
-    public int hashCode() {
-        return this.hash;
-    }
+public interface MetricsSource {
+
+    /**
+     * 返回指标来源名称。
+     *
+     * @return 返回指标来源名称。
+     */
+    public String getMetricsName();
+
+    /**
+     * 返回当前的运行指标。
+     *
+     * @return 返回当前的运行指标。
+     */
+    public JSONObject getMetrics();
 }
@@ -0,0 +1,188 @@
+/**
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2021 Shixin Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.storage;
+
+import cell.util.log.Logger;
+import cube.core.StorageField;
+import cube.util.SQLUtils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 批量插入执行器。
+ * 将多行数据按照 SQL 语句形态分组，每组使用 {@code addBatch}/{@code executeBatch} 按批次提交，
+ * 所有批次在同一个事务里执行。批次执行失败时回滚该批次并逐行重试，以便定位失败的行。
+ * 连接已处于调用者的事务中时不提交也不回滚该事务，出错时只回滚到执行前的保存点。
+ */
+public final class BatchInserter {
+
+    /**
+     * 默认每批次的行数。
+     */
+    public final static int DEFAULT_BATCH_SIZE = 500;
+
+    private BatchInserter() {
+    }
+
+    /**
+     * 执行批量插入。调用者需要保证同一时刻只有一个线程使用该缓存对应的连接。
+     *
+     * @param cache 连接对应的语句缓存。
+     * @param table 表名。
+     * @param fieldsList 行数据列表。
+     * @param batchSize 每批次的最大行数。
+     * @param failedRows 用于记录插入失败的行在 {@code fieldsList} 中的索引，可以为 {@code null} 。
+     * @return 所有行都插入成功返回 {@code true} 。
+     */
+    public static boolean execute(StatementCache cache, String table, List<StorageField[]> fieldsList,
+                                  int batchSize, List<Integer> failedRows) {
+        if (fieldsList.isEmpty()) {
+            return true;
+        }
+
+        // 按语句形态分组，空值字段不同的行会得到不同的语句
+        LinkedHashMap<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0, size = fieldsList.size(); i < size; ++i) {
+            String sql = SQLUtils.spellPreparedInsert(table, fieldsList.get(i));
+            List<Integer> rows = groups.get(sql);
+            if (null == rows) {
+                rows = new ArrayList<>();
+                groups.put(sql, rows);
+            }
+            rows.add(i);
+        }
+
+        Connection connection = cache.getConnection();
+        boolean autoCommit = false;
+        Savepoint savepoint = null;
+        boolean success = true;
+
+        try {
+            if (connection.getAutoCommit()) {
+                // 由本方法开启事务
+                connection.setAutoCommit(false);
+                autoCommit = true;
+            }
+            else {
+                // 调用者的事务，失败时只回滚到本方法的保存点
+                savepoint = connection.setSavepoint();
+            }
+
+            for (Map.Entry<String, List<Integer>> entry : groups.entrySet()) {
+                String sql = entry.getKey();
+                List<Integer> rows = entry.getValue();
+                for (int start = 0; start < rows.size(); start += batchSize) {
+                    List<Integer> batch = rows.subList(start, Math.min(start + batchSize, rows.size()));
+                    if (!executeBatch(cache, sql, fieldsList, batch, failedRows)) {
+                        success = false;
+                    }
+                }
+            }
+
+            if (autoCommit) {
+                connection.commit();
+            }
+            else {
+                connection.releaseSavepoint(savepoint);
+            }
+        } catch (SQLException e) {
+            Logger.e(BatchInserter.class, "#execute - table: " + table, e);
+            success = false;
+
+            try {
+                if (autoCommit) {
+                    connection.rollback();
+                }
+                else if (null != savepoint) {
+                    connection.rollback(savepoint);
+                }
+            } catch (SQLException re) {
+                Logger.w(BatchInserter.class, "#execute - rollback", re);
+            }
+
+            if (null != failedRows) {
+                failedRows.clear();
+                for (int i = 0, size = fieldsList.size(); i < size; ++i) {
+                    failedRows.add(i);
+                }
+            }
+        } finally {
+            if (autoCommit) {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                    Logger.w(BatchInserter.class, "#execute - reset auto commit", e);
+                }
+            }
+        }
+
+        return success;
+    }
+
+    private static boolean executeBatch(StatementCache cache, String sql, List<StorageField[]> fieldsList,
+                                        List<Integer> batch, List<Integer> failedRows) throws SQLException {
+        Connection connection = cache.getConnection();
+        PreparedStatement statement = cache.prepare(sql);
+        Savepoint savepoint = connection.setSavepoint();
+
+        try {
+            for (Integer index : batch) {
+                SQLUtils.bindParameters(statement, SQLUtils.collectParameters(fieldsList.get(index), null));
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            connection.releaseSavepoint(savepoint);
+            return true;
+        } catch (SQLException e) {
+            Logger.w(BatchInserter.class, "#executeBatch - SQL: " + sql + " - " + e.getMessage());
+            statement.clearBatch();
+            connection.rollback(savepoint);
+        }
+
+        // 逐行重试，定位失败的行
+        for (Integer index : batch) {
+            try {
+                SQLUtils.bindParameters(statement, SQLUtils.collectParameters(fieldsList.get(index), null));
+                statement.executeUpdate();
+            } catch (SQLException e) {
+                Logger.e(BatchInserter.class, "#executeBatch - row " + index + " SQL: " + sql, e);
+                if (null != failedRows) {
+                    failedRows.add(index);
+                }
+            }
+        }
+
+        return false;
+    }
+}
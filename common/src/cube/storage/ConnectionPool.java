@@ -0,0 +1,462 @@
+/**
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2021 Shixin Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.storage;
+
+import cell.util.log.Logger;
+import cube.report.ConnectionPoolReport;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 数据库连接池。
+ * 连接总数受公平信号量约束，等待连接的线程按到达顺序获得连接，等待超时后返回 {@code null} 。
+ * 空闲超过校验间隔的连接在借出前进行有效性校验，维护任务定期校验空闲连接、补足最小连接数。
+ * 泄漏检测默认关闭，开启后每次借出都会记录调用栈。
+ */
+public class ConnectionPool {
+
+    /**
+     * 连接池名称。
+     */
+    private final String name;
+
+    /**
+     * JDBC URL 。
+     */
+    private final String url;
+
+    /**
+     * 连接属性。
+     */
+    private final Properties info;
+
+    /**
+     * 最小空闲连接数。
+     */
+    private final int minConn;
+
+    /**
+     * 最大连接数。
+     */
+    private final int maxConn;
+
+    /**
+     * 获取连接的超时时间，单位：毫秒。
+     */
+    private long acquireTimeout = 10L * 1000L;
+
+    /**
+     * 空闲连接的校验间隔，单位：毫秒。
+     */
+    private long validationInterval = 30L * 1000L;
+
+    /**
+     * 连接借出超过该时长判定为泄漏，单位：毫秒。为 {@code 0} 时不检测，默认不检测。
+     */
+    private long leakThreshold = 0;
+
+    /**
+     * 每个连接的预编译语句缓存数量。
+     */
+    private int statementCacheSize = StatementCache.DEFAULT_CAPACITY;
+
+    /**
+     * 连接许可，使用公平模式保证等待顺序。
+     */
+    private final Semaphore permits;
+
+    /**
+     * 空闲连接，最近归还的连接优先借出。
+     */
+    private final LinkedBlockingDeque<PooledConnection> idle;
+
+    /**
+     * 已借出的连接。
+     */
+    private final ConcurrentHashMap<Connection, PooledConnection> borrowed;
+
+    private final AtomicInteger waiting = new AtomicInteger(0);
+
+    private final AtomicLong acquireCount = new AtomicLong(0);
+
+    private final AtomicLong timeoutCount = new AtomicLong(0);
+
+    private final AtomicLong totalWaitNanos = new AtomicLong(0);
+
+    private final AtomicLong maxWaitNanos = new AtomicLong(0);
+
+    private final AtomicLong leakCount = new AtomicLong(0);
+
+    private Timer timer;
+
+    private volatile boolean closed = false;
+
+    /**
+     * 构造函数。
+     *
+     * @param name 连接池名称。
+     * @param url JDBC URL 。
+     * @param info 连接属性。
+     * @param minConn 最小空闲连接数。
+     * @param maxConn 最大连接数。
+     */
+    public ConnectionPool(String name, String url, Properties info, int minConn, int maxConn) {
+        this.name = name;
+        this.url = url;
+        this.info = info;
+        this.maxConn = Math.max(1, maxConn);
+        this.minConn = Math.max(0, Math.min(minConn, this.maxConn));
+        this.permits = new Semaphore(this.maxConn, true);
+        this.idle = new LinkedBlockingDeque<>();
+        this.borrowed = new ConcurrentHashMap<>();
+    }
+
+    public void setAcquireTimeout(long acquireTimeout) {
+        this.acquireTimeout = acquireTimeout;
+    }
+
+    public void setValidationInterval(long validationInterval) {
+        this.validationInterval = validationInterval;
+    }
+
+    public void setLeakThreshold(long leakThreshold) {
+        this.leakThreshold = leakThreshold;
+    }
+
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * 启动连接池，创建最小数量的连接并启动维护任务。
+     *
+     * @param maintenancePeriod 维护任务的执行周期，单位：毫秒。
+     */
+    public void start(long maintenancePeriod) {
+        this.fill();
+
+        this.timer = new Timer("ConnectionPool-" + this.name, true);
+        this.timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                maintain();
+            }
+        }, maintenancePeriod, maintenancePeriod);
+    }
+
+    /**
+     * 借出连接。
+     *
+     * @return 返回连接，如果等待超时或者无法创建连接返回 {@code null} 。
+     */
+    public Connection get() {
+        if (this.closed) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        this.waiting.incrementAndGet();
+        boolean acquired = false;
+        try {
+            acquired = this.permits.tryAcquire(this.acquireTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.waiting.decrementAndGet();
+        }
+
+        long wait = System.nanoTime() - start;
+        this.totalWaitNanos.addAndGet(wait);
+        long max = this.maxWaitNanos.get();
+        while (wait > max && !this.maxWaitNanos.compareAndSet(max, wait)) {
+            max = this.maxWaitNanos.get();
+        }
+
+        if (!acquired) {
+            this.timeoutCount.incrementAndGet();
+            Logger.w(this.getClass(), "#get - " + this.name + " acquire timeout, active: " + this.borrowed.size()
+                    + ", waiting: " + this.waiting.get());
+            return null;
+        }
+
+        this.acquireCount.incrementAndGet();
+
+        PooledConnection pc = null;
+        while (null == pc) {
+            pc = this.idle.pollFirst();
+            if (null == pc) {
+                pc = this.create();
+                if (null == pc) {
+                    this.permits.release();
+                    return null;
+                }
+            }
+            else if (System.currentTimeMillis() - pc.lastUsed > this.validationInterval && !pc.validate()) {
+                pc.destroy();
+                pc = null;
+            }
+        }
+
+        pc.borrowedTime = System.currentTimeMillis();
+        pc.leakReported = false;
+        pc.borrowTrace = (this.leakThreshold > 0) ? new Throwable("Connection borrowed") : null;
+        this.borrowed.put(pc.connection, pc);
+        return pc.connection;
+    }
+
+    /**
+     * 归还连接。
+     *
+     * @param connection 借出的连接。
+     */
+    public void returnConn(Connection connection) {
+        if (null == connection) {
+            return;
+        }
+
+        PooledConnection pc = this.borrowed.remove(connection);
+        if (null == pc) {
+            // 重复归还或者不属于本连接池
+            return;
+        }
+
+        boolean broken = true;
+        try {
+            broken = connection.isClosed();
+        } catch (SQLException e) {
+            Logger.w(this.getClass(), "#returnConn", e);
+        }
+
+        if (broken || this.closed) {
+            pc.destroy();
+        }
+        else {
+            pc.lastUsed = System.currentTimeMillis();
+            pc.borrowTrace = null;
+            this.idle.offerFirst(pc);
+        }
+
+        this.permits.release();
+    }
+
+    /**
+     * 获取借出连接的预编译语句缓存。
+     *
+     * @param connection 借出的连接。
+     * @return 返回语句缓存。
+     */
+    public StatementCache getStatementCache(Connection connection) {
+        PooledConnection pc = this.borrowed.get(connection);
+        return (null != pc) ? pc.statementCache : null;
+    }
+
+    /**
+     * 关闭连接池。借出的连接在归还时关闭。
+     */
+    public void close() {
+        this.closed = true;
+
+        if (null != this.timer) {
+            this.timer.cancel();
+            this.timer = null;
+        }
+
+        PooledConnection pc = null;
+        while (null != (pc = this.idle.pollFirst())) {
+            pc.destroy();
+        }
+    }
+
+    /**
+     * 生成连接池报告。
+     *
+     * @param reporter 报告人。
+     * @return 返回连接池报告。
+     */
+    public ConnectionPoolReport createReport(String reporter) {
+        ConnectionPoolReport report = new ConnectionPoolReport(reporter, this.name);
+        long acquires = this.acquireCount.get() + this.timeoutCount.get();
+        report.maxConnections = this.maxConn;
+        report.minConnections = this.minConn;
+        report.active = this.borrowed.size();
+        report.idle = this.idle.size();
+        report.waiting = this.waiting.get();
+        report.acquireCount = this.acquireCount.get();
+        report.timeoutCount = this.timeoutCount.get();
+        report.leakCount = this.leakCount.get();
+        report.averageWait = (acquires > 0) ? TimeUnit.NANOSECONDS.toMillis(this.totalWaitNanos.get() / acquires) : 0;
+        report.maxWait = TimeUnit.NANOSECONDS.toMillis(this.maxWaitNanos.get());
+        return report;
+    }
+
+    public int numActive() {
+        return this.borrowed.size();
+    }
+
+    public int numIdle() {
+        return this.idle.size();
+    }
+
+    public int numWaiting() {
+        return this.waiting.get();
+    }
+
+    private void fill() {
+        while (!this.closed && this.idle.size() < this.minConn
+                && this.idle.size() + this.borrowed.size() < this.maxConn) {
+            // 占用许可创建连接，避免与借出操作同时创建导致超出最大连接数
+            if (!this.permits.tryAcquire()) {
+                break;
+            }
+
+            PooledConnection pc = this.create();
+            if (null != pc) {
+                this.idle.offerLast(pc);
+            }
+            this.permits.release();
+
+            if (null == pc) {
+                break;
+            }
+        }
+    }
+
+    private PooledConnection create() {
+        try {
+            Connection connection = DriverManager.getConnection(this.url, this.info);
+            return new PooledConnection(connection, new StatementCache(connection, this.statementCacheSize));
+        } catch (SQLException e) {
+            Logger.e(this.getClass(), "#create - " + this.name, e);
+            return null;
+        }
+    }
+
+    private void maintain() {
+        long now = System.currentTimeMillis();
+
+        // 校验空闲连接，校验期间占用许可，避免借出操作同时创建连接导致超出最大连接数
+        Iterator<PooledConnection> iter = this.idle.iterator();
+        while (iter.hasNext()) {
+            PooledConnection pc = iter.next();
+            if (now - pc.lastUsed <= this.validationInterval) {
+                continue;
+            }
+
+            if (!this.permits.tryAcquire()) {
+                // 没有空闲许可，连接都在使用中
+                break;
+            }
+
+            try {
+                if (this.idle.remove(pc)) {
+                    if (pc.validate()) {
+                        pc.lastUsed = now;
+                        this.idle.offerLast(pc);
+                    }
+                    else {
+                        pc.destroy();
+                    }
+                }
+            } finally {
+                this.permits.release();
+            }
+        }
+
+        // 检测泄漏
+        if (this.leakThreshold > 0) {
+            for (Map.Entry<Connection, PooledConnection> e : this.borrowed.entrySet()) {
+                PooledConnection pc = e.getValue();
+                if (!pc.leakReported && now - pc.borrowedTime > this.leakThreshold) {
+                    pc.leakReported = true;
+                    this.leakCount.incrementAndGet();
+                    Logger.w(this.getClass(), "#maintain - " + this.name + " connection leak detected, borrowed "
+                            + (now - pc.borrowedTime) + " ms", pc.borrowTrace);
+                }
+            }
+        }
+
+        this.fill();
+    }
+
+    /**
+     * 池化的连接。
+     */
+    private class PooledConnection {
+
+        protected final Connection connection;
+
+        protected final StatementCache statementCache;
+
+        protected volatile long lastUsed;
+
+        protected volatile long borrowedTime;
+
+        protected volatile Throwable borrowTrace;
+
+        protected volatile boolean leakReported = false;
+
+        protected PooledConnection(Connection connection, StatementCache statementCache) {
+            this.connection = connection;
+            this.statementCache = statementCache;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        protected boolean validate() {
+            try {
+                return this.connection.isValid(5);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        protected void destroy() {
+            this.statementCache.clear();
+            try {
+                this.connection.close();
+            } catch (SQLException e) {
+                Logger.w(ConnectionPool.class, "#destroy", e);
+            }
+        }
+    }
+}
@@ -26,22 +26,20 @@
 
 package cube.storage;
 
-import cell.core.talk.LiteralBase;
 import cell.util.log.Logger;
 import cube.core.AbstractStorage;
 import cube.core.Conditional;
 import cube.core.Constraint;
+import cube.core.QueryHandler;
 import cube.core.StorageField;
+import cube.core.StorageIndex;
 import cube.util.SQLUtils;
 import org.json.JSONObject;
 
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Properties;
 
 /**
  * MySQL 存储器。
@@ -53,9 +51,18 @@ public class MySQLStorage extends AbstractStorage {
     public final static String CONFIG_SCHEMA = "schema";
     public final static String CONFIG_USER = "user";
     public final static String CONFIG_PASSWORD = "password";
+    public final static String CONFIG_STATEMENT_CACHE_SIZE = "statementCacheSize";
+    public final static String CONFIG_BATCH_SIZE = "batchSize";
+    public final static String CONFIG_MIN_CONNECTIONS = "minConnections";
+    public final static String CONFIG_MAX_CONNECTIONS = "maxConnections";
+    public final static String CONFIG_ACQUIRE_TIMEOUT = "acquireTimeout";
+    public final static String CONFIG_VALIDATION_INTERVAL = "validationInterval";
+    public final static String CONFIG_LEAK_THRESHOLD = "leakThreshold";
 
     private ConnectionPool pool;
 
+    private int batchSize = BatchInserter.DEFAULT_BATCH_SIZE;
+
     public MySQLStorage(String name) {
         super(name);
     }
@@ -72,7 +79,34 @@ public class MySQLStorage extends AbstractStorage {
             e.printStackTrace();
         }
 
-        this.pool = new ConnectionPool(8, this.config);
+        if (this.config.has(CONFIG_BATCH_SIZE)) {
+            this.batchSize = this.config.getInt(CONFIG_BATCH_SIZE);
+        }
+
+        StringBuilder url = new StringBuilder();
+        url.append("jdbc:mysql://");
+        url.append(this.config.has(CONFIG_HOST) ? this.config.getString(CONFIG_HOST) : "127.0.0.1");
+        url.append(":");
+        url.append(this.config.has(CONFIG_PORT) ? this.config.getInt(CONFIG_PORT) : 3306);
+        url.append("/");
+        url.append(this.config.has(CONFIG_SCHEMA) ? this.config.getString(CONFIG_SCHEMA) : "cube");
+        url.append("?useSSL=false&allowPublicKeyRetrieval=true&useUnicode=true&characterEncoding=utf8");
+        // 使用服务器端预编译，配合语句缓存复用执行计划
+        url.append("&useServerPrepStmts=true");
+        // 将批量插入改写为多行 INSERT 语句
+        url.append("&rewriteBatchedStatements=true");
+
+        Properties info = new Properties();
+        info.setProperty("user", this.config.getString(CONFIG_USER));
+        info.setProperty("password", this.config.getString(CONFIG_PASSWORD));
+
+        this.pool = new ConnectionPool(this.getName(), url.toString(), info,
+                this.config.optInt(CONFIG_MIN_CONNECTIONS, 2), this.config.optInt(CONFIG_MAX_CONNECTIONS, 8));
+        this.pool.setAcquireTimeout(this.config.optLong(CONFIG_ACQUIRE_TIMEOUT, 10L * 1000L));
+        this.pool.setValidationInterval(this.config.optLong(CONFIG_VALIDATION_INTERVAL, 30L * 1000L));
+        this.pool.setLeakThreshold(this.config.optLong(CONFIG_LEAK_THRESHOLD, 0));
+        this.pool.setStatementCacheSize(this.config.optInt(CONFIG_STATEMENT_CACHE_SIZE, StatementCache.DEFAULT_CAPACITY));
+        this.pool.start(60L * 1000L);
     }
 
     @Override
@@ -82,11 +116,25 @@ public class MySQLStorage extends AbstractStorage {
         }
 
         this.pool.close();
+        this.pool = null;
+    }
+
+    /**
+     * 获取连接池。
+     *
+     * @return 返回连接池，如果存储器未打开返回 {@code null} 。
+     */
+    public ConnectionPool getConnectionPool() {
+        return this.pool;
     }
 
     @Override
     public boolean exist(String table) {
         Connection connection = this.pool.get();
+        if (null == connection) {
+            return false;
+        }
+
         Statement statement = null;
         try {
             statement = connection.createStatement();
@@ -114,6 +162,10 @@ public class MySQLStorage extends AbstractStorage {
         }
 
         Connection connection = this.pool.get();
+        if (null == connection) {
+            return false;
+        }
+
         // 拼写 SQL 语句
         String sql = SQLUtils.spellCreateTable(table, fields);
         Statement statement = null;
@@ -137,27 +189,55 @@ public class MySQLStorage extends AbstractStorage {
         return true;
     }
 
-    private void fixAutoIncrement(StorageField field) {
-        Constraint[] constraints = field.getConstraints();
-        for (int i = 0; i < constraints.length; ++i) {
-            Constraint constraint = constraints[i];
-            if (constraint == Constraint.AUTOINCREMENT) {
-                constraints[i] = Constraint.AUTO_INCREMENT;
-            }
+    @Override
+    public boolean executeCreate(String table, StorageField[] fields, StorageIndex[] indexes) {
+        if (!this.executeCreate(table, fields)) {
+            return false;
+        }
+
+        boolean result = true;
+        for (StorageIndex index : indexes) {
+            result = this.executeCreateIndex(table, index) && result;
         }
+        return result;
     }
 
     @Override
-    public boolean executeInsert(String table, StorageField[] fields) {
+    public boolean executeCreateIndex(String table, StorageIndex index) {
         Connection connection = this.pool.get();
-        // 拼写 SQL 语句
-        String sql = SQLUtils.spellInsert(table, fields);
-        Statement statement = null;
+        if (null == connection) {
+            return false;
+        }
+
+        String name = index.getName(table);
+        String sql = null;
+        PreparedStatement statement = null;
         try {
-            statement = connection.createStatement();
-            statement.executeUpdate(sql);
+            // MySQL 不支持 CREATE INDEX IF NOT EXISTS ，先查询索引是否存在
+            statement = connection.prepareStatement("SELECT COUNT(*) FROM information_schema.STATISTICS" +
+                    " WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND INDEX_NAME = ?");
+            statement.setString(1, table);
+            statement.setString(2, name);
+            ResultSet rs = statement.executeQuery();
+            boolean exists = rs.next() && rs.getInt(1) > 0;
+            rs.close();
+            statement.close();
+            statement = null;
+
+            if (exists) {
+                return true;
+            }
+
+            sql = SQLUtils.spellCreateIndex(table, index, false);
+            statement = connection.prepareStatement(sql);
+            statement.executeUpdate();
         } catch (SQLException e) {
-            Logger.e(this.getClass(), "#executeInsert - SQL: " + sql, e);
+            // 1061 - Duplicate key name
+            if (e.getErrorCode() == 1061) {
+                return true;
+            }
+
+            Logger.e(this.getClass(), "#executeCreateIndex - SQL: " + sql, e);
             return false;
         } finally {
             if (null != statement) {
@@ -169,54 +249,34 @@ public class MySQLStorage extends AbstractStorage {
 
             this.pool.returnConn(connection);
         }
+
         return true;
     }
 
     @Override
-    public boolean executeInsert(String table, List<StorageField[]> fieldsList) {
+    public boolean executeAddColumn(String table, StorageField field) {
         Connection connection = this.pool.get();
+        if (null == connection) {
+            return false;
+        }
 
-        boolean success = true;
-        for (StorageField[] fields : fieldsList) {
-            // 拼写 SQL 语句
-            String sql = SQLUtils.spellInsert(table, fields);
+        String sql = null;
+        Statement statement = null;
+        try {
+            statement = connection.createStatement();
 
-            Statement statement = null;
             try {
-                statement = connection.createStatement();
-                statement.executeUpdate(sql);
+                // 字段已存在
+                statement.executeQuery("SELECT `" + field.getName() + "` FROM " + table + " LIMIT 1").close();
+                return true;
             } catch (SQLException e) {
-                Logger.e(this.getClass(), "#executeInsert - SQL: " + sql, e);
-                success = false;
-                continue;
-            } finally {
-                if (null != statement) {
-                    try {
-                        statement.close();
-                    } catch (SQLException e) {
-                    }
-                }
+                // 字段不存在
             }
-        }
-
-        this.pool.returnConn(connection);
-
-        return success;
-    }
-
-    @Override
-    public boolean executeUpdate(String table, StorageField[] fields, Conditional[] conditionals) {
-        Connection connection = this.pool.get();
-
-        // 拼写 SQL 语句
-        String sql = SQLUtils.spellUpdate(table, fields, conditionals);
 
-        Statement statement = null;
-        try {
-            statement = connection.createStatement();
+            sql = SQLUtils.spellAddColumn(table, field);
             statement.executeUpdate(sql);
         } catch (SQLException e) {
-            Logger.e(this.getClass(), "#executeUpdate - SQL: " + sql, e);
+            Logger.e(this.getClass(), "#executeAddColumn - SQL: " + sql, e);
             return false;
         } finally {
             if (null != statement) {
@@ -228,34 +288,59 @@ public class MySQLStorage extends AbstractStorage {
 
             this.pool.returnConn(connection);
         }
+
         return true;
     }
 
-    @Override
-    public boolean executeDelete(String table, Conditional[] conditionals) {
-        Connection connection = this.pool.get();
+    private void fixAutoIncrement(StorageField field) {
+        Constraint[] constraints = field.getConstraints();
+        for (int i = 0; i < constraints.length; ++i) {
+            Constraint constraint = constraints[i];
+            if (constraint == Constraint.AUTOINCREMENT) {
+                constraints[i] = Constraint.AUTO_INCREMENT;
+            }
+        }
+    }
 
+    @Override
+    public boolean executeInsert(String table, StorageField[] fields) {
         // 拼写 SQL 语句
-        String sql = SQLUtils.spellDelete(table, conditionals);
+        String sql = SQLUtils.spellPreparedInsert(table, fields);
+        return this.executePreparedUpdate("executeInsert", sql, SQLUtils.collectParameters(fields, null));
+    }
 
-        Statement statement = null;
-        try {
-            statement = connection.createStatement();
-            statement.executeUpdate(sql);
-        } catch (SQLException e) {
-            Logger.e(this.getClass(), "#executeDelete - SQL: " + sql, e);
+    @Override
+    public boolean executeInsert(String table, List<StorageField[]> fieldsList) {
+        return this.executeInsert(table, fieldsList, null);
+    }
+
+    @Override
+    public boolean executeInsert(String table, List<StorageField[]> fieldsList, List<Integer> failedRows) {
+        Connection connection = this.pool.get();
+        if (null == connection) {
             return false;
-        } finally {
-            if (null != statement) {
-                try {
-                    statement.close();
-                } catch (SQLException e) {
-                }
-            }
+        }
 
+        try {
+            return BatchInserter.execute(this.pool.getStatementCache(connection), table, fieldsList,
+                    this.batchSize, failedRows);
+        } finally {
             this.pool.returnConn(connection);
         }
-        return true;
+    }
+
+    @Override
+    public boolean executeUpdate(String table, StorageField[] fields, Conditional[] conditionals) {
+        // 拼写 SQL 语句
+        String sql = SQLUtils.spellPreparedUpdate(table, fields, conditionals);
+        return this.executePreparedUpdate("executeUpdate", sql, SQLUtils.collectParameters(fields, conditionals));
+    }
+
+    @Override
+    public boolean executeDelete(String table, Conditional[] conditionals) {
+        // 拼写 SQL 语句
+        String sql = SQLUtils.spellPreparedDelete(table, conditionals);
+        return this.executePreparedUpdate("executeDelete", sql, SQLUtils.collectParameters(null, conditionals));
     }
 
     @Override
@@ -265,250 +350,131 @@ public class MySQLStorage extends AbstractStorage {
 
     @Override
     public List<StorageField[]> executeQuery(String table, StorageField[] fields, Conditional[] conditionals) {
-        Connection connection = this.pool.get();
-
-        ArrayList<StorageField[]> result = new ArrayList<>();
-
         // 拼写 SQL 语句
-        String sql = SQLUtils.spellSelect(table, fields, conditionals);
-
-        Statement statement = null;
-        try {
-            statement = connection.createStatement();
-            ResultSet rs = statement.executeQuery(sql);
-            while (rs.next()) {
-                StorageField[] row = new StorageField[fields.length];
-
-                for (int i = 0; i < fields.length; ++i) {
-                    StorageField sf = fields[i];
-                    LiteralBase literal = sf.getLiteralBase();
-                    if (literal == LiteralBase.STRING) {
-                        String value = rs.getString(sf.getName());
-                        row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
-                    }
-                    else if (literal == LiteralBase.LONG) {
-                        long value = rs.getLong(sf.getName());
-                        row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
-                    }
-                    else if (literal == LiteralBase.INT) {
-                        int value = rs.getInt(sf.getName());
-                        row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
-                    }
-                    else if (literal == LiteralBase.BOOL) {
-                        boolean value = rs.getBoolean(sf.getName());
-                        row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
-                    }
-                }
-
-                result.add(row);
-            }
-        } catch (SQLException e) {
-            Logger.w(this.getClass(), "#executeQuery - SQL: " + sql, e);
-        } finally {
-            if (null != statement) {
-                try {
-                    statement.close();
-                } catch (SQLException e) {
-                }
-            }
-
-            this.pool.returnConn(connection);
-        }
-        return result;
+        String sql = SQLUtils.spellPreparedSelect(table, fields, conditionals);
+        return this.executePreparedQuery(sql, fields, SQLUtils.collectParameters(null, conditionals));
     }
 
     @Override
     public List<StorageField[]> executeQuery(String[] tables, StorageField[] fields, Conditional[] conditionals) {
-        ArrayList<StorageField[]> result = new ArrayList<>();
+        // 拼写 SQL 语句
+        String sql = SQLUtils.spellPreparedSelect(tables, fields, conditionals);
+        return this.executePreparedQuery(sql, fields, SQLUtils.collectParameters(null, conditionals));
+    }
+
+    @Override
+    public boolean executeQuery(String table, StorageField[] fields, Conditional[] conditionals, QueryHandler handler) {
+        // 拼写 SQL 语句
+        String sql = SQLUtils.spellPreparedSelect(table, fields, conditionals);
 
         Connection connection = this.pool.get();
+        if (null == connection) {
+            Logger.w(this.getClass(), "#executeQuery - No connection available, SQL: " + sql);
+            return false;
+        }
 
-        // 拼写 SQL 语句
-        String sql = SQLUtils.spellSelect(tables, fields, conditionals);
+        StatementCache cache = this.pool.getStatementCache(connection);
 
-        Statement statement = null;
+        PreparedStatement statement = null;
+        ResultSet rs = null;
         try {
-            statement = connection.createStatement();
-            ResultSet rs = statement.executeQuery(sql);
+            statement = cache.prepare(sql);
+            // 逐行从服务器读取数据，不在客户端缓存整个结果集
+            statement.setFetchSize(Integer.MIN_VALUE);
+            SQLUtils.bindParameters(statement, SQLUtils.collectParameters(null, conditionals));
+            rs = statement.executeQuery();
+
+            StorageField[] row = new StorageField[fields.length];
             while (rs.next()) {
-                StorageField[] row = new StorageField[fields.length];
-
-                for (int i = 0; i < fields.length; ++i) {
-                    StorageField sf = fields[i];
-                    LiteralBase literal = sf.getLiteralBase();
-
-                    if (literal == LiteralBase.STRING) {
-                        String value = rs.getString(sf.getName());
-                        row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
-                    }
-                    else if (literal == LiteralBase.LONG) {
-                        long value = rs.getLong(sf.getName());
-                        row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
-                    }
-                    else if (literal == LiteralBase.INT) {
-                        int value = rs.getInt(sf.getName());
-                        row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
-                    }
-                    else if (literal == LiteralBase.BOOL) {
-                        boolean value = rs.getBoolean(sf.getName());
-                        row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
-                    }
+                StorageFields.readRow(rs, fields, row);
+                if (!handler.handle(row)) {
+                    break;
                 }
-
-                result.add(row);
             }
         } catch (SQLException e) {
+            cache.invalidate(sql);
+            statement = null;
             Logger.w(this.getClass(), "#executeQuery - SQL: " + sql, e);
+            return false;
         } finally {
+            if (null != rs) {
+                try {
+                    rs.close();
+                } catch (SQLException e) {
+                }
+            }
+
             if (null != statement) {
                 try {
-                    statement.close();
+                    statement.setFetchSize(0);
                 } catch (SQLException e) {
+                    cache.invalidate(sql);
                 }
             }
 
             this.pool.returnConn(connection);
         }
 
-        return result;
+        return true;
     }
 
-
-    /**
-     * 连接池。
-     */
-    protected class ConnectionPool extends TimerTask {
-
-        private int maxConn = 4;
-
-        private JSONObject config;
-
-        private ConcurrentLinkedQueue<Connection> connections;
-
-        private AtomicInteger count;
-
-        private Timer timer;
-
-        protected ConnectionPool(int maxConn, JSONObject config) {
-            this.maxConn = maxConn;
-            this.config = config;
-            this.connections = new ConcurrentLinkedQueue<>();
-            this.count = new AtomicInteger(0);
-            this.timer = new Timer();
-            this.timer.schedule(this, 60L * 1000L, 60L * 1000L);
+    private boolean executePreparedUpdate(String method, String sql, List<StorageField> parameters) {
+        Connection connection = this.pool.get();
+        if (null == connection) {
+            Logger.e(this.getClass(), "#" + method + " - No connection available, SQL: " + sql);
+            return false;
         }
 
-        protected Connection get() {
-            if (this.count.get() >= this.maxConn) {
-                synchronized (this) {
-                    try {
-                        this.wait(30000L);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-
-            Connection conn = this.connections.poll();
-            if (null != conn) {
-                try {
-                    if (conn.isClosed()) {
-                        conn = null;
-                    }
-                } catch (SQLException e) {
-                    Logger.w(this.getClass(), "#get", e);
-                }
-            }
-
-            if (null == conn) {
-                StringBuilder url = new StringBuilder();
-                url.append("jdbc:mysql://");
-                url.append(this.config.has(CONFIG_HOST) ? this.config.getString(CONFIG_HOST) : "127.0.0.1");
-                url.append(":");
-                url.append(this.config.has(CONFIG_PORT) ? this.config.getInt(CONFIG_PORT) : 3306);
-                url.append("/");
-                url.append(this.config.has(CONFIG_SCHEMA) ? this.config.getString(CONFIG_SCHEMA) : "cube");
-                url.append("?useSSL=false&allowPublicKeyRetrieval=true&useUnicode=true&characterEncoding=utf8");
+        StatementCache cache = this.pool.getStatementCache(connection);
 
-                try {
-                   conn = DriverManager.getConnection(url.toString(),
-                            this.config.getString(CONFIG_USER), this.config.getString(CONFIG_PASSWORD));
-                } catch (SQLException e) {
-                    Logger.e(this.getClass(), "#open", e);
-                }
-            }
-
-            this.count.incrementAndGet();
-            return conn;
+        try {
+            PreparedStatement statement = cache.prepare(sql);
+            SQLUtils.bindParameters(statement, parameters);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            cache.invalidate(sql);
+            Logger.e(this.getClass(), "#" + method + " - SQL: " + sql, e);
+            return false;
+        } finally {
+            this.pool.returnConn(connection);
         }
 
-        protected void returnConn(Connection connection) {
-            try {
-                if (!connection.isClosed()) {
-                    this.connections.offer(connection);
-                }
-            } catch (SQLException e) {
-                Logger.e(this.getClass(), "#returnConn", e);
-            }
+        return true;
+    }
 
-            if (this.count.get() >= this.maxConn) {
-                synchronized (this) {
-                    this.notifyAll();
-                }
-            }
+    private List<StorageField[]> executePreparedQuery(String sql, StorageField[] fields, List<StorageField> parameters) {
+        ArrayList<StorageField[]> result = new ArrayList<>();
 
-            this.count.decrementAndGet();
+        Connection connection = this.pool.get();
+        if (null == connection) {
+            Logger.w(this.getClass(), "#executeQuery - No connection available, SQL: " + sql);
+            return result;
         }
 
-        protected void close() {
-            this.timer.cancel();
+        StatementCache cache = this.pool.getStatementCache(connection);
 
-            this.count.set(0);
-
-            synchronized (this) {
-                this.notifyAll();
+        ResultSet rs = null;
+        try {
+            PreparedStatement statement = cache.prepare(sql);
+            SQLUtils.bindParameters(statement, parameters);
+            rs = statement.executeQuery();
+            while (rs.next()) {
+                result.add(StorageFields.readRow(rs, fields));
             }
-
-            for (Connection conn : this.connections) {
+        } catch (SQLException e) {
+            cache.invalidate(sql);
+            Logger.w(this.getClass(), "#executeQuery - SQL: " + sql, e);
+        } finally {
+            if (null != rs) {
                 try {
-                    conn.close();
+                    rs.close();
                 } catch (SQLException e) {
-                    e.printStackTrace();
                 }
             }
 
-            this.connections.clear();
+            this.pool.returnConn(connection);
         }
 
-        @Override
-        public void run() {
-            List<Connection> tmpList = new ArrayList<>();
-            Connection conn = this.connections.poll();
-            while (null != conn) {
-                Statement statement = null;
-                try {
-                    statement = conn.createStatement();
-                    ResultSet rs = statement.executeQuery("select version()");
-                    if (rs.next()) {
-//                        Logger.d(this.getClass(), "Connection keep alive: " + rs.getString("version()"));
-                    }
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                } finally {
-                    if (null != statement) {
-                        try {
-                            statement.close();
-                        } catch (SQLException e) {
-                        }
-                    }
-                }
-                tmpList.add(conn);
-
-                conn = this.connections.poll();
-            }
-
-            this.connections.addAll(tmpList);
-            tmpList.clear();
-        }
+        return result;
     }
 }
@@ -31,7 +31,9 @@ import cell.util.log.Logger;
 import cube.core.AbstractStorage;
 import cube.core.Conditional;
 import cube.core.Constraint;
+import cube.core.QueryHandler;
 import cube.core.StorageField;
+import cube.core.StorageIndex;
 import cube.util.SQLUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -39,6 +41,7 @@ import org.json.JSONObject;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
 
 /**
  * 基于 SQLite 的存储器。
@@ -46,9 +49,22 @@ import java.util.List;
 public class SQLiteStorage extends AbstractStorage {
 
     public final static String CONFIG_FILE = "file";
+    public final static String CONFIG_STATEMENT_CACHE_SIZE = "statementCacheSize";
+    public final static String CONFIG_BATCH_SIZE = "batchSize";
+    public final static String CONFIG_CONCURRENT_READ = "concurrentRead";
+    public final static String CONFIG_READERS = "readers";
 
     private Connection connection = null;
 
+    /**
+     * 只读连接池。启用并发读模式时，查询使用只读连接执行，不与写操作竞争同一个连接。
+     */
+    private ConnectionPool readerPool = null;
+
+    private int batchSize = BatchInserter.DEFAULT_BATCH_SIZE;
+
+    private StatementCache statementCache = null;
+
     public SQLiteStorage(String name) {
         super(name);
     }
@@ -68,11 +84,75 @@ public class SQLiteStorage extends AbstractStorage {
             return;
         }
 
+        if (config.has(CONFIG_BATCH_SIZE)) {
+            this.batchSize = config.getInt(CONFIG_BATCH_SIZE);
+        }
+
         try {
             this.connection = DriverManager.getConnection("jdbc:sqlite:" + file);
+            this.statementCache = new StatementCache(this.connection, config.has(CONFIG_STATEMENT_CACHE_SIZE) ?
+                    config.getInt(CONFIG_STATEMENT_CACHE_SIZE) : StatementCache.DEFAULT_CAPACITY);
         } catch (SQLException e) {
             Logger.e(this.getClass(), "Open SQLite Storage", e);
+            return;
         }
+
+        if (config.optBoolean(CONFIG_CONCURRENT_READ, false)) {
+            this.openReaders(file, config);
+        }
+    }
+
+    /**
+     * 启用 WAL 日志模式，并创建只读连接池。
+     *
+     * @param file 数据库文件。
+     * @param config 存储配置。
+     */
+    private void openReaders(String file, JSONObject config) {
+        Statement statement = null;
+        try {
+            statement = this.connection.createStatement();
+            ResultSet rs = statement.executeQuery("PRAGMA journal_mode=WAL");
+            String mode = rs.next() ? rs.getString(1) : null;
+            rs.close();
+            if (!"wal".equalsIgnoreCase(mode)) {
+                Logger.w(this.getClass(), "SQLite storage \"" + this.getName() + "\" can not enable WAL: " + mode);
+                return;
+            }
+        } catch (SQLException e) {
+            Logger.e(this.getClass(), "Enable SQLite WAL", e);
+            return;
+        } finally {
+            if (null != statement) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
+
+        int readers = config.optInt(CONFIG_READERS, 4);
+
+        Properties info = new Properties();
+        // SQLITE_OPEN_READONLY
+        info.setProperty("open_mode", "1");
+        info.setProperty("busy_timeout", "10000");
+
+        this.readerPool = new ConnectionPool(this.getName() + "-reader", "jdbc:sqlite:" + file, info, 1, readers);
+        this.readerPool.setStatementCacheSize(config.optInt(CONFIG_STATEMENT_CACHE_SIZE, StatementCache.DEFAULT_CAPACITY));
+        // 本地文件连接不会空闲断开，也不需要检测泄漏
+        this.readerPool.setValidationInterval(Long.MAX_VALUE);
+        this.readerPool.setLeakThreshold(0);
+        this.readerPool.start(60L * 1000L);
+    }
+
+    /**
+     * 是否启用了并发读模式。
+     *
+     * @return 如果启用了并发读模式返回 {@code true} 。
+     */
+    public boolean isConcurrentRead() {
+        return (null != this.readerPool);
     }
 
     @Override
@@ -81,6 +161,18 @@ public class SQLiteStorage extends AbstractStorage {
             return;
         }
 
+        if (null != this.readerPool) {
+            this.readerPool.close();
+            this.readerPool = null;
+        }
+
+        synchronized (this.connection) {
+            if (null != this.statementCache) {
+                this.statementCache.clear();
+                this.statementCache = null;
+            }
+        }
+
         try {
             this.connection.close();
         } catch (SQLException e) {
@@ -150,24 +242,22 @@ public class SQLiteStorage extends AbstractStorage {
         return true;
     }
 
-    private void fixBigintAndAutoIncrement(StorageField field) {
-        if (field.getLiteralBase() == LiteralBase.LONG) {
-            field.resetLiteralBase(LiteralBase.INT);
+    @Override
+    public boolean executeCreate(String table, StorageField[] fields, StorageIndex[] indexes) {
+        if (!this.executeCreate(table, fields)) {
+            return false;
         }
 
-        Constraint[] constraints = field.getConstraints();
-        for (int i = 0; i < constraints.length; ++i) {
-            Constraint constraint = constraints[i];
-            if (constraint == Constraint.AUTO_INCREMENT) {
-                constraints[i] = Constraint.AUTOINCREMENT;
-            }
+        boolean result = true;
+        for (StorageIndex index : indexes) {
+            result = this.executeCreateIndex(table, index) && result;
         }
+        return result;
     }
 
     @Override
-    public boolean executeInsert(String table, StorageField[] fields) {
-        // 拼写 SQL 语句
-        String sql = SQLUtils.spellInsert(table, fields);
+    public boolean executeCreateIndex(String table, StorageIndex index) {
+        String sql = SQLUtils.spellCreateIndex(table, index, true);
 
         Statement statement = null;
 
@@ -187,51 +277,35 @@ public class SQLiteStorage extends AbstractStorage {
                 }
             }
         }
-        return true;
-    }
-
-    @Override
-    public boolean executeInsert(String table, List<StorageField[]> fieldsList) {
-        boolean success = true;
-
-        synchronized (this.connection) {
-            for (StorageField[] fields : fieldsList) {
-                // 拼写 SQL 语句
-                String sql = SQLUtils.spellInsert(table, fields);
-
-                Statement statement = null;
-                try {
-                    statement = this.connection.createStatement();
-                    statement.executeUpdate(sql);
-                } catch (SQLException e) {
-                    Logger.e(this.getClass(), "SQL: " + sql, e);
-                    success = false;
-                    continue;
-                } finally {
-                    if (null != statement) {
-                        try {
-                            statement.close();
-                        } catch (SQLException e) {
-                        }
-                    }
-                }
-            }
-        }
 
-        return success;
+        return true;
     }
 
     @Override
-    public boolean executeUpdate(String table, StorageField[] fields, Conditional[] conditionals) {
-        // 拼写 SQL 语句
-        String sql = SQLUtils.spellUpdate(table, fields, conditionals);
+    public boolean executeAddColumn(String table, StorageField field) {
+        this.fixBigintAndAutoIncrement(field);
 
+        String sql = null;
         Statement statement = null;
 
         synchronized (this.connection) {
             try {
                 statement = this.connection.createStatement();
+
+                sql = "PRAGMA table_info(" + table + ")";
+                if (this.existsColumn(statement, table, field.getName())) {
+                    // 字段已存在
+                    return true;
+                }
+
+                sql = SQLUtils.spellAddColumn(table, field);
                 statement.executeUpdate(sql);
+
+                sql = "PRAGMA table_info(" + table + ")";
+                if (!this.existsColumn(statement, table, field.getName())) {
+                    Logger.e(this.getClass(), "Add column failed: " + table + "." + field.getName());
+                    return false;
+                }
             } catch (SQLException e) {
                 Logger.e(this.getClass(), "SQL: " + sql, e);
                 return false;
@@ -248,30 +322,77 @@ public class SQLiteStorage extends AbstractStorage {
         return true;
     }
 
+    /**
+     * 使用 {@code PRAGMA table_info} 判断字段是否存在。
+     * 不能使用查询字段的方式，SQLite 会将不存在的双引号标识符视为字符串常量。
+     *
+     * @param statement
+     * @param table
+     * @param column
+     * @return
+     * @throws SQLException
+     */
+    private boolean existsColumn(Statement statement, String table, String column) throws SQLException {
+        ResultSet rs = statement.executeQuery("PRAGMA table_info(" + table + ")");
+        try {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) {
+                    return true;
+                }
+            }
+        } finally {
+            rs.close();
+        }
+
+        return false;
+    }
+
+    private void fixBigintAndAutoIncrement(StorageField field) {
+        if (field.getLiteralBase() == LiteralBase.LONG) {
+            field.resetLiteralBase(LiteralBase.INT);
+        }
+
+        Constraint[] constraints = field.getConstraints();
+        for (int i = 0; i < constraints.length; ++i) {
+            Constraint constraint = constraints[i];
+            if (constraint == Constraint.AUTO_INCREMENT) {
+                constraints[i] = Constraint.AUTOINCREMENT;
+            }
+        }
+    }
+
     @Override
-    public boolean executeDelete(String table, Conditional[] conditionals) {
+    public boolean executeInsert(String table, StorageField[] fields) {
         // 拼写 SQL 语句
-        String sql = SQLUtils.spellDelete(table, conditionals);
+        String sql = SQLUtils.spellPreparedInsert(table, fields);
+        return this.executePreparedUpdate(sql, SQLUtils.collectParameters(fields, null));
+    }
 
-        Statement statement = null;
+    @Override
+    public boolean executeInsert(String table, List<StorageField[]> fieldsList) {
+        return this.executeInsert(table, fieldsList, null);
+    }
 
+    @Override
+    public boolean executeInsert(String table, List<StorageField[]> fieldsList, List<Integer> failedRows) {
         synchronized (this.connection) {
-            try {
-                statement = this.connection.createStatement();
-                statement.executeUpdate(sql);
-            } catch (SQLException e) {
-                Logger.e(this.getClass(), "SQL: " + sql, e);
-                return false;
-            } finally {
-                if (null != statement) {
-                    try {
-                        statement.close();
-                    } catch (SQLException e) {
-                    }
-                }
-            }
+            // 所有行在同一个事务里提交，避免逐行的隐式事务
+            return BatchInserter.execute(this.statementCache, table, fieldsList, this.batchSize, failedRows);
         }
-        return true;
+    }
+
+    @Override
+    public boolean executeUpdate(String table, StorageField[] fields, Conditional[] conditionals) {
+        // 拼写 SQL 语句
+        String sql = SQLUtils.spellPreparedUpdate(table, fields, conditionals);
+        return this.executePreparedUpdate(sql, SQLUtils.collectParameters(fields, conditionals));
+    }
+
+    @Override
+    public boolean executeDelete(String table, Conditional[] conditionals) {
+        // 拼写 SQL 语句
+        String sql = SQLUtils.spellPreparedDelete(table, conditionals);
+        return this.executePreparedUpdate(sql, SQLUtils.collectParameters(null, conditionals));
     }
 
     @Override
@@ -281,104 +402,131 @@ public class SQLiteStorage extends AbstractStorage {
 
     @Override
     public List<StorageField[]> executeQuery(String table, StorageField[] fields, Conditional[] conditionals) {
-        ArrayList<StorageField[]> result = new ArrayList<>();
+        // 拼写 SQL 语句
+        String sql = SQLUtils.spellPreparedSelect(table, fields, conditionals);
+        return this.executePreparedQuery(sql, fields, SQLUtils.collectParameters(null, conditionals));
+    }
 
+    @Override
+    public List<StorageField[]> executeQuery(String[] tables, StorageField[] fields, Conditional[] conditionals) {
         // 拼写 SQL 语句
-        String sql = SQLUtils.spellSelect(table, fields, conditionals);
+        String sql = SQLUtils.spellPreparedSelect(tables, fields, conditionals);
+        return this.executePreparedQuery(sql, fields, SQLUtils.collectParameters(null, conditionals));
+    }
 
-        Statement statement = null;
+    @Override
+    public boolean executeQuery(String table, StorageField[] fields, Conditional[] conditionals, QueryHandler handler) {
+        // 拼写 SQL 语句
+        String sql = SQLUtils.spellPreparedSelect(table, fields, conditionals);
+        List<StorageField> parameters = SQLUtils.collectParameters(null, conditionals);
+
+        ConnectionPool pool = this.readerPool;
+        if (null != pool) {
+            Connection reader = pool.get();
+            if (null != reader) {
+                try {
+                    return this.streamRows(pool.getStatementCache(reader), sql, fields, parameters, handler);
+                } finally {
+                    pool.returnConn(reader);
+                }
+            }
+        }
 
         synchronized (this.connection) {
-            try {
-                statement = this.connection.createStatement();
-                ResultSet rs = statement.executeQuery(sql);
-                while (rs.next()) {
-                    StorageField[] row = new StorageField[fields.length];
-
-                    for (int i = 0; i < fields.length; ++i) {
-                        StorageField sf = fields[i];
-                        LiteralBase literal = sf.getLiteralBase();
-                        if (literal == LiteralBase.STRING) {
-                            String value = rs.getString(sf.getName());
-                            row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
-                        } else if (literal == LiteralBase.LONG) {
-                            long value = rs.getLong(sf.getName());
-                            row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
-                        } else if (literal == LiteralBase.INT) {
-                            int value = rs.getInt(sf.getName());
-                            row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
-                        } else if (literal == LiteralBase.BOOL) {
-                            boolean value = rs.getBoolean(sf.getName());
-                            row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
-                        }
-                    }
+            return this.streamRows(this.statementCache, sql, fields, parameters, handler);
+        }
+    }
 
-                    result.add(row);
-                }
+    private boolean executePreparedUpdate(String sql, List<StorageField> parameters) {
+        synchronized (this.connection) {
+            try {
+                PreparedStatement statement = this.statementCache.prepare(sql);
+                SQLUtils.bindParameters(statement, parameters);
+                statement.executeUpdate();
             } catch (SQLException e) {
-                Logger.d(this.getClass(), e.getMessage());
-            } finally {
-                if (null != statement) {
-                    try {
-                        statement.close();
-                    } catch (SQLException e) {
-                    }
-                }
+                this.statementCache.invalidate(sql);
+                Logger.e(this.getClass(), "SQL: " + sql, e);
+                return false;
             }
         }
 
-        return result;
+        return true;
     }
 
-    @Override
-    public List<StorageField[]> executeQuery(String[] tables, StorageField[] fields, Conditional[] conditionals) {
+    private List<StorageField[]> executePreparedQuery(String sql, StorageField[] fields, List<StorageField> parameters) {
         ArrayList<StorageField[]> result = new ArrayList<>();
 
-        // 拼写 SQL 语句
-        String sql = SQLUtils.spellSelect(tables, fields, conditionals);
-
-        Statement statement = null;
+        ConnectionPool pool = this.readerPool;
+        if (null != pool) {
+            Connection reader = pool.get();
+            if (null != reader) {
+                try {
+                    this.readRows(pool.getStatementCache(reader), sql, fields, parameters, result);
+                } finally {
+                    pool.returnConn(reader);
+                }
+                return result;
+            }
+        }
 
         synchronized (this.connection) {
-            try {
-                statement = this.connection.createStatement();
-                ResultSet rs = statement.executeQuery(sql);
-                while (rs.next()) {
-                    StorageField[] row = new StorageField[fields.length];
-
-                    for (int i = 0; i < fields.length; ++i) {
-                        StorageField sf = fields[i];
-                        LiteralBase literal = sf.getLiteralBase();
-
-                        if (literal == LiteralBase.STRING) {
-                            String value = rs.getString(sf.getName());
-                            row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
-                        } else if (literal == LiteralBase.LONG) {
-                            long value = rs.getLong(sf.getName());
-                            row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
-                        } else if (literal == LiteralBase.INT) {
-                            int value = rs.getInt(sf.getName());
-                            row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
-                        } else if (literal == LiteralBase.BOOL) {
-                            boolean value = rs.getBoolean(sf.getName());
-                            row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
-                        }
-                    }
+            this.readRows(this.statementCache, sql, fields, parameters, result);
+        }
+
+        return result;
+    }
 
-                    result.add(row);
+    private void readRows(StatementCache cache, String sql, StorageField[] fields, List<StorageField> parameters,
+                          List<StorageField[]> result) {
+        ResultSet rs = null;
+        try {
+            PreparedStatement statement = cache.prepare(sql);
+            SQLUtils.bindParameters(statement, parameters);
+            rs = statement.executeQuery();
+            while (rs.next()) {
+                result.add(StorageFields.readRow(rs, fields));
+            }
+        } catch (SQLException e) {
+            cache.invalidate(sql);
+            Logger.d(this.getClass(), e.getMessage());
+        } finally {
+            if (null != rs) {
+                try {
+                    rs.close();
+                } catch (SQLException e) {
                 }
-            } catch (SQLException e) {
-                Logger.d(this.getClass(), e.getMessage());
-            } finally {
-                if (null != statement) {
-                    try {
-                        statement.close();
-                    } catch (SQLException e) {
-                    }
+            }
+        }
+    }
+
+    private boolean streamRows(StatementCache cache, String sql, StorageField[] fields, List<StorageField> parameters,
+                               QueryHandler handler) {
+        ResultSet rs = null;
+        try {
+            PreparedStatement statement = cache.prepare(sql);
+            SQLUtils.bindParameters(statement, parameters);
+            rs = statement.executeQuery();
+
+            StorageField[] row = new StorageField[fields.length];
+            while (rs.next()) {
+                StorageFields.readRow(rs, fields, row);
+                if (!handler.handle(row)) {
+                    break;
+                }
+            }
+        } catch (SQLException e) {
+            cache.invalidate(sql);
+            Logger.d(this.getClass(), e.getMessage());
+            return false;
+        } finally {
+            if (null != rs) {
+                try {
+                    rs.close();
+                } catch (SQLException e) {
                 }
             }
         }
 
-        return result;
+        return true;
     }
 }
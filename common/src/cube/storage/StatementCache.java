@@ -0,0 +1,165 @@
+/**
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2021 Shixin Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.storage;
+
+import cell.util.log.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 预编译语句缓存。
+ * 每个数据库连接对应一个缓存实例，以 SQL 语句形态为键复用 {@link PreparedStatement} ，
+ * 缓存按照最近最少使用原则淘汰。
+ * 该类不是线程安全的，调用者需要保证同一时刻只有一个线程使用对应的连接。
+ */
+public class StatementCache {
+
+    /**
+     * 默认缓存的语句数量。
+     */
+    public final static int DEFAULT_CAPACITY = 64;
+
+    private final Connection connection;
+
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    /**
+     * 构造函数。
+     *
+     * @param connection 数据库连接。
+     * @param capacity 缓存的最大语句数量。
+     */
+    public StatementCache(Connection connection, final int capacity) {
+        this.connection = connection;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > capacity) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * 获取连接。
+     *
+     * @return 返回该缓存对应的连接。
+     */
+    public Connection getConnection() {
+        return this.connection;
+    }
+
+    /**
+     * 获取指定 SQL 语句的预编译语句，如果缓存里没有则创建。
+     *
+     * @param sql 使用占位符的 SQL 语句。
+     * @return 返回预编译语句。
+     * @throws SQLException
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = this.statements.get(sql);
+        if (null != statement && !statement.isClosed()) {
+            ++this.hits;
+            return statement;
+        }
+
+        ++this.misses;
+        statement = this.connection.prepareStatement(sql);
+        this.statements.put(sql, statement);
+        return statement;
+    }
+
+    /**
+     * 移除并关闭指定 SQL 语句的预编译语句。一般在语句执行失败后调用。
+     *
+     * @param sql 使用占位符的 SQL 语句。
+     */
+    public void invalidate(String sql) {
+        PreparedStatement statement = this.statements.remove(sql);
+        if (null != statement) {
+            closeQuietly(statement);
+        }
+    }
+
+    /**
+     * 关闭所有缓存的语句。
+     */
+    public void clear() {
+        Iterator<PreparedStatement> iter = this.statements.values().iterator();
+        while (iter.hasNext()) {
+            closeQuietly(iter.next());
+            iter.remove();
+        }
+    }
+
+    /**
+     * 返回当前缓存的语句数量。
+     *
+     * @return 返回当前缓存的语句数量。
+     */
+    public int size() {
+        return this.statements.size();
+    }
+
+    /**
+     * 返回命中次数。
+     *
+     * @return 返回命中次数。
+     */
+    public long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * 返回未命中次数。
+     *
+     * @return 返回未命中次数。
+     */
+    public long getMisses() {
+        return this.misses;
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            Logger.d(StatementCache.class, "#closeQuietly - " + e.getMessage());
+        }
+    }
+}
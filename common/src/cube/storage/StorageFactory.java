@@ -29,6 +29,8 @@ package cube.storage;
 import cube.core.Storage;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -91,4 +93,13 @@ public final class StorageFactory {
     public Storage getStorage(String name) {
         return this.storageMap.get(name);
     }
+
+    /**
+     * 获取所有已创建的存储。
+     *
+     * @return 返回存储器实例列表。
+     */
+    public List<Storage> getStorages() {
+        return new ArrayList<>(this.storageMap.values());
+    }
 }
@@ -26,8 +26,11 @@
 
 package cube.storage;
 
+import cell.core.talk.LiteralBase;
 import cube.core.StorageField;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -52,4 +55,74 @@ public final class StorageFields {
         }
         return result;
     }
+
+    /**
+     * 按照字段描述读取结果集当前行的数据。
+     *
+     * @param rs 结果集。
+     * @param fields 字段描述。
+     * @return 返回行数据。
+     * @throws SQLException
+     */
+    public static StorageField[] readRow(ResultSet rs, StorageField[] fields) throws SQLException {
+        StorageField[] row = new StorageField[fields.length];
+
+        for (int i = 0; i < fields.length; ++i) {
+            StorageField sf = fields[i];
+            LiteralBase literal = sf.getLiteralBase();
+            if (literal == LiteralBase.STRING) {
+                String value = rs.getString(sf.getName());
+                row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
+            }
+            else if (literal == LiteralBase.LONG) {
+                long value = rs.getLong(sf.getName());
+                row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
+            }
+            else if (literal == LiteralBase.INT) {
+                int value = rs.getInt(sf.getName());
+                row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
+            }
+            else if (literal == LiteralBase.BOOL) {
+                boolean value = rs.getBoolean(sf.getName());
+                row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
+            }
+        }
+
+        return row;
+    }
+
+    /**
+     * 按照字段描述读取结果集当前行的数据到指定的行缓冲，缓冲里已有的字段会被复用。
+     *
+     * @param rs 结果集。
+     * @param fields 字段描述。
+     * @param row 行缓冲，长度与字段描述一致。
+     * @throws SQLException
+     */
+    public static void readRow(ResultSet rs, StorageField[] fields, StorageField[] row) throws SQLException {
+        for (int i = 0; i < fields.length; ++i) {
+            StorageField sf = fields[i];
+            LiteralBase literal = sf.getLiteralBase();
+            Object value = null;
+            if (literal == LiteralBase.STRING) {
+                value = rs.getString(i + 1);
+            }
+            else if (literal == LiteralBase.LONG) {
+                value = rs.getLong(i + 1);
+            }
+            else if (literal == LiteralBase.INT) {
+                value = rs.getInt(i + 1);
+            }
+            else if (literal == LiteralBase.BOOL) {
+                value = rs.getBoolean(i + 1);
+            }
+
+            if (null == row[i]) {
+                row[i] = new StorageField(sf.getName(), sf.getLiteralBase(), value);
+            }
+            else {
+                row[i].setValue(value);
+            }
+        }
+    }
 }
@@ -52,6 +52,9 @@ public class CrossDomainHandler extends HttpHandler {
 
         this.allowCrossDomain(response);
 
+        // 在处理请求之前设置，异步输出时处理线程返回后不再修改响应头
+        response.setHeader("Server", "Cube 3.0");
+
         String method = request.getMethod().toUpperCase();
         if (method.equals("GET")) {
             doGet(request, response);
@@ -62,8 +65,6 @@ public class CrossDomainHandler extends HttpHandler {
         else if (method.equals("OPTIONS")) {
             doOptions(request, response);
         }
-
-        response.setHeader("Server", "Cube 3.0");
     }
 
     public void doOptions(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
@@ -56,6 +56,9 @@ public abstract class HttpHandler extends AbstractHandler {
         this.target = target;
         this.baseRequest = baseRequest;
 
+        // 在处理请求之前设置，异步输出时处理线程返回后不再修改响应头
+        response.setHeader("Server", "Cube 3.0");
+
         String method = request.getMethod().toUpperCase();
         if (method.equals("GET")) {
             doGet(request, response);
@@ -66,8 +69,6 @@ public abstract class HttpHandler extends AbstractHandler {
         else if (method.equals("OPTIONS")) {
             doOptions(request, response);
         }
-
-        response.setHeader("Server", "Cube 3.0");
     }
 
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
@@ -29,7 +29,12 @@ package cube.util;
 import cube.core.Conditional;
 import cube.core.Constraint;
 import cube.core.StorageField;
+import cube.core.StorageIndex;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -73,14 +78,113 @@ public final class SQLUtils {
     }
 
     /**
-     * 拼装 SELECT 语句。
+     * 拼装 CREATE TABLE 语句。
+     *
+     * @param table
+     * @param fields
+     * @return
+     */
+    public static String spellCreateTable(String table, StorageField[] fields) {
+        StringBuilder buf = new StringBuilder("CREATE TABLE IF NOT EXISTS ");
+        buf.append(table);
+        buf.append(" (");
+        for (StorageField field : fields) {
+            spellColumn(buf, field);
+            buf.append(",");
+        }
+
+        // 修正逗号
+        buf.delete(buf.length() - 1, buf.length());
+
+        buf.append(")");
+
+        return buf.toString();
+    }
+
+    /**
+     * 拼装 ALTER TABLE ADD COLUMN 语句。
+     *
+     * @param table
+     * @param field
+     * @return
+     */
+    public static String spellAddColumn(String table, StorageField field) {
+        StringBuilder buf = new StringBuilder("ALTER TABLE ");
+        buf.append(table);
+        buf.append(" ADD COLUMN ");
+        spellColumn(buf, field);
+        return buf.toString();
+    }
+
+    private static void spellColumn(StringBuilder buf, StorageField field) {
+        // 字段名
+        buf.append(Quote).append(field.getName()).append(Quote);
+
+        switch (field.getLiteralBase()) {
+            case STRING:
+                buf.append(" TEXT ");
+                break;
+            case INT:
+                buf.append(" INTEGER ");
+                break;
+            case LONG:
+                buf.append(" BIGINT ");
+                break;
+            case BOOL:
+                buf.append(" BOOLEAN ");
+                break;
+            default:
+                break;
+        }
+
+        Constraint[] constraints = field.getConstraints();
+        if (null != constraints) {
+            for (Constraint constraint : constraints) {
+                buf.append(constraint.getStatement()).append(" ");
+            }
+        }
+    }
+
+    /**
+     * 拼装 CREATE INDEX 语句。
+     *
+     * @param table
+     * @param index
+     * @param ifNotExists 是否使用 IF NOT EXISTS 子句。
+     * @return
+     */
+    public static String spellCreateIndex(String table, StorageIndex index, boolean ifNotExists) {
+        StringBuilder buf = new StringBuilder("CREATE ");
+        if (index.isUnique()) {
+            buf.append("UNIQUE ");
+        }
+        buf.append("INDEX ");
+        if (ifNotExists) {
+            buf.append("IF NOT EXISTS ");
+        }
+        buf.append(index.getName(table));
+        buf.append(" ON ").append(table).append(" (");
+        for (String column : index.getColumns()) {
+            buf.append(Quote).append(column).append(Quote).append(",");
+        }
+
+        // 修正逗号
+        buf.delete(buf.length() - 1, buf.length());
+
+        buf.append(")");
+
+        return buf.toString();
+    }
+
+    /**
+     * 拼装使用占位符的 SELECT 语句。
      *
      * @param table
      * @param fields
      * @param conditionals
      * @return
      */
-    public static String spellSelect(String table, StorageField[] fields, Conditional[] conditionals) {
+    public static String spellPreparedSelect(String table, StorageField[] fields, Conditional[] conditionals) {
         StringBuilder buf = new StringBuilder("SELECT ");
 
         if (null != fields) {
@@ -97,25 +201,20 @@ public final class SQLUtils {
         buf.append(" FROM ");
         buf.append(table);
 
-        if (null != conditionals) {
-            buf.append(" WHERE ");
-            for (Conditional cond : conditionals) {
-                buf.append(cond.toString()).append(" ");
-            }
-        }
+        appendPreparedWhere(buf, conditionals);
 
         return buf.toString();
     }
 
     /**
-     * 拼装 SELECT 语句。
+     * 拼装使用占位符的 SELECT 语句。
      *
      * @param tables
      * @param fields
      * @param conditionals
      * @return
      */
-    public static String spellSelect(String[] tables, StorageField[] fields, Conditional[] conditionals) {
+    public static String spellPreparedSelect(String[] tables, StorageField[] fields, Conditional[] conditionals) {
         StringBuilder buf = new StringBuilder("SELECT ");
 
         if (null != fields) {
@@ -137,77 +236,23 @@ public final class SQLUtils {
         }
         buf.delete(buf.length() - 1, buf.length());
 
-        if (null != conditionals) {
-            buf.append(" WHERE ");
-            for (Conditional cond : conditionals) {
-                buf.append(cond.toString()).append(" ");
-            }
-        }
+        appendPreparedWhere(buf, conditionals);
 
         return buf.toString();
     }
 
     /**
-     * 拼装 CREATE TABLE 语句。
+     * 拼装使用占位符的 INSERT 语句。值为空的字段将被跳过。
      *
      * @param table
      * @param fields
      * @return
      */
-    public static String spellCreateTable(String table, StorageField[] fields) {
-        StringBuilder buf = new StringBuilder("CREATE TABLE IF NOT EXISTS ");
-        buf.append(table);
-        buf.append(" (");
-        for (StorageField field : fields) {
-            // 字段名
-            buf.append(Quote).append(field.getName()).append(Quote);
-
-            switch (field.getLiteralBase()) {
-                case STRING:
-                    buf.append(" TEXT ");
-                    break;
-                case INT:
-                    buf.append(" INTEGER ");
-                    break;
-                case LONG:
-                    buf.append(" BIGINT ");
-                    break;
-                case BOOL:
-                    buf.append(" BOOLEAN ");
-                    break;
-                default:
-                    break;
-            }
-
-            Constraint[] constraints = field.getConstraints();
-            if (null != constraints) {
-                for (Constraint constraint : constraints) {
-                    buf.append(constraint.getStatement()).append(" ");
-                }
-            }
-
-            buf.append(",");
-        }
-
-        // 修正逗号
-        buf.delete(buf.length() - 1, buf.length());
-
-        buf.append(")");
-
-        return buf.toString();
-    }
-
-    /**
-     * 拼装 INSERT 语句。
-     *
-     * @param table
-     * @param fields
-     * @return
-     */
-    public static String spellInsert(String table, StorageField[] fields) {
+    public static String spellPreparedInsert(String table, StorageField[] fields) {
         StringBuilder buf = new StringBuilder("INSERT INTO ");
         buf.append(table);
         buf.append(" (");
+        int count = 0;
         for (StorageField field : fields) {
             if (null == field.getValue()) {
                 // 跳过空值
@@ -216,34 +261,14 @@ public final class SQLUtils {
 
             buf.append(Quote).append(field.getName()).append(Quote);
             buf.append(",");
+            ++count;
         }
         // 修正逗号
         buf.delete(buf.length() - 1, buf.length());
         buf.append(") VALUES (");
 
-        for (StorageField field : fields) {
-            if (null == field.getValue()) {
-                // 跳过空值
-                continue;
-            }
-
-            switch (field.getLiteralBase()) {
-                case STRING:
-                    buf.append("'").append(SQLUtils.correctString(field.getString())).append("'");
-                    break;
-                case INT:
-                    buf.append(field.getInt());
-                    break;
-                case LONG:
-                    buf.append(field.getLong());
-                    break;
-                case BOOL:
-                    buf.append(field.getBoolean() ? 1 : 0);
-                    break;
-                default:
-                    break;
-            }
-            buf.append(",");
+        for (int i = 0; i < count; ++i) {
+            buf.append("?,");
         }
         // 修正逗号
         buf.delete(buf.length() - 1, buf.length());
@@ -254,14 +279,14 @@ public final class SQLUtils {
     }
 
     /**
-     * 拼装 UPDATE 语句。
+     * 拼装使用占位符的 UPDATE 语句。值为空的字段将被跳过。
      *
      * @param table
      * @param fields
      * @param conditionals
      * @return
      */
-    public static String spellUpdate(String table, StorageField[] fields, Conditional[] conditionals) {
+    public static String spellPreparedUpdate(String table, StorageField[] fields, Conditional[] conditionals) {
         StringBuilder buf = new StringBuilder("UPDATE ");
         buf.append(table);
         buf.append(" SET ");
@@ -272,54 +297,117 @@ public final class SQLUtils {
                 continue;
             }
 
-            buf.append(Quote).append(field.getName()).append(Quote).append("=");
-
-            switch (field.getLiteralBase()) {
-                case STRING:
-                    buf.append("'").append(SQLUtils.correctString(field.getString())).append("'");
-                    break;
-                case INT:
-                    buf.append(field.getInt());
-                    break;
-                case LONG:
-                    buf.append(field.getLong());
-                    break;
-                case BOOL:
-                    buf.append(field.getBoolean() ? 1 : 0);
-                    break;
-                default:
-                    break;
-            }
-            buf.append(",");
+            buf.append(Quote).append(field.getName()).append(Quote).append("=?,");
         }
         // 修正逗号
         buf.delete(buf.length() - 1, buf.length());
 
-        buf.append(" WHERE ");
-        for (Conditional conditional : conditionals) {
-            buf.append(conditional.toString());
-            buf.append(" ");
-        }
+        appendPreparedWhere(buf, conditionals);
 
         return buf.toString();
     }
 
     /**
-     * 拼装 DELETE 语句。
+     * 拼装使用占位符的 DELETE 语句。
      *
      * @param table
      * @param conditionals
      * @return
      */
-    public static String spellDelete(String table, Conditional[] conditionals) {
+    public static String spellPreparedDelete(String table, Conditional[] conditionals) {
         StringBuilder buf = new StringBuilder("DELETE FROM ");
         buf.append(table);
-        buf.append(" WHERE ");
-        for (Conditional conditional : conditionals) {
-            buf.append(conditional.toString());
-            buf.append(" ");
-        }
+
+        appendPreparedWhere(buf, conditionals);
 
         return buf.toString();
     }
+
+    /**
+     * 按照占位符出现的顺序收集绑定参数。值为空的字段将被跳过。
+     *
+     * @param fields 赋值字段，可以为 {@code null} 。
+     * @param conditionals 条件句式，可以为 {@code null} 。
+     * @return 返回绑定参数列表。
+     */
+    public static List<StorageField> collectParameters(StorageField[] fields, Conditional[] conditionals) {
+        List<StorageField> result = new ArrayList<>();
+
+        if (null != fields) {
+            for (StorageField field : fields) {
+                if (null != field.getValue()) {
+                    result.add(field);
+                }
+            }
+        }
+
+        if (null != conditionals) {
+            for (Conditional conditional : conditionals) {
+                for (StorageField parameter : conditional.getParameters()) {
+                    result.add(parameter);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * 将参数依次绑定到预编译语句。
+     *
+     * @param statement 预编译语句。
+     * @param parameters 绑定参数列表。
+     * @throws SQLException
+     */
+    public static void bindParameters(PreparedStatement statement, List<StorageField> parameters) throws SQLException {
+        for (int i = 0, size = parameters.size(); i < size; ++i) {
+            SQLUtils.bindParameter(statement, i + 1, parameters.get(i));
+        }
+    }
+
+    /**
+     * 绑定单个参数。
+     *
+     * @param statement 预编译语句。
+     * @param index 参数索引，从 {@code 1} 开始。
+     * @param field 参数字段。
+     * @throws SQLException
+     */
+    public static void bindParameter(PreparedStatement statement, int index, StorageField field) throws SQLException {
+        Object value = field.getValue();
+        if (null == value) {
+            statement.setNull(index, Types.NULL);
+            return;
+        }
+
+        switch (field.getLiteralBase()) {
+            case STRING:
+                statement.setString(index, field.getString());
+                break;
+            case INT:
+                statement.setInt(index, (value instanceof Number) ? ((Number) value).intValue()
+                        : Integer.parseInt(value.toString()));
+                break;
+            case LONG:
+                statement.setLong(index, (value instanceof Number) ? ((Number) value).longValue()
+                        : Long.parseLong(value.toString()));
+                break;
+            case BOOL:
+                statement.setInt(index, ((value instanceof Boolean) ? ((Boolean) value).booleanValue()
+                        : Boolean.parseBoolean(value.toString())) ? 1 : 0);
+                break;
+            default:
+                statement.setObject(index, value);
+                break;
+        }
+    }
+
+    private static void appendPreparedWhere(StringBuilder buf, Conditional[] conditionals) {
+        if (null != conditionals) {
+            buf.append(" WHERE ");
+            for (Conditional cond : conditionals) {
+                buf.append(cond.getPreparedSQL()).append(" ");
+            }
+        }
+    }
 }
@@ -33,6 +33,8 @@ import cell.util.log.Logger;
 import cube.console.mgmt.DispatcherManager;
 import cube.console.mgmt.UserManager;
 import cube.console.tool.DeployTool;
+import cube.report.ConnectionPoolReport;
+import cube.report.MetricsReport;
 import cube.report.JVMReport;
 import cube.report.LogLine;
 import cube.report.LogReport;
@@ -74,6 +76,16 @@ public final class Console implements Runnable {
 
     private int maxReportNum = 20;
 
+    /**
+     * 每个服务器各连接池的最新报告。
+     */
+    private ConcurrentHashMap<String, ConcurrentHashMap<String, ConnectionPoolReport>> serverPoolMap;
+
+    /**
+     * 每个服务器各指标来源的最新报告。
+     */
+    private ConcurrentHashMap<String, ConcurrentHashMap<String, MetricsReport>> serverMetricsMap;
+
     private ScheduledExecutorService timer;
 
     private ConsoleLogHandler logHandler;
@@ -85,6 +97,8 @@ public final class Console implements Runnable {
     public Console() {
         this.serverLogMap = new ConcurrentHashMap<>();
         this.serverJVMMap = new ConcurrentHashMap<>();
+        this.serverPoolMap = new ConcurrentHashMap<>();
+        this.serverMetricsMap = new ConcurrentHashMap<>();
         this.logHandler = new ConsoleLogHandler();
     }
 
@@ -302,6 +316,54 @@ public final class Console implements Runnable {
         return result;
     }
 
+    public void appendConnectionPoolReport(ConnectionPoolReport report) {
+        Logger.d(this.getClass(), "Received report from " + report.getReporter() + " (" + report.getName() + ")");
+
+        ConcurrentHashMap<String, ConnectionPoolReport> map = this.serverPoolMap.get(report.getReporter());
+        if (null == map) {
+            map = new ConcurrentHashMap<>();
+            ConcurrentHashMap<String, ConnectionPoolReport> current = this.serverPoolMap.putIfAbsent(report.getReporter(), map);
+            if (null != current) {
+                map = current;
+            }
+        }
+
+        map.put(report.pool, report);
+    }
+
+    public List<ConnectionPoolReport> queryConnectionPoolReports(String reporter) {
+        ConcurrentHashMap<String, ConnectionPoolReport> map = this.serverPoolMap.get(reporter);
+        if (null == map) {
+            return new ArrayList<>();
+        }
+
+        return new ArrayList<>(map.values());
+    }
+
+    public void appendMetricsReport(MetricsReport report) {
+        Logger.d(this.getClass(), "Received report from " + report.getReporter() + " (" + report.getName() + ")");
+
+        ConcurrentHashMap<String, MetricsReport> map = this.serverMetricsMap.get(report.getReporter());
+        if (null == map) {
+            map = new ConcurrentHashMap<>();
+            ConcurrentHashMap<String, MetricsReport> current = this.serverMetricsMap.putIfAbsent(report.getReporter(), map);
+            if (null != current) {
+                map = current;
+            }
+        }
+
+        map.put(report.source, report);
+    }
+
+    public List<MetricsReport> queryMetricsReports(String reporter) {
+        ConcurrentHashMap<String, MetricsReport> map = this.serverMetricsMap.get(reporter);
+        if (null == map) {
+            return new ArrayList<>();
+        }
+
+        return new ArrayList<>(map.values());
+    }
+
     @Override
     public void run() {
 
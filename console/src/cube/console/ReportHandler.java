@@ -26,6 +26,8 @@
 
 package cube.console;
 
+import cube.report.ConnectionPoolReport;
+import cube.report.MetricsReport;
 import cube.report.JVMReport;
 import cube.report.LogReport;
 import cube.report.Report;
@@ -84,6 +86,14 @@ public class ReportHandler extends ContextHandler {
                     JVMReport report = new JVMReport(reportJson);
                     console.appendJVMReport(report);
                 }
+                else if (ConnectionPoolReport.NAME.equals(name)) {
+                    ConnectionPoolReport report = new ConnectionPoolReport(reportJson);
+                    console.appendConnectionPoolReport(report);
+                }
+                else if (MetricsReport.NAME.equals(name)) {
+                    MetricsReport report = new MetricsReport(reportJson);
+                    console.appendMetricsReport(report);
+                }
 
                 httpServletResponse.setStatus(HttpStatus.OK_200);
                 request.setHandled(true);
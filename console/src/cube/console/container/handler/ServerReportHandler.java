@@ -28,6 +28,8 @@ package cube.console.container.handler;
 
 import cube.console.Console;
 import cube.console.Utils;
+import cube.report.ConnectionPoolReport;
+import cube.report.MetricsReport;
 import cube.report.JVMReport;
 import org.eclipse.jetty.http.HttpStatus;
 import org.eclipse.jetty.server.Request;
@@ -94,6 +96,42 @@ public class ServerReportHandler extends ContextHandler {
                         e.printStackTrace();
                     }
 
+                    httpServletResponse.getWriter().write(response.toString());
+                }
+                else if (report.equals(ConnectionPoolReport.NAME)) {
+                    List<ConnectionPoolReport> list = console.queryConnectionPoolReports(name);
+
+                    JSONArray result = new JSONArray();
+                    for (ConnectionPoolReport r : list) {
+                        result.put(r.toJSON());
+                    }
+
+                    JSONObject response = new JSONObject();
+                    try {
+                        response.put("name", name);
+                        response.put("list", result);
+                    } catch (JSONException e) {
+                        e.printStackTrace();
+                    }
+
+                    httpServletResponse.getWriter().write(response.toString());
+                }
+                else if (report.equals(MetricsReport.NAME)) {
+                    List<MetricsReport> list = console.queryMetricsReports(name);
+
+                    JSONArray result = new JSONArray();
+                    for (MetricsReport r : list) {
+                        result.put(r.toJSON());
+                    }
+
+                    JSONObject response = new JSONObject();
+                    try {
+                        response.put("name", name);
+                        response.put("list", result);
+                    } catch (JSONException e) {
+                        e.printStackTrace();
+                    }
+
                     httpServletResponse.getWriter().write(response.toString());
                 }
             }
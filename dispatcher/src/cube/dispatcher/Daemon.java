@@ -117,7 +117,7 @@ public class Daemon extends TimerTask implements LogHandle {
             Map.Entry<Long, Performer.Transmission> e = traniter.next();
             Performer.Transmission transmission = e.getValue();
             if (now - transmission.timestamp > this.transmissionTimeout) {
-                traniter.remove();
+                this.performer.removeTransmission(transmission);
             }
         }
 
@@ -134,6 +134,9 @@ public class Daemon extends TimerTask implements LogHandle {
             }
         }
 
+        // 重新探测不可用的导演机
+        this.performer.probeDirectors();
+
         if (now - this.lastReportTime > this.reportInterval) {
             this.submitJVMReport();
             this.lastReportTime = now;
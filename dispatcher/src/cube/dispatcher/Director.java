@@ -29,8 +29,6 @@ package cube.dispatcher;
 import cell.api.Speakable;
 import cell.core.net.Endpoint;
 
-import java.util.HashMap;
-
 /**
  * 导演机。
  */
@@ -42,44 +40,21 @@ public class Director {
 
     public Speakable speaker;
 
-    protected HashMap<String, Section> sectionMap;
+    /**
+     * 是否可用。
+     */
+    private volatile boolean available = true;
 
     public Director(Endpoint endpoint, Scope scope) {
         this.endpoint = endpoint;
         this.scope = scope;
-        this.sectionMap = new HashMap();
-
-        for (String celletName : scope.cellets) {
-            this.sectionMap.put(celletName, new Section());
-        }
     }
 
-    public Section getSection(String celletName) {
-        return this.sectionMap.get(celletName);
+    public boolean isAvailable() {
+        return this.available;
     }
 
-
-    /**
-     * 选择区间。
-     */
-    public class Section {
-
-        public int begin = 0;
-
-        public int end = 0;
-
-        public int totalWeight = 0;
-
-        public Section() {
-        }
-
-        public boolean contains(int value) {
-            if (value >= this.begin && value <= this.end) {
-                return true;
-            }
-            else {
-                return false;
-            }
-        }
+    protected void setAvailable(boolean available) {
+        this.available = available;
     }
 }
@@ -47,6 +47,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Performer 接入层连接器。
@@ -81,10 +82,15 @@ public class Performer implements TalkListener {
      */
     private HashMap<String, List<Director>> celletDirectorMap;
 
+    /**
+     * Cellet 对应的路由表。路由表不可变，Director 变更时整体替换。
+     */
+    private volatile Map<String, RoutingTable> routingTableMap;
+
     /**
      * 会话上下文对应的服务主机。
      */
-    protected HashMap<TalkContext, Director> talkDirectorMap;
+    protected ConcurrentHashMap<TalkContext, Director> talkDirectorMap;
 
     /**
      * 执行机监听器。
@@ -101,6 +107,11 @@ public class Performer implements TalkListener {
      */
     private ConcurrentHashMap<String, Device> tokenDeviceMap;
 
+    /**
+     * 会话上下文对应的会话索引。
+     */
+    private ConcurrentHashMap<TalkContext, SessionIndex> sessionIndexMap;
+
     /**
      * 数据传输记录。
      */
@@ -124,12 +135,14 @@ public class Performer implements TalkListener {
     public Performer(Nucleus nucleus) {
         this.talkService = nucleus.getTalkService();
         this.celletService = nucleus.getCelletService();
-        this.directorList = new ArrayList<>();
+        this.directorList = new CopyOnWriteArrayList<>();
         this.celletDirectorMap = new HashMap<>();
-        this.talkDirectorMap = new HashMap<>();
+        this.routingTableMap = Collections.emptyMap();
+        this.talkDirectorMap = new ConcurrentHashMap<>();
         this.listenerMap = new ConcurrentHashMap<>();
         this.onlineContacts = new ConcurrentHashMap<>();
         this.tokenDeviceMap = new ConcurrentHashMap<>();
+        this.sessionIndexMap = new ConcurrentHashMap<>();
         this.transmissionMap = new ConcurrentHashMap<>();
         this.blockMap = new ConcurrentHashMap<>();
     }
@@ -190,7 +203,7 @@ public class Performer implements TalkListener {
      * @param scope 该导演机的配置范围。
      * @return 返回导演机节点。
      */
-    public Director addDirector(String address, int port, Scope scope) {
+    public synchronized Director addDirector(String address, int port, Scope scope) {
         Endpoint endpoint = new Endpoint(address, port);
         Director director = new Director(endpoint, scope);
 
@@ -209,9 +222,55 @@ public class Performer implements TalkListener {
             list.add(director);
         }
 
+        this.rebuildRoutingTables();
+
         return director;
     }
 
+    /**
+     * 重建所有 Cellet 的路由表，并替换当前路由表。
+     */
+    private synchronized void rebuildRoutingTables() {
+        HashMap<String, RoutingTable> map = new HashMap<>();
+        for (Map.Entry<String, List<Director>> e : this.celletDirectorMap.entrySet()) {
+            map.put(e.getKey(), new RoutingTable(e.getValue()));
+        }
+        this.routingTableMap = map;
+    }
+
+    /**
+     * 更新导演机的可用状态，并重建路由表。
+     *
+     * @param speakable 导演机的会话。
+     * @param available 是否可用。
+     */
+    private void updateDirectorState(Speakable speakable, boolean available) {
+        Director director = null;
+        for (Director cur : this.directorList) {
+            if (cur.speaker == speakable) {
+                director = cur;
+                break;
+            }
+        }
+
+        if (null == director || director.isAvailable() == available) {
+            return;
+        }
+
+        director.setAvailable(available);
+        this.rebuildRoutingTables();
+
+        if (!available) {
+            // 解除已失效导演机的会话绑定，后续请求重新选择
+            Iterator<Director> iter = this.talkDirectorMap.values().iterator();
+            while (iter.hasNext()) {
+                if (iter.next() == director) {
+                    iter.remove();
+                }
+            }
+        }
+    }
+
     /**
      * 选择节点。
      *
@@ -219,37 +278,50 @@ public class Performer implements TalkListener {
      * @param celletName Cellet 名称。
      * @return 返回被选中的导演机。
      */
-    private synchronized Director selectDirector(TalkContext talkContext, String celletName) {
-        Director director = this.talkDirectorMap.get(talkContext);
-        if (null != director) {
-            return director;
-        }
+    private Director selectDirector(TalkContext talkContext, String celletName) {
+        while (true) {
+            Director director = this.talkDirectorMap.get(talkContext);
+            if (null != director) {
+                if (director.isAvailable()) {
+                    return director;
+                }
 
-        List<Director> directors = this.celletDirectorMap.get(celletName);
-        if (null == directors) {
-            director = this.directorList.get(0);
-            this.talkDirectorMap.put(talkContext, director);
-            return director;
-        }
+                // 已绑定的导演机失效，解除绑定后重新选择
+                this.talkDirectorMap.remove(talkContext, director);
+            }
 
-        int totalWeight = directors.get(0).getSection(celletName).totalWeight;
-        int anchor = Utils.randomInt(0, totalWeight - 1);
-        for (int i = 0, size = directors.size(); i < size; ++i) {
-            Director cur = directors.get(i);
-            Director.Section section = cur.getSection(celletName);
-            if (section.contains(anchor)) {
-                director = cur;
-                break;
+            RoutingTable table = this.routingTableMap.get(celletName);
+            if (null != table) {
+                director = table.select();
             }
-        }
 
-        if (null != director) {
-            this.talkDirectorMap.put(talkContext, director);
-            return director;
-        }
+            if (null == director || !director.isAvailable()) {
+                if (null != table) {
+                    Logger.w(this.getClass(), "Can NOT find director : " + celletName);
+                }
+
+                // 没有可用的路由时不绑定会话，选择任意一个可用的导演机
+                for (Director cur : this.directorList) {
+                    if (cur.isAvailable()) {
+                        return cur;
+                    }
+                }
+
+                return null;
+            }
+
+            Director current = this.talkDirectorMap.putIfAbsent(talkContext, director);
+            if (null != current) {
+                director = current;
+            }
+
+            // 绑定可能发生在导演机失效并完成解绑扫描之后，需要再次检查
+            if (director.isAvailable()) {
+                return director;
+            }
 
-        Logger.w(this.getClass(), "Can NOT find director : " + celletName);
-        return this.directorList.get(0);
+            this.talkDirectorMap.remove(talkContext, director);
+        }
     }
 
     /**
@@ -259,7 +331,7 @@ public class Performer implements TalkListener {
      * @param celletName Cellet 名称。
      * @return 返回被选中的导演机。
      */
-    private synchronized Director selectDirector(String tokenCode, String celletName) {
+    private Director selectDirector(String tokenCode, String celletName) {
         // 获取令牌对应的设备
         Device device = this.tokenDeviceMap.get(tokenCode);
         if (null == device) {
@@ -280,6 +352,24 @@ public class Performer implements TalkListener {
         // 记录 Token 对应的设备
         this.tokenDeviceMap.put(device.getToken(), device);
 
+        // 更新会话索引，索引在连接时创建，已移除的上下文不再记录
+        if (null != device.getTalkContext()) {
+            SessionIndex index = this.sessionIndexMap.get(device.getTalkContext());
+            if (null != index) {
+                index.contactKey = contact.getUniqueKey();
+                index.tokens.add(device.getToken());
+            }
+        }
+
+        for (Device dev : contact.getDeviceList()) {
+            if (null != dev.getTalkContext() && dev.getTalkContext() != device.getTalkContext()) {
+                SessionIndex index = this.sessionIndexMap.get(dev.getTalkContext());
+                if (null != index) {
+                    index.contactKey = contact.getUniqueKey();
+                }
+            }
+        }
+
         Contact current = this.onlineContacts.get(contact.getUniqueKey());
         if (null == current) {
             this.onlineContacts.put(contact.getUniqueKey(), contact);
@@ -312,6 +402,13 @@ public class Performer implements TalkListener {
 
         current.removeDevice(device);
 
+        if (null != device.getTalkContext()) {
+            SessionIndex index = this.sessionIndexMap.get(device.getTalkContext());
+            if (null != index) {
+                index.contactKey = null;
+            }
+        }
+
         if (current.numDevices() == 0) {
             // 已经没有设备连接，从在线列表删除
             this.onlineContacts.remove(contact.getUniqueKey());
@@ -328,73 +425,112 @@ public class Performer implements TalkListener {
         this.listenerMap.put(celletName, listener);
     }
 
+    /**
+     * 添加已连接的会话上下文。
+     *
+     * @param context 指定会话上下文。
+     */
+    public void addTalkContext(TalkContext context) {
+        this.sessionIndexMap.putIfAbsent(context, new SessionIndex());
+    }
+
+    /**
+     * 移除会话上下文及其相关记录。
+     *
+     * @param context 指定会话上下文。
+     */
     public void removeTalkContext(TalkContext context) {
         this.talkDirectorMap.remove(context);
 
+        SessionIndex index = this.sessionIndexMap.remove(context);
+        if (null == index) {
+            return;
+        }
+
         // 删除记录
-        Iterator<Transmission> iter = this.transmissionMap.values().iterator();
-        while (iter.hasNext()) {
-            Transmission transmission = iter.next();
-            if (transmission.source == context) {
-                iter.remove();
+        for (Long sn : index.transmissions) {
+            Transmission transmission = this.transmissionMap.get(sn);
+            if (null != transmission && transmission.source == context) {
+                this.transmissionMap.remove(sn, transmission);
             }
         }
 
-        Iterator<Device> diter = this.tokenDeviceMap.values().iterator();
-        while (diter.hasNext()) {
-            Device device = diter.next();
-            if (device.getTalkContext() == context) {
-                diter.remove();
+        for (String token : index.tokens) {
+            Device device = this.tokenDeviceMap.get(token);
+            if (null != device && device.getTalkContext() == context) {
+                this.tokenDeviceMap.remove(token, device);
             }
         }
     }
 
+    /**
+     * 移除已超时的传输记录。
+     *
+     * @param transmission 指定传输记录。
+     */
+    protected void removeTransmission(Transmission transmission) {
+        this.transmissionMap.remove(transmission.sn, transmission);
+
+        SessionIndex index = this.sessionIndexMap.get(transmission.source);
+        if (null != index) {
+            index.transmissions.remove(transmission.sn);
+        }
+    }
+
     /**
      * 启动执行机，并对路由权重和范围进行初始化。
      */
     public void start(List<String> cellets) {
+        // 启动所有 Director ，先设置会话再设置监听器，以便事件能找到对应的导演机
+        for (Director director : this.directorList) {
+            Endpoint ep = director.endpoint;
+            Speakable speakable = this.talkService.call(ep.getHost(), ep.getPort());
+            director.speaker = speakable;
+        }
+
         for (String cellet : cellets) {
             this.talkService.setListener(cellet, this);
             Logger.i(this.getClass(), "Set cellet '" + cellet + "' listener");
         }
 
-        Iterator<Map.Entry<String, List<Director>>> iter = this.celletDirectorMap.entrySet().iterator();
-        while (iter.hasNext()) {
-            Map.Entry<String, List<Director>> e = iter.next();
-            String celletName = e.getKey();
-            List<Director> directors = e.getValue();
-
-            // 计算 Cellet 对应的每个连接的权重
-            int totalWeight = 0;
-            int cursor = 0;
+        // 设置监听器之前已经完成的连接不会再有事件，按当前连接状态设置
+        for (Director director : this.directorList) {
+            if (null == director.speaker || !director.speaker.isReady()) {
+                director.setAvailable(false);
+            }
+        }
 
-            for (Director director : directors) {
-                // 累加权重
-                totalWeight += director.scope.weight;
+        this.rebuildRoutingTables();
 
-                Director.Section section = director.getSection(celletName);
-                section.begin = cursor;
-                section.end = cursor + director.scope.weight - 1;
+        // 启动 HTTP 服务器
+        this.httpServer.start();
+    }
 
-                // 更新游标
-                cursor += section.end + 1;
+    /**
+     * 重新探测不可用的导演机。
+     * 连接已恢复的导演机恢复可用，连接未就绪的导演机重新呼叫。
+     */
+    protected void probeDirectors() {
+        for (Director director : this.directorList) {
+            if (director.isAvailable()) {
+                continue;
             }
 
-            for (Director director : directors) {
-                Director.Section section = director.getSection(celletName);
-                section.totalWeight = totalWeight;
+            Speakable speakable = director.speaker;
+            if (null != speakable && speakable.isReady()) {
+                // 连接事件早于会话设置时丢失，在此恢复
+                this.updateDirectorState(speakable, true);
+                continue;
             }
-        }
 
-        // 启动所有 Director
-        for (Director director : this.directorList) {
             Endpoint ep = director.endpoint;
-            Speakable speakable = this.talkService.call(ep.getHost(), ep.getPort());
-            director.speaker = speakable;
-        }
+            if (null != speakable) {
+                this.talkService.hangup(ep.getHost(), ep.getPort(), false);
+            }
 
-        // 启动 HTTP 服务器
-        this.httpServer.start();
+            Logger.i(this.getClass(), "Recall director " + ep.toString());
+            director.speaker = this.talkService.call(ep.getHost(), ep.getPort());
+        }
     }
 
     public void stop() {
@@ -429,17 +565,29 @@ public class Performer implements TalkListener {
      * @return
      */
     public Contact queryContact(TalkContext talkContext) {
-        Iterator<Contact> iter = this.onlineContacts.values().iterator();
-        while (iter.hasNext()) {
-            Contact contact = iter.next();
-            Device device = contact.getDevice(talkContext);
-            if (null != device) {
-                Contact result = new Contact(contact.getId(), contact.getDomain(), contact.getName());
-                result.addDevice(device);
-                return result;
-            }
+        SessionIndex index = this.sessionIndexMap.get(talkContext);
+        if (null == index) {
+            return null;
         }
-        return null;
+
+        String key = index.contactKey;
+        if (null == key) {
+            return null;
+        }
+
+        Contact contact = this.onlineContacts.get(key);
+        if (null == contact) {
+            return null;
+        }
+
+        Device device = contact.getDevice(talkContext);
+        if (null == device) {
+            return null;
+        }
+
+        Contact result = new Contact(contact.getId(), contact.getDomain(), contact.getName());
+        result.addDevice(device);
+        return result;
     }
 
     /**
@@ -487,6 +635,10 @@ public class Performer implements TalkListener {
         // 绑定关系
         Transmission trans = new Transmission(sn, cellet, talkContext);
         this.transmissionMap.put(trans.sn, trans);
+        SessionIndex index = this.sessionIndexMap.get(talkContext);
+        if (null != index) {
+            index.transmissions.add(trans.sn);
+        }
 
         director.speaker.speak(cellet.getName(), actionDialect);
     }
@@ -512,6 +664,10 @@ public class Performer implements TalkListener {
         actionDialect.addParam(this.performerKey, createPerformer(sn));
 
         Director director = this.selectDirector(device.getTalkContext(), celletName);
+        if (null == director) {
+            Logger.e(this.getClass(), "Can not connect '" + celletName + "'");
+            return;
+        }
 
         director.speaker.speak(celletName, actionDialect);
     }
@@ -532,6 +688,15 @@ public class Performer implements TalkListener {
         }
 
         Director director = this.selectDirector(device.getTalkContext(), celletName);
+        if (null == director) {
+            Logger.e(this.getClass(), "Can not connect '" + celletName + "'");
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                // Nothing
+            }
+            return;
+        }
 
         long total = 0;
         // 发送数据
@@ -666,6 +831,9 @@ public class Performer implements TalkListener {
                 else {
                     Transmission transmission = this.transmissionMap.get(sn);
                     if (null != transmission) {
+                        // 分批应答时延长记录的有效期
+                        transmission.timestamp = System.currentTimeMillis();
+
                         // 移除 P-KEY
                         actionDialect.removeParam(this.performerKey);
                         // 向客户端发送数据
@@ -750,17 +918,21 @@ public class Performer implements TalkListener {
     public void onContacted(Speakable speakable) {
         Logger.i(this.getClass(), "Contacted " + speakable.getRemoteAddress().getHostString() + ":" +
                 speakable.getRemoteAddress().getPort());
+
+        this.updateDirectorState(speakable, true);
     }
 
     @Override
     public void onQuitted(Speakable speakable) {
         Logger.i(this.getClass(), "Quitted " + speakable.getRemoteAddress().getHostString() + ":" +
                 speakable.getRemoteAddress().getPort());
+
+        this.updateDirectorState(speakable, false);
     }
 
     @Override
     public void onFailed(Speakable speakable, TalkError talkError) {
-
+        this.updateDirectorState(speakable, false);
     }
 
 
@@ -778,6 +950,27 @@ public class Performer implements TalkListener {
         }
     }
 
+    /**
+     * 会话上下文的反向索引。
+     */
+    private class SessionIndex {
+
+        /**
+         * 该上下文对应的联系人键。
+         */
+        protected volatile String contactKey;
+
+        /**
+         * 该上下文上的设备令牌。
+         */
+        protected final Set<String> tokens = ConcurrentHashMap.newKeySet();
+
+        /**
+         * 该上下文上的传输记录流水号。
+         */
+        protected final Set<Long> transmissions = ConcurrentHashMap.newKeySet();
+    }
+
     /**
      * 用于记录客户端经过网关通信后对应的由服务节点回送的数据的映射关系。
      */
@@ -789,7 +982,7 @@ public class Performer implements TalkListener {
 
         public TalkContext source;
 
-        public long timestamp;
+        public volatile long timestamp;
 
         public Transmission(Long sn, Cellet cellet, TalkContext source) {
             this.sn = sn;
@@ -0,0 +1,125 @@
+/**
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2021 Shixin Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.dispatcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 单个 Cellet 的加权路由表。
+ * 路由表创建后不可变，按照权重的累加数组进行二分查找选择导演机，可在多线程中无锁读取。
+ */
+public final class RoutingTable {
+
+    /**
+     * 可选的导演机。
+     */
+    private final Director[] directors;
+
+    /**
+     * 权重累加值，第 i 项为前 i + 1 个导演机的权重之和。
+     */
+    private final int[] cumulative;
+
+    /**
+     * 总权重。
+     */
+    private final int totalWeight;
+
+    /**
+     * 构造函数。
+     *
+     * @param directors 指定导演机列表，不可用的导演机将被跳过。
+     */
+    public RoutingTable(List<Director> directors) {
+        List<Director> list = new ArrayList<>(directors.size());
+        for (Director director : directors) {
+            if (director.isAvailable() && director.scope.weight > 0) {
+                list.add(director);
+            }
+        }
+
+        this.directors = list.toArray(new Director[0]);
+        this.cumulative = new int[this.directors.length];
+
+        int sum = 0;
+        for (int i = 0; i < this.directors.length; ++i) {
+            sum += this.directors[i].scope.weight;
+            this.cumulative[i] = sum;
+        }
+        this.totalWeight = sum;
+    }
+
+    /**
+     * 路由表是否为空。
+     *
+     * @return 如果没有可用的导演机返回 {@code true} 。
+     */
+    public boolean isEmpty() {
+        return this.directors.length == 0;
+    }
+
+    /**
+     * 获取总权重。
+     *
+     * @return 返回总权重。
+     */
+    public int getTotalWeight() {
+        return this.totalWeight;
+    }
+
+    /**
+     * 按照权重随机选择导演机。
+     *
+     * @return 返回被选中的导演机，如果没有可用导演机返回 {@code null} 。
+     */
+    public Director select() {
+        if (this.directors.length == 0) {
+            return null;
+        }
+        else if (this.directors.length == 1) {
+            return this.directors[0];
+        }
+
+        int anchor = ThreadLocalRandom.current().nextInt(this.totalWeight);
+        return this.directors[this.indexOf(anchor)];
+    }
+
+    /**
+     * 查找锚点所在的区间索引。
+     *
+     * @param anchor 取值范围 [0, totalWeight) 。
+     * @return 返回对应的导演机索引。
+     */
+    protected int indexOf(int anchor) {
+        // 查找第一个大于 anchor 的累加值
+        int index = Arrays.binarySearch(this.cumulative, anchor + 1);
+        return (index >= 0) ? index : -index - 1;
+    }
+}
@@ -127,6 +127,11 @@ public class ContactCellet extends Cellet {
         }
     }
 
+    @Override
+    public void onContacted(TalkContext context, Servable server) {
+        this.performer.addTalkContext(context);
+    }
+
     @Override
     public void onQuitted(TalkContext context, Servable server) {
         this.executor.execute(this.borrowDisconnectTask(context));
@@ -55,6 +55,8 @@ public class DisconnectTask extends Task {
         Contact contact = this.performer.queryContact(this.talkContext);
 
         if (null == contact) {
+            // 未登录的上下文直接移除，已登录的等待超时后移除
+            this.performer.removeTalkContext(this.talkContext);
             ((ContactCellet) this.cellet).returnDisconnectTask(this);
             return;
         }
@@ -0,0 +1,154 @@
+/**
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2021 Shixin Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.dispatcher.filestorage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HTTP 请求的字节范围。
+ */
+public class ByteRange {
+
+    /**
+     * 单个请求允许的最大范围数量，超过时忽略范围请求。
+     */
+    private final static int MAX_RANGES = 16;
+
+    /**
+     * 起始位置。
+     */
+    protected final long first;
+
+    /**
+     * 结束位置，包含该位置。
+     */
+    protected final long last;
+
+    public ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * 返回范围长度。
+     *
+     * @return
+     */
+    public long getLength() {
+        return this.last - this.first + 1;
+    }
+
+    /**
+     * 返回 Content-Range 头的值。
+     *
+     * @param size 文件大小。
+     * @return
+     */
+    public String toContentRange(long size) {
+        return "bytes " + this.first + "-" + this.last + "/" + size;
+    }
+
+    @Override
+    public String toString() {
+        return this.first + "-" + this.last;
+    }
+
+    /**
+     * 解析 Range 头。
+     *
+     * @param header Range 头的值。
+     * @param size 文件大小。
+     * @return 格式错误或不支持时返回 {@code null} ，没有可满足的范围时返回空列表。
+     */
+    public static List<ByteRange> parse(String header, long size) {
+        if (null == header || !header.trim().startsWith("bytes=")) {
+            return null;
+        }
+
+        String[] specs = header.trim().substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> list = new ArrayList<>(specs.length);
+
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int index = spec.indexOf('-');
+                if (index < 0) {
+                    return null;
+                }
+
+                String firstDesc = spec.substring(0, index).trim();
+                String lastDesc = spec.substring(index + 1).trim();
+
+                if (firstDesc.length() == 0) {
+                    // 后缀范围，例如 "-500"
+                    long suffix = Long.parseLong(lastDesc);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && size > 0) {
+                        list.add(new ByteRange(Math.max(0, size - suffix), size - 1));
+                    }
+                    continue;
+                }
+
+                long first = Long.parseLong(firstDesc);
+                long last = (lastDesc.length() == 0) ? Long.MAX_VALUE : Long.parseLong(lastDesc);
+                if (first < 0 || last < first) {
+                    return null;
+                }
+
+                if (first < size) {
+                    list.add(new ByteRange(first, Math.min(last, size - 1)));
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        return list;
+    }
+
+    /**
+     * 生成 Range 头的值。
+     *
+     * @param ranges
+     * @return
+     */
+    public static String toHeader(List<ByteRange> ranges) {
+        StringBuilder buf = new StringBuilder("bytes=");
+        for (ByteRange range : ranges) {
+            buf.append(range.toString()).append(",");
+        }
+        buf.delete(buf.length() - 1, buf.length());
+        return buf.toString();
+    }
+}
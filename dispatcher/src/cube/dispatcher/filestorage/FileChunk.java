@@ -26,11 +26,9 @@
 
 package cube.dispatcher.filestorage;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * 文件数据块。
@@ -85,12 +83,12 @@ public class FileChunk implements Comparable<FileChunk> {
     /**
      * 当前文件块的数据。
      */
-    private byte[] data;
+    private volatile byte[] data;
 
     /**
-     * 当前文件块数据的临时文件。
+     * 当前文件块数据所在的缓冲文件通道，数据写在通道的 {@code cursor} 位置。
      */
-    private Path dataFile;
+    private volatile FileChannel spool;
 
     /**
      * 构造函数。
@@ -119,40 +117,130 @@ public class FileChunk implements Comparable<FileChunk> {
     }
 
     /**
-     * 将数据写到临时文件。
+     * 将数据写入缓冲文件并释放内存里的数据。
+     *
+     * @param channel
+     * @throws IOException
+     */
+    public void spool(FileChannel channel) throws IOException {
+        byte[] data = this.data;
+        if (null == data) {
+            return;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(data, 0, this.size);
+        long offset = this.cursor;
+        while (buf.hasRemaining()) {
+            offset += channel.write(buf, offset);
+        }
+
+        this.spool = channel;
+        this.data = null;
+    }
+
+    /**
+     * 数据是否已写入缓冲文件。
+     *
+     * @return
+     */
+    public boolean isSpooled() {
+        return (null == this.data && null != this.spool);
+    }
+
+    /**
+     * 从块内指定位置读取数据。
+     *
+     * @param offset 块内偏移。
+     * @param buf
+     * @param off
+     * @param len
+     * @return 返回读取的长度。
+     * @throws IOException
+     */
+    public int read(int offset, byte[] buf, int off, int len) throws IOException {
+        len = Math.min(len, this.size - offset);
+        if (len <= 0) {
+            return 0;
+        }
+
+        byte[] data = this.data;
+        if (null != data) {
+            System.arraycopy(data, offset, buf, off, len);
+            return len;
+        }
+
+        FileChannel channel = this.spool;
+        if (null == channel) {
+            throw new IOException("File chunk data has been cleared: " + this.cursor);
+        }
+
+        ByteBuffer dst = ByteBuffer.wrap(buf, off, len);
+        long position = this.cursor + offset;
+        while (dst.hasRemaining()) {
+            int length = channel.read(dst, position);
+            if (length < 0) {
+                throw new IOException("Unexpected end of spool file: " + position);
+            }
+            position += length;
+        }
+
+        return len;
+    }
+
+    /**
+     * 获取块数据的缓冲区，已写入缓冲文件的数据使用内存映射读取。
+     *
+     * @return
+     * @throws IOException
      */
-    public void flush(Path path, String filename) {
-        this.dataFile = Paths.get(path.toString(), filename);
+    public ByteBuffer getBuffer() throws IOException {
+        byte[] data = this.data;
+        if (null != data) {
+            return ByteBuffer.wrap(data, 0, this.size);
+        }
+
+        FileChannel channel = this.spool;
+        if (null == channel) {
+            throw new IOException("File chunk data has been cleared: " + this.cursor);
+        }
+
+        return channel.map(FileChannel.MapMode.READ_ONLY, this.cursor, this.size);
+    }
+
+    /**
+     * 读取块头部的数据。
+     *
+     * @param length
+     * @return
+     */
+    public byte[] getHead(int length) {
+        byte[] head = new byte[Math.min(length, this.size)];
         try {
-            Files.write(this.dataFile, this.data);
+            this.read(0, head, 0, head.length);
         } catch (IOException e) {
-            e.printStackTrace();
+            return new byte[0];
         }
-        this.data = null;
+        return head;
     }
 
     public byte[] getData() {
-        if (null == this.data && null != this.dataFile) {
-            try {
-                return Files.readAllBytes(this.dataFile);
-            } catch (IOException e) {
-                return null;
-            }
+        byte[] data = this.data;
+        if (null != data || null == this.spool) {
+            return data;
         }
-        else {
-            return this.data;
+
+        byte[] result = new byte[this.size];
+        try {
+            this.read(0, result, 0, this.size);
+        } catch (IOException e) {
+            return null;
         }
+        return result;
     }
 
     public void clear() {
         this.data = null;
-        if (null != this.dataFile) {
-            try {
-                Files.delete(this.dataFile);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        this.spool = null;
     }
 
     @Override
@@ -39,13 +39,18 @@ import cube.util.FileType;
 import cube.util.FileUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -82,10 +87,20 @@ public class FileChunkStorage {
     private boolean writeDisk = false;
 
     /**
-     * 为每一个文件分配的内存缓存大小，超过该大小的部分将写入临时文件。
+     * 为每一个文件分配的内存缓存大小，超过该大小后该文件的所有块都写入缓冲文件。
      */
     private int sizeEachFile = 5 * 1024 * 1024;
 
+    /**
+     * 透传时等待后续文件块的超时时间。
+     */
+    private long chunkWaitTimeout = 5L * 60L * 1000L;
+
+    /**
+     * 判断文件类型时读取的文件头长度。
+     */
+    private final static int FILE_HEAD_LENGTH = 512;
+
     public FileChunkStorage(String path) {
         this.workingPath = Paths.get(path).toAbsolutePath();
         if (!Files.exists(this.workingPath)) {
@@ -172,9 +187,7 @@ public class FileChunkStorage {
         FileOutputStream fos = null;
         try {
             fos = new FileOutputStream(file);
-            for (FileChunk chunk : fileChunkStore.chunks) {
-                fos.write(chunk.getData());
-            }
+            fileChunkStore.transferTo(fos.getChannel());
             fos.flush();
         } catch (FileNotFoundException e) {
             e.printStackTrace();
@@ -257,42 +270,94 @@ public class FileChunkStorage {
 
         protected String tokenCode;
 
-        private ArrayList<FileChunk> chunks;
+        /**
+         * 按游标排序的文件块。
+         */
+        private TreeMap<Long, FileChunk> chunks;
 
-        protected boolean completed = false;
+        protected volatile boolean completed = false;
 
         protected AtomicBoolean running = new AtomicBoolean(false);
 
         private long totalLength = 0;
 
+        private boolean closed = false;
+
+        /**
+         * 缓冲文件，按块的游标位置写入数据。
+         */
+        private Path spoolFile;
+
+        private FileChannel spool;
+
+        /**
+         * 随连续块到达增量计算的散列。
+         */
+        private MessageDigest md5;
+
+        private MessageDigest sha1;
+
+        /**
+         * 已计算散列的数据位置。
+         */
+        private long hashedPosition = 0;
+
+        private String md5Code;
+
+        private String sha1Code;
+
         protected FileChunkStore(String fileCode, String tokenCode) {
             this.fileCode = fileCode;
             this.tokenCode = tokenCode;
-            this.chunks = new ArrayList<>();
+            this.chunks = new TreeMap<>();
+
+            try {
+                this.md5 = MessageDigest.getInstance("MD5");
+                this.sha1 = MessageDigest.getInstance("SHA1");
+            } catch (NoSuchAlgorithmException e) {
+                e.printStackTrace();
+            }
         }
 
         protected void add(FileChunk fileChunk) {
             synchronized (this.chunks) {
-                int index = this.chunks.indexOf(fileChunk);
-                if (index >= 0) {
-                    this.chunks.remove(index);
-                }
+                FileChunk old = this.chunks.put(fileChunk.cursor, fileChunk);
+                if (null != old) {
+                    this.totalLength -= old.size;
 
-                this.chunks.add(fileChunk);
+                    if (old.cursor < this.hashedPosition) {
+                        // 已计算散列的块被替换，重新计算
+                        this.resetDigest();
+                    }
+                }
 
                 // 更新总大小
                 this.totalLength += fileChunk.size;
 
-                if (this.totalLength > sizeEachFile) {
-                    // 超过缓存阀值
-                    fileChunk.flush(workingPath, fileCode + "." + fileChunk.cursor + ".tmp");
+                // 在数据写入缓冲文件之前更新散列
+                this.updateDigest();
+
+                if (null == this.spool && this.totalLength > sizeEachFile && !this.closed) {
+                    // 超过缓存阀值，切换到缓冲文件
+                    this.openSpool(fileChunk.fileSize);
+                }
+
+                if (null != this.spool) {
+                    try {
+                        fileChunk.spool(this.spool);
+                    } catch (IOException e) {
+                        Logger.w(this.getClass(), "Spool file chunk failed: " + this.fileCode, e);
+                    }
                 }
+
+                // 通知等待数据的输入流
+                this.chunks.notifyAll();
             }
         }
 
         protected FileChunk last() {
             synchronized (this.chunks) {
-                return this.chunks.get(this.chunks.size() - 1);
+                return this.chunks.lastEntry().getValue();
             }
         }
 
@@ -304,24 +369,170 @@ public class FileChunkStorage {
 
         protected FileChunk get(long cursor) {
             synchronized (this.chunks) {
-                for (int i = 0, size = this.chunks.size(); i < size; ++i) {
-                    FileChunk fileChunk = this.chunks.get(i);
-                    if (fileChunk.cursor == cursor) {
-                        return fileChunk;
+                return this.chunks.get(cursor);
+            }
+        }
+
+        /**
+         * 获取指定游标的文件块，如果该块还未到达则阻塞等待。
+         *
+         * @param cursor
+         * @param timeout
+         * @return 超时或存储已关闭时返回 {@code null} 。
+         */
+        protected FileChunk await(long cursor, long timeout) {
+            long deadline = System.currentTimeMillis() + timeout;
+
+            synchronized (this.chunks) {
+                FileChunk chunk = this.chunks.get(cursor);
+                while (null == chunk && !this.closed) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
                     }
+
+                    try {
+                        this.chunks.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+
+                    chunk = this.chunks.get(cursor);
+                }
+
+                return chunk;
+            }
+        }
+
+        /**
+         * 按游标顺序返回所有文件块。
+         *
+         * @return
+         */
+        protected List<FileChunk> list() {
+            synchronized (this.chunks) {
+                return new ArrayList<>(this.chunks.values());
+            }
+        }
+
+        /**
+         * 从已计算位置开始，将连续的块更新到散列。
+         */
+        private void updateDigest() {
+            if (null == this.md5 || null != this.md5Code) {
+                return;
+            }
+
+            FileChunk chunk = null;
+            while (null != (chunk = this.chunks.get(this.hashedPosition)) && chunk.position > this.hashedPosition) {
+                try {
+                    ByteBuffer data = chunk.getBuffer();
+                    this.md5.update(data.duplicate());
+                    this.sha1.update(data);
+                } catch (IOException e) {
+                    Logger.w(this.getClass(), "Digest file chunk failed: " + this.fileCode, e);
+                    this.resetDigest();
+                    return;
+                }
+
+                this.hashedPosition = chunk.position;
+
+                if (this.hashedPosition >= chunk.fileSize) {
+                    // 最后一块已到达
+                    this.md5Code = FileUtils.bytesToHexString(this.md5.digest());
+                    this.sha1Code = FileUtils.bytesToHexString(this.sha1.digest());
+                    break;
                 }
             }
+        }
 
-            return null;
+        private void resetDigest() {
+            if (null != this.md5) {
+                this.md5.reset();
+                this.sha1.reset();
+            }
+
+            this.hashedPosition = 0;
+            this.md5Code = null;
+            this.sha1Code = null;
+        }
+
+        /**
+         * 创建预分配大小的稀疏缓冲文件，并将已在内存里的块写入该文件。
+         *
+         * @param fileSize
+         */
+        private void openSpool(long fileSize) {
+            Path path = Paths.get(workingPath.toString(), this.fileCode + ".spool");
+            try {
+                this.spool = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.SPARSE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                this.spoolFile = path;
+
+                if (fileSize > 0) {
+                    // 写入最后一个字节以分配文件大小
+                    this.spool.write(ByteBuffer.wrap(new byte[1]), fileSize - 1);
+                }
+
+                for (FileChunk chunk : this.chunks.values()) {
+                    chunk.spool(this.spool);
+                }
+            } catch (IOException e) {
+                Logger.w(this.getClass(), "Open spool file failed: " + path.toString(), e);
+            }
+        }
+
+        /**
+         * 将按游标顺序排列的数据写入指定通道。
+         *
+         * @param target
+         * @throws IOException
+         */
+        protected void transferTo(WritableByteChannel target) throws IOException {
+            for (FileChunk chunk : this.list()) {
+                if (chunk.isSpooled()) {
+                    FileChannel channel = this.spool;
+                    long position = chunk.cursor;
+                    long end = chunk.position;
+                    while (position < end) {
+                        position += channel.transferTo(position, end - position, target);
+                    }
+                }
+                else {
+                    ByteBuffer buf = chunk.getBuffer();
+                    while (buf.hasRemaining()) {
+                        target.write(buf);
+                    }
+                }
+            }
         }
 
         protected void close() {
             synchronized (this.chunks) {
-                for (FileChunk chunk : this.chunks) {
+                for (FileChunk chunk : this.chunks.values()) {
                     chunk.clear();
                 }
 
                 this.chunks.clear();
+
+                if (null != this.spool) {
+                    try {
+                        this.spool.close();
+                    } catch (IOException e) {
+                        // Nothing
+                    }
+                    this.spool = null;
+
+                    try {
+                        Files.deleteIfExists(this.spoolFile);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+
+                this.closed = true;
+                this.chunks.notifyAll();
             }
         }
 
@@ -331,36 +542,24 @@ public class FileChunkStorage {
          * @return
          */
         protected FileLabel makeFileLabel() {
-            // 计算文件散列码
-            MessageDigest md5 = null;
-            MessageDigest sha1 = null;
-            try {
-                md5 = MessageDigest.getInstance("MD5");
-                sha1 = MessageDigest.getInstance("SHA1");
-            } catch (NoSuchAlgorithmException e) {
-                e.printStackTrace();
-            }
+            FileChunk chunk = null;
+            String md5Code = null;
+            String sha1Code = null;
 
             synchronized (this.chunks) {
-                // 排序
-                Collections.sort(this.chunks);
-
-                for (FileChunk chunk : this.chunks) {
-                    byte[] data = chunk.getData();
-                    md5.update(data);
-                    sha1.update(data);
+                if (null == this.md5Code) {
+                    // 增量散列不可用时，重新计算
+                    this.resetDigest();
+                    this.updateDigest();
                 }
-            }
-
-            byte[] hashMD5 = md5.digest();
-            byte[] hashSHA1 = sha1.digest();
-            String md5Code = FileUtils.bytesToHexString(hashMD5);
-            String sha1Code = FileUtils.bytesToHexString(hashSHA1);
 
-            FileChunk chunk = this.chunks.get(0);
+                md5Code = this.md5Code;
+                sha1Code = this.sha1Code;
+                chunk = this.chunks.firstEntry().getValue();
+            }
 
             // 判断文件类型
-            FileType fileType = FileUtils.verifyFileType(chunk.fileName, chunk.getData());
+            FileType fileType = FileUtils.verifyFileType(chunk.fileName, chunk.getHead(FILE_HEAD_LENGTH));
 
             FileLabel fileLabel = new FileLabel(chunk.domain, this.fileCode, chunk.contactId, chunk.fileName,
                     chunk.fileSize, chunk.lastModified, System.currentTimeMillis(), 0);
@@ -377,34 +576,32 @@ public class FileChunkStorage {
             // 检查块是否连续
             boolean continuous = true;
             boolean completed = false;
+            boolean beginning = false;
 
             synchronized (this.chunks) {
-                // 排序
-                Collections.sort(this.chunks);
-
-                // 检查状态
-                for (int i = 0, ni = 1, size = this.chunks.size(); i < size; ++i, ++ni) {
-                    FileChunk chunk = this.chunks.get(i);
-                    FileChunk next = ni < size ? this.chunks.get(ni) : null;
-
-                    if (null != next) {
-                        if (chunk.position != next.cursor) {
-                            continuous = false;
-                            break;
-                        }
+                FileChunk chunk = null;
+
+                // 检查状态，块已按游标排序
+                for (FileChunk next : this.chunks.values()) {
+                    if (null != chunk && chunk.position != next.cursor) {
+                        continuous = false;
+                        break;
                     }
-                    else {
-                        // next 为空，chunk 是最后一块，判断是否结束
-                        if (chunk.position == chunk.fileSize) {
-                            if (this.chunks.get(0).cursor == 0) {
-                                completed = true;
-                            }
-                        }
+
+                    chunk = next;
+                }
+
+                if (null != chunk) {
+                    beginning = (this.chunks.firstKey() == 0);
+
+                    // chunk 是最后一块，判断是否结束
+                    if (continuous && chunk.position == chunk.fileSize && beginning) {
+                        completed = true;
                     }
                 }
             }
 
-            if (this.chunks.get(0).cursor == 0) {
+            if (beginning) {
                 // 将文件传输给服务节点
                 expressToService(this);
             }
@@ -426,83 +623,89 @@ public class FileChunkStorage {
 
         private FileChunkStore store;
 
-        private int cursor = -1;
-
-        private int chunkCursor = -1;
+        /**
+         * 当前块内的读取位置。
+         */
+        private int chunkCursor = 0;
 
         private FileChunk current = null;
 
-        private byte[] currentData = null;
+        private byte[] single = new byte[1];
 
         public ChunkInputStream(FileChunkStore store) {
             this.store = store;
             this.current = store.get(0);
-            this.currentData = this.current.getData();
         }
 
-        @Override
-        public int read() throws IOException {
-            // 文件游标后移
-            ++this.cursor;
-            // 块游标后移
-            ++this.chunkCursor;
-
-            if (this.store.completed && this.chunkCursor >= this.current.size && this.current.position >= this.current.fileSize) {
-                // 已经完成读取
-                return -1;
-            }
-
-            if (this.chunkCursor >= this.current.size) {
-                // 重置块游标
-                this.chunkCursor = 0;
-
-                if (this.store.completed && this.current.position >= this.current.fileSize) {
+        /**
+         * 确保当前块有可读数据，必要时切换到下一块。
+         *
+         * @param wait 下一块未到达时是否等待。
+         * @return 没有可读数据时返回 {@code false} 。
+         */
+        private boolean advance(boolean wait) {
+            while (null != this.current && this.chunkCursor >= this.current.size) {
+                if (this.current.position >= this.current.fileSize) {
                     // 已经完成读取
-                    return -1;
+                    return false;
                 }
 
-                FileChunk chunk = this.store.get(this.current.position);
+                FileChunk chunk = wait ? this.store.await(this.current.position, chunkWaitTimeout)
+                        : this.store.get(this.current.position);
                 if (null == chunk) {
-                    // 没有完成，但是无新数据，进行等待
-                    int waitCount = 3000;
-                    while (null == chunk) {
-                        // 等待
-                        try {
-                            Thread.sleep(100L);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                        --waitCount;
-                        if (waitCount < 0) {
-                            break;
-                        }
-
-                        chunk = this.store.get(this.current.position);
-                    }
-
-                    if (null == chunk) {
+                    if (wait) {
                         // 超时结束
                         Logger.w(this.getClass(), "Chunk file stream timeout: " + this.store.fileCode);
-                        return -1;
                     }
-
-                    this.current = chunk;
-                    this.currentData = chunk.getData();
-                }
-                else {
-                    this.current = chunk;
-                    this.currentData = chunk.getData();
+                    return false;
                 }
+
+                this.current = chunk;
+                this.chunkCursor = 0;
+            }
+
+            return (null != this.current);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int length = this.read(this.single, 0, 1);
+            return (length <= 0) ? -1 : (this.single[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
             }
 
-            byte b = this.currentData[this.chunkCursor];
-            return b & 0xFF;
+            if (len == 0) {
+                return 0;
+            }
+
+            // 仅在没有读到任何数据时等待后续块
+            if (!this.advance(true)) {
+                return -1;
+            }
+
+            int total = 0;
+            do {
+                int length = this.current.read(this.chunkCursor, b, off + total, len - total);
+                this.chunkCursor += length;
+                total += length;
+            } while (total < len && this.advance(false));
+
+            return total;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (null != this.current) ? this.current.size - this.chunkCursor : 0;
         }
 
         @Override
         public void close() throws IOException {
             this.current = null;
-            this.currentData = null;
             passingChunkInputStreams.remove(this.store.fileCode);
         }
     }
@@ -28,7 +28,6 @@ package cube.dispatcher.filestorage;
 
 import cell.core.talk.dialect.ActionDialect;
 import cell.util.Utils;
-import cell.util.collection.FlexibleByteBuffer;
 import cell.util.log.Logger;
 import cube.common.Packet;
 import cube.common.action.FileStorageAction;
@@ -38,11 +37,13 @@ import cube.dispatcher.Performer;
 import cube.util.CrossDomainHandler;
 import cube.util.FileType;
 import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
 import org.eclipse.jetty.client.api.Response;
 import org.eclipse.jetty.client.api.Result;
-import org.eclipse.jetty.client.util.BufferingResponseListener;
-import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.util.Callback;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -50,12 +51,11 @@ import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.util.concurrent.ExecutionException;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 /**
  * 文件上传处理。
@@ -66,7 +66,20 @@ public class FileHandler extends CrossDomainHandler {
 
     private Performer performer;
 
-    private int bufferSize = 5 * 1024 * 1024;
+    /**
+     * 代理下载时存储服务连接的空闲超时时间，单位：毫秒。
+     */
+    private long idleTimeout = 30L * 1000L;
+
+    /**
+     * 表单解析缓存，每个线程复用一个。
+     */
+    private final static ThreadLocal<byte[]> sParseBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[32 * 1024];
+        }
+    };
 
     /**
      *
@@ -96,19 +109,6 @@ public class FileHandler extends CrossDomainHandler {
         // SN
         Long sn = Long.parseLong(request.getParameter("sn"));
 
-        // 读取流
-        FlexibleByteBuffer buf = new FlexibleByteBuffer();
-        byte[] bytes = new byte[4096];
-        InputStream is = request.getInputStream();
-
-        int length = 0;
-        while ((length = is.read(bytes)) > 0) {
-            buf.put(bytes, 0, length);
-        }
-
-        // 整理缓存
-        buf.flip();
-
         // Contact ID
         Long contactId = null;
         // 域
@@ -127,7 +127,15 @@ public class FileHandler extends CrossDomainHandler {
         byte[] data = null;
 
         try {
-            FormData formData = new FormData(buf.array(), 0, buf.limit());
+            // 文件块不能超过请求体长度
+            int maxChunkSize = FormData.DEFAULT_MAX_CHUNK_SIZE;
+            long contentLength = request.getContentLengthLong();
+            if (contentLength >= 0 && contentLength < maxChunkSize) {
+                maxChunkSize = (int) contentLength;
+            }
+
+            // 以流方式解析表单，文件数据直接写入文件块
+            FormData formData = new FormData(request.getInputStream(), sParseBuffer.get(), maxChunkSize);
 
             contactId = Long.parseLong(formData.getValue("cid"));
             domain = formData.getValue("domain");
@@ -137,14 +145,16 @@ public class FileHandler extends CrossDomainHandler {
             size = Integer.parseInt(formData.getValue("size"));
             fileName = formData.getFileName();
             data = formData.getFileChunk();
+
+            if (null == data || data.length != size) {
+                throw new IOException("File chunk size mismatch: " + (null == data ? 0 : data.length) + " != " + size);
+            }
         } catch (Exception e) {
             Logger.w(this.getClass(), "FileUploadHandler", e);
             this.respond(response, HttpStatus.FORBIDDEN_403, new JSONObject());
             return;
         }
 
-        buf = null;
-
         FileChunk chunk = new FileChunk(contactId, domain, token, fileName, fileSize, lastModified, cursor, size, data);
         String fileCode = this.fileChunkStorage.append(chunk);
 
@@ -242,125 +252,169 @@ public class FileHandler extends CrossDomainHandler {
 
         FileLabel fileLabel = new FileLabel(fileLabelJson);
 
-        if (fileLabel.getFileSize() > (long) this.bufferSize) {
-            this.processByNonBlocking(request, response, fileLabel, type);
-        }
-        else {
-            this.processByBlocking(request, response, fileLabel, type);
+        // 校验信息
+        String etag = this.makeETag(fileLabel);
+        long lastModified = fileLabel.getLastModified();
+        this.fillValidators(response, etag, lastModified);
 
+        // 条件请求
+        if (this.isNotModified(request, etag, lastModified)) {
+            response.setStatus(HttpStatus.NOT_MODIFIED_304);
             this.complete();
+            return;
         }
-    }
 
-    private void processByBlocking(HttpServletRequest request, HttpServletResponse response,
-                                   FileLabel fileLabel, FileType type)
-            throws IOException, ServletException {
-        final Object mutex = new Object();
-
-        final FlexibleByteBuffer buf = new FlexibleByteBuffer((int)fileLabel.getFileSize());
-
-        HttpClient httpClient = HttpClientFactory.getInstance().createHttpClient();
-        httpClient.newRequest(fileLabel.getDirectURL())
-                .send(new BufferingResponseListener(this.bufferSize) {
-                    @Override
-                    public void onComplete(Result result) {
-                        if (!result.isFailed()) {
-                            byte[] responseContent = getContent();
-                            buf.put(responseContent);
-                        }
+        // 范围请求
+        List<ByteRange> ranges = null;
+        if (null != request.getHeader("Range") && this.matchIfRange(request, etag, lastModified)) {
+            ranges = ByteRange.parse(request.getHeader("Range"), fileLabel.getFileSize());
+            if (null != ranges && ranges.isEmpty()) {
+                response.setHeader("Content-Range", "bytes */" + fileLabel.getFileSize());
+                response.setStatus(HttpStatus.RANGE_NOT_SATISFIABLE_416);
+                this.complete();
+                return;
+            }
+        }
 
-                        synchronized (mutex) {
-                            mutex.notify();
-                        }
-                    }
-                });
+        // 异步代理文件数据
+        this.processByProxy(request, response, fileLabel, type, ranges);
 
-        synchronized (mutex) {
-            try {
-                mutex.wait(30L * 1000L);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        this.complete();
+    }
+
+    /**
+     * 以异步方式代理存储服务的文件数据，Servlet 线程不等待数据。
+     *
+     * @param request
+     * @param response
+     * @param fileLabel
+     * @param type
+     * @param ranges 请求的字节范围，非范围请求时为 {@code null} 。
+     */
+    private void processByProxy(HttpServletRequest request, HttpServletResponse response,
+                                FileLabel fileLabel, FileType type, List<ByteRange> ranges)
+            throws IOException {
+        HttpClient httpClient = HttpClientFactory.getInstance().getHttpClient(fileLabel.getDirectURL());
+        if (null == httpClient) {
+            response.setStatus(HttpStatus.SERVICE_UNAVAILABLE_503);
+            return;
         }
 
-        buf.flip();
+        AsyncContext async = request.startAsync();
+        // 由客户端的空闲超时控制
+        async.setTimeout(0);
 
-        // 填写头信息
-        this.fillHeaders(response, fileLabel, buf.limit(), type);
+        Request clientRequest = httpClient.newRequest(fileLabel.getDirectURL())
+                .idleTimeout(this.idleTimeout, TimeUnit.MILLISECONDS);
+        if (null != ranges) {
+            // 将范围请求传递给存储服务
+            clientRequest.header(HttpHeader.RANGE, ByteRange.toHeader(ranges));
+        }
 
-        ServletOutputStream outputStream = response.getOutputStream();
-        outputStream.write(buf.array(), 0, buf.limit());
+        ProxyStream stream = new ProxyStream(async, response, fileLabel, type, ranges);
+        async.addListener(stream);
+        response.getOutputStream().setWriteListener(stream);
 
-        buf.clear();
+        clientRequest.send(stream);
+    }
 
-        response.setStatus(HttpStatus.OK_200);
+    /**
+     * 使用文件的 MD5 或 SHA1 码生成 ETag 。
+     *
+     * @param fileLabel
+     * @return 文件没有校验码时返回 {@code null} 。
+     */
+    private String makeETag(FileLabel fileLabel) {
+        String code = fileLabel.getMD5Code();
+        if (null == code || code.length() == 0) {
+            code = fileLabel.getSHA1Code();
+        }
+
+        if (null == code || code.length() == 0) {
+            return null;
+        }
 
-        HttpClientFactory.getInstance().destroyHttpClient(httpClient);
+        return "\"" + code + "\"";
     }
 
-    private void processByNonBlocking(HttpServletRequest request, HttpServletResponse response,
-                                      FileLabel fileLabel, FileType type)
-            throws IOException, ServletException {
-        InputStreamResponseListener listener = new InputStreamResponseListener();
+    private void fillValidators(HttpServletResponse response, String etag, long lastModified) {
+        response.setHeader("Accept-Ranges", "bytes");
 
-        HttpClient httpClient = HttpClientFactory.getInstance().createHttpClient();
-        httpClient.newRequest(fileLabel.getDirectURL())
-                .timeout(10, TimeUnit.SECONDS)
-                .send(listener);
+        if (null != etag) {
+            response.setHeader("ETag", etag);
+        }
 
-        Response clientResponse = null;
-        try {
-            clientResponse = listener.get(5, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (TimeoutException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
+        if (lastModified > 0) {
+            response.setDateHeader("Last-Modified", lastModified);
         }
+    }
 
-        if (null != clientResponse && clientResponse.getStatus() == HttpStatus.OK_200) {
-            InputStream content = listener.getInputStream();
+    /**
+     * 判断条件请求的文件是否未修改。If-None-Match 优先于 If-Modified-Since 。
+     *
+     * @param request
+     * @param etag
+     * @param lastModified
+     * @return
+     */
+    private boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (null != ifNoneMatch) {
+            if (null == etag) {
+                return false;
+            }
 
-            // async output
-            AsyncContext async = request.startAsync();
-            ServletOutputStream output = response.getOutputStream();
-            StandardDataStream dataStream = new StandardDataStream(content, async, output);
-            async.addListener(new AsyncListener() {
-                @Override
-                public void onStartAsync(AsyncEvent asyncEvent) throws IOException {
-                    Logger.d(this.getClass(), "onStartAsync");
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
                 }
 
-                @Override
-                public void onComplete(AsyncEvent asyncEvent) throws IOException {
-                    Logger.d(this.getClass(), "onComplete");
-                    HttpClientFactory.getInstance().destroyHttpClient(httpClient);
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
                 }
+            }
 
-                @Override
-                public void onTimeout(AsyncEvent asyncEvent) throws IOException {
-                    Logger.d(this.getClass(), "onTimeout");
-                    HttpClientFactory.getInstance().destroyHttpClient(httpClient);
-                }
+            return false;
+        }
 
-                @Override
-                public void onError(AsyncEvent asyncEvent) throws IOException {
-                    Logger.d(this.getClass(), "onError");
-                    HttpClientFactory.getInstance().destroyHttpClient(httpClient);
-                }
-            });
+        if (lastModified <= 0) {
+            return false;
+        }
 
-            // 设置数据写入监听器
-            output.setWriteListener(dataStream);
+        try {
+            long since = request.getDateHeader("If-Modified-Since");
+            return (since > 0 && lastModified / 1000L <= since / 1000L);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
 
-            // 填充 Header
-            fillHeaders(response, fileLabel, fileLabel.getFileSize(), type);
-            response.setStatus(HttpStatus.OK_200);
+    /**
+     * 判断 If-Range 条件是否满足，不满足时忽略范围请求。
+     *
+     * @param request
+     * @param etag
+     * @param lastModified
+     * @return
+     */
+    private boolean matchIfRange(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (null == ifRange) {
+            return true;
         }
-        else {
-            this.respond(response, HttpStatus.BAD_REQUEST_400, fileLabel.toCompactJSON());
-            HttpClientFactory.getInstance().destroyHttpClient(httpClient);
+
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // 只允许强校验
+            return (null != etag && ifRange.equals(etag));
+        }
+
+        try {
+            long date = request.getDateHeader("If-Range");
+            return (lastModified > 0 && lastModified / 1000L == date / 1000L);
+        } catch (IllegalArgumentException e) {
+            return false;
         }
     }
 
@@ -392,55 +446,295 @@ public class FileHandler extends CrossDomainHandler {
     }
 
     /**
-     * 标准数据流输出。
+     * 代理数据流。将存储服务的响应数据块直接写入 Servlet 输出，
+     * 数据块写完之后才通知客户端读取下一块，以此实现背压。
      */
-    private final class StandardDataStream implements WriteListener {
+    private final class ProxyStream extends Response.Listener.Adapter implements WriteListener, AsyncListener {
 
-        private final InputStream content;
         private final AsyncContext async;
+        private final HttpServletResponse response;
         private final ServletOutputStream output;
+        private final FileLabel fileLabel;
+        private final FileType type;
+        private final List<ByteRange> ranges;
+
+        /**
+         * 需要跳过的数据长度。
+         */
+        private long skip = 0;
+
+        /**
+         * 剩余输出长度，小于 0 表示输出全部数据。
+         */
+        private long remaining = -1;
+
+        /**
+         * 等待写入的数据块。
+         */
+        private ByteBuffer pending;
+
+        private Callback pendingCallback;
+
+        /**
+         * 正在写入的数据块的回调。
+         */
+        private Callback writingCallback;
+
+        private Response clientResponse;
+
+        private boolean contentEnd = false;
+
+        private boolean completed = false;
 
         protected long contentLength = 0;
 
-        private StandardDataStream(InputStream content, AsyncContext async, ServletOutputStream output) {
-            this.content = content;
+        private ProxyStream(AsyncContext async, HttpServletResponse response, FileLabel fileLabel,
+                            FileType type, List<ByteRange> ranges) throws IOException {
             this.async = async;
-            this.output = output;
+            this.response = response;
+            this.output = response.getOutputStream();
+            this.fileLabel = fileLabel;
+            this.type = type;
+            this.ranges = ranges;
         }
 
         @Override
-        public void onWritePossible() throws IOException {
-            byte[] buffer = new byte[4096];
-
-            // 输出流是否就绪
-            while (this.output.isReady()) {
-                int len = this.content.read(buffer);
-                if (len < 0) {
-                    this.async.complete();
-                    try {
-                        this.content.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    return;
+        public void onHeaders(Response clientResponse) {
+            synchronized (this) {
+                this.clientResponse = clientResponse;
+            }
+
+            int status = clientResponse.getStatus();
+            if (status != HttpStatus.OK_200 && status != HttpStatus.PARTIAL_CONTENT_206) {
+                clientResponse.abort(new IOException("Storage responded " + status));
+                return;
+            }
+
+            long length = this.fileLabel.getFileSize();
+            if (null != this.ranges && this.ranges.size() == 1) {
+                // 单个范围
+                ByteRange range = this.ranges.get(0);
+                if (status == HttpStatus.OK_200) {
+                    // 存储服务未处理范围请求，跳过范围之前的数据
+                    this.skip = range.first;
+                    this.remaining = range.getLength();
                 }
 
-                // 将数据写入输出流
-                this.output.write(buffer, 0, len);
-                this.contentLength += len;
+                length = range.getLength();
+                this.response.setHeader("Content-Range", range.toContentRange(this.fileLabel.getFileSize()));
+                status = HttpStatus.PARTIAL_CONTENT_206;
+            }
+            else if (null != this.ranges && status == HttpStatus.PARTIAL_CONTENT_206) {
+                // 多个范围，透传存储服务的 multipart/byteranges 数据
+                length = clientResponse.getHeaders().getLongField(HttpHeader.CONTENT_LENGTH.asString());
+            }
+
+            fillHeaders(this.response, this.fileLabel, length, this.type);
+            if (null != this.ranges && this.ranges.size() > 1 && status == HttpStatus.PARTIAL_CONTENT_206) {
+                this.response.setContentType(clientResponse.getHeaders().get(HttpHeader.CONTENT_TYPE));
+            }
+            this.response.setStatus(status);
+        }
+
+        @Override
+        public void onContent(Response clientResponse, ByteBuffer content, Callback callback) {
+            synchronized (this) {
+                this.pending = content;
+                this.pendingCallback = callback;
             }
+
+            this.drain();
+        }
+
+        @Override
+        public void onComplete(Result result) {
+            boolean satisfied = false;
+            synchronized (this) {
+                this.contentEnd = true;
+                satisfied = (this.remaining == 0);
+            }
+
+            if (result.isFailed() && !satisfied) {
+                Logger.w(this.getClass(), "Proxy file failed: " + this.fileLabel.getFileCode(),
+                        result.getFailure());
+
+                if (!this.response.isCommitted()) {
+                    this.response.setStatus(HttpStatus.BAD_REQUEST_400);
+                }
+
+                this.finish();
+                return;
+            }
+
+            this.drain();
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            this.drain();
         }
 
         @Override
         public void onError(Throwable throwable) {
             Logger.w(this.getClass(), "Async Error", throwable);
-            this.async.complete();
+            this.abort(throwable);
+        }
 
+        /**
+         * 在输出就绪时完成已写入的数据块，并写入等待的数据块。
+         */
+        private void drain() {
             try {
-                this.content.close();
+                while (true) {
+                    Callback succeeded = null;
+                    Callback failed = null;
+                    boolean end = false;
+
+                    synchronized (this) {
+                        if (this.completed || !this.output.isReady()) {
+                            // 输出未就绪时由 onWritePossible 继续
+                            return;
+                        }
+
+                        if (null != this.writingCallback) {
+                            succeeded = this.writingCallback;
+                            this.writingCallback = null;
+
+                            if (this.remaining == 0) {
+                                // 范围数据已完整，不再读取，以失败结束回调后中止请求
+                                failed = succeeded;
+                                succeeded = null;
+                                end = true;
+                            }
+                        }
+                        else if (null != this.pending) {
+                            ByteBuffer content = this.slice(this.pending);
+                            this.writingCallback = this.pendingCallback;
+                            this.pending = null;
+                            this.pendingCallback = null;
+
+                            if (content.hasRemaining()) {
+                                this.contentLength += content.remaining();
+                                this.write(content);
+                            }
+
+                            continue;
+                        }
+                        else if (this.contentEnd) {
+                            end = true;
+                        }
+                        else {
+                            return;
+                        }
+                    }
+
+                    if (null != succeeded) {
+                        // 通知客户端读取下一块数据
+                        succeeded.succeeded();
+                    }
+
+                    if (end) {
+                        if (this.remaining == 0) {
+                            IOException cause = new IOException("Range satisfied");
+                            if (null != failed) {
+                                failed.failed(cause);
+                            }
+                            if (null != this.clientResponse) {
+                                this.clientResponse.abort(cause);
+                            }
+                        }
+                        this.finish();
+                        return;
+                    }
+                }
             } catch (IOException e) {
-                e.printStackTrace();
+                this.abort(e);
+            }
+        }
+
+        /**
+         * 按跳过长度和剩余长度截取数据块。
+         */
+        private ByteBuffer slice(ByteBuffer content) {
+            if (this.skip > 0) {
+                int n = (int) Math.min(this.skip, content.remaining());
+                content.position(content.position() + n);
+                this.skip -= n;
+            }
+
+            if (this.remaining >= 0) {
+                if (content.remaining() > this.remaining) {
+                    content.limit(content.position() + (int) this.remaining);
+                }
+                this.remaining -= content.remaining();
+            }
+
+            return content;
+        }
+
+        private void write(ByteBuffer content) throws IOException {
+            if (this.output instanceof HttpOutput) {
+                // 直接写入数据块，不复制数据
+                ((HttpOutput) this.output).write(content);
+            }
+            else {
+                byte[] bytes = new byte[content.remaining()];
+                content.get(bytes);
+                this.output.write(bytes);
+            }
+        }
+
+        private void abort(Throwable cause) {
+            Callback callback = null;
+            Response clientResponse = null;
+            synchronized (this) {
+                callback = (null != this.writingCallback) ? this.writingCallback : this.pendingCallback;
+                this.writingCallback = null;
+                this.pendingCallback = null;
+                this.pending = null;
+                clientResponse = this.clientResponse;
+            }
+
+            if (null != callback) {
+                callback.failed(cause);
+            }
+
+            if (null != clientResponse) {
+                clientResponse.abort(cause);
             }
+
+            this.finish();
+        }
+
+        private void finish() {
+            synchronized (this) {
+                if (this.completed) {
+                    return;
+                }
+                this.completed = true;
+            }
+
+            this.async.complete();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent asyncEvent) throws IOException {
+            // Nothing
+        }
+
+        @Override
+        public void onComplete(AsyncEvent asyncEvent) throws IOException {
+            // Nothing
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent asyncEvent) throws IOException {
+            this.abort(new IOException("Async timeout"));
+        }
+
+        @Override
+        public void onError(AsyncEvent asyncEvent) throws IOException {
+            this.abort(asyncEvent.getThrowable());
         }
     }
 }
@@ -26,23 +26,49 @@
 
 package cube.dispatcher.filestorage;
 
-import cell.util.collection.FlexibleByteBuffer;
-
-import java.nio.charset.Charset;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
 
 /**
  * Form 数据格式描述和解析。
+ *
+ * 以流方式解析 multipart 数据，头信息按行增量读取，文件数据从输入流直接写入文件块数组，
+ * 解析过程仅使用调用方提供的固定大小缓存。
  */
 public class FormData {
 
     private static String sContentType = "Content-Type".toLowerCase();
+    private static String sContentDisposition = "Content-Disposition".toLowerCase();
     private static String sOctetStream = "octet-stream".toLowerCase();
-    private static String sJson = "json".toLowerCase();
 
-    private FlexibleByteBuffer buf;
+    /**
+     * 头信息行的最大长度。
+     */
+    private final static int MAX_LINE_LENGTH = 8 * 1024;
+
+    /**
+     * 普通字段值的最大长度。
+     */
+    private final static int MAX_VALUE_LENGTH = 64 * 1024;
+
+    /**
+     * 默认的文件块最大长度。
+     */
+    public final static int DEFAULT_MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private InputStream input;
+
+    private byte[] buffer;
+
+    private int position = 0;
+
+    private int limit = 0;
+
+    private boolean eof = false;
 
     private HashMap<String, String> multipart;
 
@@ -50,16 +76,43 @@ public class FormData {
 
     private byte[] chunk;
 
+    private int maxChunkSize;
+
     /**
      *
      * @param content
      */
-    public FormData(byte[] content, int offset, int length) {
-        byte[] data = new byte[length];
-        System.arraycopy(content, 0, data, 0, length);
-        this.buf = new FlexibleByteBuffer(1024);
-        this.multipart = this.parse(data);
-        this.buf = null;
+    public FormData(byte[] content, int offset, int length) throws IOException {
+        this(new ByteArrayInputStream(content, offset, length), new byte[8 * 1024]);
+    }
+
+    /**
+     * 从输入流解析数据。
+     *
+     * @param input 数据输入流。
+     * @param buffer 解析使用的缓存，长度需大于分隔符长度。
+     * @throws IOException
+     */
+    public FormData(InputStream input, byte[] buffer) throws IOException {
+        this(input, buffer, DEFAULT_MAX_CHUNK_SIZE);
+    }
+
+    /**
+     * 从输入流解析数据。
+     *
+     * @param input 数据输入流。
+     * @param buffer 解析使用的缓存，长度需大于分隔符长度。
+     * @param maxChunkSize 文件块的最大长度，声明的块大小超过该长度时不分配内存，直接拒绝。
+     * @throws IOException
+     */
+    public FormData(InputStream input, byte[] buffer, int maxChunkSize) throws IOException {
+        this.input = input;
+        this.buffer = buffer;
+        this.maxChunkSize = maxChunkSize;
+        this.multipart = new HashMap<>();
+        this.parse();
+        this.input = null;
+        this.buffer = null;
     }
 
     public String getFileName() {
@@ -74,171 +127,285 @@ public class FormData {
         return this.multipart.get(name);
     }
 
-    private HashMap<String, String> parse(byte[] content) {
-        int cursor = 0;
-        // 查找占位符
-        String boundary = null;
-
-        for (int i = 0; i < content.length; ++i) {
-            byte b1 = content[cursor++];
-            byte b2 = content[cursor];
-            if (b1 == '\r' && b2 == '\n') {
-                buf.flip();
-                boundary = new String(buf.array(), 0, buf.limit());
-                cursor++;
-                break;
+    private void parse() throws IOException {
+        // 第一行为占位符
+        String boundary = this.readLine();
+        while (null != boundary && boundary.length() == 0) {
+            boundary = this.readLine();
+        }
+        if (null == boundary) {
+            throw new IOException("Can not find multipart boundary");
+        }
+
+        // 根据首行判断换行符
+        byte[] delimiter = ((this.buffer[this.position - 2] == '\r' ? "\r\n" : "\n") + boundary)
+                .getBytes(StandardCharsets.UTF_8);
+        if (delimiter.length >= this.buffer.length) {
+            throw new IOException("Multipart boundary is too long");
+        }
+
+        while (true) {
+            // 读取头信息
+            String disposition = null;
+            String contentType = null;
+            String line = null;
+            while (null != (line = this.readLine()) && line.length() > 0) {
+                String lowerLine = line.toLowerCase();
+                if (lowerLine.startsWith(sContentDisposition)) {
+                    disposition = line;
+                }
+                else if (lowerLine.startsWith(sContentType)) {
+                    contentType = lowerLine;
+                }
+            }
+
+            if (null == line) {
+                throw new IOException("Unexpected end of multipart headers");
+            }
+
+            String filename = (null != disposition) ? extractParam(disposition, "filename") : null;
+            if (null != filename || (null != contentType && contentType.indexOf(sOctetStream) >= 0)) {
+                // 文件流
+                this.fileName = filename;
+                this.chunk = this.readFileData(delimiter);
             }
-            else if (b1 == '\n') {
-                buf.flip();
-                boundary = new String(buf.array(), 0, buf.limit());
-                cursor++;
+            else {
+                ByteArrayOutputStream value = new ByteArrayOutputStream();
+                this.readPart(delimiter, value, MAX_VALUE_LENGTH);
+
+                String name = (null != disposition) ? extractParam(disposition, "name") : null;
+                if (null != name && null == contentType) {
+                    this.multipart.put(name, new String(value.toByteArray(), StandardCharsets.UTF_8));
+                }
+            }
+
+            // 分隔符后为 "--" 表示结束
+            String tail = this.readLine();
+            if (null == tail || tail.startsWith("--")) {
                 break;
             }
+        }
+    }
+
+    /**
+     * 读取文件数据，如果已知块大小则直接写入对应大小的数组。
+     *
+     * @param delimiter
+     * @return
+     * @throws IOException
+     */
+    private byte[] readFileData(byte[] delimiter) throws IOException {
+        int size = -1;
+        String sizeValue = this.multipart.get("size");
+        if (null != sizeValue) {
+            try {
+                size = Integer.parseInt(sizeValue);
+            } catch (NumberFormatException e) {
+                size = -1;
+            }
+        }
+
+        if (size > this.maxChunkSize) {
+            throw new IOException("File chunk size " + size + " exceeds " + this.maxChunkSize + " bytes");
+        }
+
+        if (size >= 0) {
+            FixedOutput output = new FixedOutput(size);
+            this.readPart(delimiter, output, size);
+            return output.toByteArray();
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(this.buffer.length);
+        this.readPart(delimiter, output, this.maxChunkSize);
+        return output.toByteArray();
+    }
+
+    /**
+     * 将分隔符之前的数据写入输出，并跳过分隔符。
+     *
+     * @param delimiter
+     * @param output
+     * @param maxLength
+     * @throws IOException
+     */
+    private void readPart(byte[] delimiter, Output output, int maxLength) throws IOException {
+        long total = 0;
+
+        while (true) {
+            if (this.limit - this.position < delimiter.length && !this.fill(delimiter.length)) {
+                throw new IOException("Can not find multipart boundary");
+            }
+
+            int index = indexOf(this.buffer, this.position, this.limit, delimiter);
+            // 没有找到分隔符时，末尾可能是分隔符的前缀，需保留
+            int end = (index >= 0) ? index : this.limit - delimiter.length + 1;
+
+            int length = end - this.position;
+            total += length;
+            if (total > maxLength) {
+                throw new IOException("Multipart data exceeds " + maxLength + " bytes");
+            }
 
-            buf.put(b1);
+            output.write(this.buffer, this.position, length);
+
+            if (index >= 0) {
+                this.position = index + delimiter.length;
+                return;
+            }
+
+            this.position = end;
         }
+    }
 
-        HashMap<String, String> data = new HashMap<>();
-
-        String fileDisposition = null;
-
-        String disposition = null;
-        String cdata = null;
-
-        boolean rn = false;
-
-        long t = System.currentTimeMillis();
-        ActionType action = ActionType.TO_FIND_DISPOSITION;
-
-        while (cursor < content.length) {
-            byte b = content[cursor++];
-
-            switch (action) {
-                case TO_FIND_DISPOSITION:
-                    if (b == '\r' || b == '\n') {
-                        if (b == '\r') {
-                            ++cursor;
-                            rn = true;
-                        }
-
-                        buf.flip();
-                        disposition = new String(buf.array(), 0, buf.limit(), Charset.forName("UTF-8"));
-                        buf.clear();
-
-                        action = ActionType.TO_FIND_CONTENT;
-                        break;
-                    }
-
-                    buf.put(b);
-                    break;
-
-                case TO_FIND_CONTENT:
-                    if (b == '\r' || b == '\n') {
-                        if (b == '\r') {
-                            ++cursor;
-                        }
-
-                        if (0 == buf.position()) {
-                            break;
-                        }
-
-                        buf.flip();
-                        cdata = new String(buf.array(), 0, buf.limit(), Charset.forName("UTF-8"));
-                        String lowerData = cdata.toLowerCase();
-
-                        if (lowerData.indexOf(sContentType) >= 0) {
-                            if (lowerData.indexOf(sOctetStream) >= 0) {
-                                // 文件流
-                                // 跳过空行
-                                cursor += 2;
-                                fileDisposition = disposition;
-                                action = ActionType.TO_READ_STREAM;
-                            }
-                            else {
-                                // TODO 处理 JSON
-                                action = ActionType.TO_FIND_BOUNDARY;
-                            }
-                        }
-                        else {
-                            data.put(disposition, cdata);
-                            action = ActionType.TO_FIND_BOUNDARY;
-                        }
-
-                        buf.clear();
-
-                        break;
-                    }
-
-                    buf.put(b);
-                    break;
-
-                case TO_FIND_BOUNDARY:
-                    if (b == '\r' || b == '\n') {
-                        if (b == '\r') {
-                            ++cursor;
-                        }
-
-                        buf.flip();
-                        String line = new String(buf.array(), 0, buf.limit(), Charset.forName("UTF-8"));
-                        if (line.equals(boundary)) {
-                            action = ActionType.TO_FIND_DISPOSITION;
-                        }
-                        else if (line.equals(boundary + "--")) {
-                            action = ActionType.TO_END;
-                        }
-
-                        buf.clear();
-                        break;
-                    }
-
-                    buf.put(b);
-                    break;
-
-                case TO_READ_STREAM:
-                    int tailLen = boundary.length() + 2;
-                    if (content.length - cursor > tailLen) {
-                        int chunkLen = content.length - cursor - tailLen - (rn ? 1 : -1);
-                        chunk = new byte[chunkLen];
-                        System.arraycopy(content, cursor - (rn ? 1 : 2), chunk, 0, chunk.length);
-                        cursor = content.length;
-                        break;
-                    }
-                    break;
-
-                case TO_END:
-                    buf.clear();
-                    break;
-                default:
-                    break;
+    private void readPart(byte[] delimiter, final ByteArrayOutputStream output, int maxLength) throws IOException {
+        this.readPart(delimiter, new Output() {
+            @Override
+            public void write(byte[] data, int offset, int length) {
+                output.write(data, offset, length);
             }
+        }, maxLength);
+    }
+
+    /**
+     * 读取一行，去掉行尾的换行符。
+     *
+     * @return 流结束时返回 {@code null} 。
+     * @throws IOException
+     */
+    private String readLine() throws IOException {
+        int start = this.position;
+        while (true) {
+            for (int i = start; i < this.limit; ++i) {
+                if (this.buffer[i] == '\n') {
+                    int end = (i > this.position && this.buffer[i - 1] == '\r') ? i - 1 : i;
+                    String line = new String(this.buffer, this.position, end - this.position, StandardCharsets.UTF_8);
+                    this.position = i + 1;
+                    return line;
+                }
+            }
+
+            if (this.limit - this.position >= Math.min(MAX_LINE_LENGTH, this.buffer.length)) {
+                throw new IOException("Multipart header line is too long");
+            }
+
+            int scanned = this.limit - this.position;
+            if (!this.fill(scanned + 1)) {
+                if (this.limit > this.position) {
+                    // 最后一行没有换行符
+                    String line = new String(this.buffer, this.position, this.limit - this.position, StandardCharsets.UTF_8);
+                    this.position = this.limit;
+                    return line;
+                }
+                return null;
+            }
+
+            start = this.position + scanned;
         }
+    }
 
-        if (null != fileDisposition) {
-            int index = fileDisposition.indexOf("filename=");
-            this.fileName = fileDisposition.substring(index + 10, fileDisposition.length() - 1);
+    /**
+     * 压缩缓存并从输入流读取数据，直到缓存内可读数据不少于指定长度或流结束。
+     *
+     * @param minAvailable
+     * @return 可读数据不少于指定长度时返回 {@code true} 。
+     * @throws IOException
+     */
+    private boolean fill(int minAvailable) throws IOException {
+        if (this.position > 0) {
+            int remaining = this.limit - this.position;
+            System.arraycopy(this.buffer, this.position, this.buffer, 0, remaining);
+            this.position = 0;
+            this.limit = remaining;
         }
 
-        HashMap<String, String> result = new HashMap<>();
-        Iterator<Map.Entry<String, String>> iter = data.entrySet().iterator();
-        while (iter.hasNext()) {
-            Map.Entry<String, String> e = iter.next();
-            String disp = e.getKey();
-            int index = disp.indexOf("name=");
-            if (index > 0) {
-                String name = disp.substring(index + 6, disp.length() - 1);
-                result.put(name, e.getValue().toString());
+        while (!this.eof && this.limit < minAvailable && this.limit < this.buffer.length) {
+            int length = this.input.read(this.buffer, this.limit, this.buffer.length - this.limit);
+            if (length < 0) {
+                this.eof = true;
+                break;
             }
+            this.limit += length;
         }
 
-        return result;
+        return this.limit >= minAvailable;
     }
 
-    enum ActionType {
-        TO_FIND_DISPOSITION,
-        TO_FIND_CONTENT,
-        TO_FIND_BOUNDARY,
-        TO_READ_STREAM,
-        TO_END
+    private static int indexOf(byte[] data, int from, int to, byte[] pattern) {
+        byte first = pattern[0];
+        for (int i = from, last = to - pattern.length; i <= last; ++i) {
+            if (data[i] != first) {
+                continue;
+            }
+
+            int j = 1;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                ++j;
+            }
+
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static String extractParam(String disposition, String key) {
+        String[] params = disposition.split(";");
+        for (String param : params) {
+            param = param.trim();
+            if (param.startsWith(key + "=")) {
+                String value = param.substring(key.length() + 1);
+                if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * 数据输出。
+     */
+    private interface Output {
+
+        void write(byte[] data, int offset, int length) throws IOException;
+    }
+
+    /**
+     * 写入固定大小数组的输出。
+     */
+    private static class FixedOutput implements Output {
+
+        private byte[] data;
+
+        private int length = 0;
+
+        protected FixedOutput(int size) {
+            this.data = new byte[size];
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (this.length + length > this.data.length) {
+                throw new IOException("File chunk exceeds declared size " + this.data.length);
+            }
+
+            System.arraycopy(bytes, offset, this.data, this.length, length);
+            this.length += length;
+        }
+
+        protected byte[] toByteArray() {
+            if (this.length == this.data.length) {
+                return this.data;
+            }
+
+            byte[] result = new byte[this.length];
+            System.arraycopy(this.data, 0, result, 0, this.length);
+            return result;
+        }
     }
 
 
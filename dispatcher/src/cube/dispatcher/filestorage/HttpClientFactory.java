@@ -26,49 +26,92 @@
 
 package cube.dispatcher.filestorage;
 
+import cell.util.log.Logger;
 import org.eclipse.jetty.client.HttpClient;
 
+import java.net.URI;
 import java.util.Iterator;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * HTTP 客户端工厂。
+ *
+ * 每个服务端点共享一个客户端，由客户端维护到该端点的连接池。
  */
 public final class HttpClientFactory {
 
     private final static HttpClientFactory instance = new HttpClientFactory();
 
-    private ConcurrentLinkedQueue<HttpClient> queue;
+    /**
+     * 每个端点的最大连接数。
+     */
+    private int maxConnectionsPerDestination = 256;
+
+    /**
+     * 每个端点排队等待连接的最大请求数。
+     */
+    private int maxRequestsQueuedPerDestination = 4096;
+
+    /**
+     * 连接空闲超时时间，单位：毫秒。
+     */
+    private long idleTimeout = 30L * 1000L;
+
+    private ConcurrentHashMap<String, HttpClient> clients;
 
     private HttpClientFactory() {
-        this.queue = new ConcurrentLinkedQueue<>();
+        this.clients = new ConcurrentHashMap<>();
     }
 
     public static HttpClientFactory getInstance() {
         return HttpClientFactory.instance;
     }
 
-    public HttpClient createHttpClient() {
-        HttpClient client = this.queue.poll();
+    /**
+     * 返回指定 URL 所在端点的共享客户端。
+     *
+     * @param url 请求地址。
+     * @return 返回客户端实例，客户端启动失败时返回 {@code null} 。
+     */
+    public HttpClient getHttpClient(String url) {
+        String endpoint = this.makeEndpoint(url);
+
+        HttpClient client = this.clients.get(endpoint);
         if (null != client) {
             return client;
         }
 
-        client = new HttpClient();
-        try {
-            client.start();
-        } catch (Exception e) {
-            e.printStackTrace();
+        synchronized (this) {
+            client = this.clients.get(endpoint);
+            if (null != client) {
+                return client;
+            }
+
+            client = new HttpClient();
+            client.setMaxConnectionsPerDestination(this.maxConnectionsPerDestination);
+            client.setMaxRequestsQueuedPerDestination(this.maxRequestsQueuedPerDestination);
+            client.setIdleTimeout(this.idleTimeout);
+            try {
+                client.start();
+            } catch (Exception e) {
+                Logger.e(this.getClass(), "#getHttpClient - Start client failed: " + endpoint, e);
+                // 启动失败的客户端不缓存，下次请求时重新创建
+                try {
+                    client.stop();
+                } catch (Exception se) {
+                    // Nothing
+                }
+                return null;
+            }
+
+            this.clients.put(endpoint, client);
         }
-        return client;
-    }
 
-    public void destroyHttpClient(HttpClient client) {
-        this.queue.offer(client);
+        return client;
     }
 
     public void close() {
-        Iterator<HttpClient> iter = this.queue.iterator();
+        Iterator<HttpClient> iter = this.clients.values().iterator();
         while (iter.hasNext()) {
             try {
                 iter.next().stop();
@@ -76,6 +119,15 @@ public final class HttpClientFactory {
                 e.printStackTrace();
             }
         }
-        this.queue.clear();
+        this.clients.clear();
+    }
+
+    private String makeEndpoint(String url) {
+        try {
+            URI uri = URI.create(url);
+            return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+        } catch (IllegalArgumentException e) {
+            return "";
+        }
     }
 }
@@ -0,0 +1,139 @@
+/**
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2021 Shixin Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.dispatcher.test;
+
+import cell.api.Nucleus;
+import cell.core.talk.TalkContext;
+import cell.util.log.LogLevel;
+import cell.util.log.LogManager;
+import cube.common.entity.Contact;
+import cube.common.entity.Device;
+import cube.dispatcher.Performer;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 执行机会话索引的性能测试。
+ * 分别测试不同连接规模下按上下文查询联系人和断开上下文的耗时。
+ */
+public class PerformerBenchmark {
+
+    private final static String DOMAIN = "shixincube.com";
+
+    private Nucleus nucleus;
+
+    public PerformerBenchmark() {
+        this.nucleus = new Nucleus();
+    }
+
+    public void run(int numConnections) {
+        Performer performer = new Performer(this.nucleus);
+
+        TalkContext[] contexts = new TalkContext[numConnections];
+        Device[] devices = new Device[numConnections];
+        Contact[] contacts = new Contact[numConnections];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < numConnections; ++i) {
+            contexts[i] = new TalkContext(null, null);
+            performer.addTalkContext(contexts[i]);
+            devices[i] = this.createDevice(i, contexts[i]);
+
+            contacts[i] = new Contact((long) (i + 10000), DOMAIN, "Contact-" + i);
+            contacts[i].addDevice(devices[i]);
+
+            performer.updateContact(contacts[i], devices[i]);
+        }
+        long updateTime = System.nanoTime() - start;
+
+        // 查询
+        int found = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < numConnections; ++i) {
+            if (null != performer.queryContact(contexts[i])) {
+                ++found;
+            }
+        }
+        long queryTime = System.nanoTime() - start;
+
+        // 断开
+        start = System.nanoTime();
+        for (int i = 0; i < numConnections; ++i) {
+            performer.removeContact(contacts[i], devices[i]);
+            performer.removeTalkContext(contexts[i]);
+        }
+        long removeTime = System.nanoTime() - start;
+
+        int remain = 0;
+        for (int i = 0; i < numConnections; ++i) {
+            if (null != performer.getTalkContext(devices[i].getToken())) {
+                ++remain;
+            }
+        }
+
+        System.out.println("Connections: " + numConnections + " (found: " + found + ", remain: " + remain + ")");
+        System.out.println("  update: " + (updateTime / numConnections) + " ns/op");
+        System.out.println("  query : " + (queryTime / numConnections) + " ns/op");
+        System.out.println("  remove: " + (removeTime / numConnections) + " ns/op");
+    }
+
+    public void destroy() {
+        this.nucleus.destroy();
+    }
+
+    private Device createDevice(int index, TalkContext context) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("name", "Device-" + index);
+            json.put("platform", "Benchmark");
+            json.put("address", "127.0.0.1");
+            json.put("port", 10000 + (index % 50000));
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        Device device = new Device(json, context);
+        device.setToken("token-" + index);
+        return device;
+    }
+
+    public static void main(String[] args) {
+        LogManager.getInstance().setLevel(LogLevel.WARNING);
+
+        PerformerBenchmark benchmark = new PerformerBenchmark();
+
+        // 预热
+        benchmark.run(10000);
+
+        int[] scales = new int[] { 1000, 10000, 100000, 200000 };
+        for (int scale : scales) {
+            benchmark.run(scale);
+        }
+
+        benchmark.destroy();
+    }
+}
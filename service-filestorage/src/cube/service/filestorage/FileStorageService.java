@@ -26,6 +26,7 @@
 
 package cube.service.filestorage;
 
+import cell.util.Utils;
 import cell.util.log.Logger;
 import cube.cache.SharedMemoryCache;
 import cube.common.entity.FileLabel;
@@ -164,13 +165,13 @@ public class FileStorageService extends AbstractModule {
 
             JSONObject cacheConfig = new JSONObject();
             try {
+                cacheConfig.put("type", SharedMemoryCache.TYPE);
                 cacheConfig.put("configFile", "config/filelabel-cache.properties");
             } catch (JSONException e) {
                 e.printStackTrace();
             }
-            this.fileLabelCache = new SharedMemoryCache("FileLabelCache");
-            this.fileLabelCache.configure(cacheConfig);
-            this.fileLabelCache.start();
+            // 安装缓存
+            this.fileLabelCache = this.getKernel().installCache("FileLabelCache", cacheConfig);
         }
 
         // 启动文件系统
@@ -181,6 +182,7 @@ public class FileStorageService extends AbstractModule {
 
         // 创建文件层级管理器
         this.fileHierarchyManager = new FileHierarchyManager(this.fileStructStorage, this);
+        this.fileHierarchyManager.start();
 
         // 回收站
         this.recycleBin = new RecycleBin(this.fileStructStorage);
@@ -191,6 +193,9 @@ public class FileStorageService extends AbstractModule {
         // 停止文件系统
         this.fileSystem.stop();
 
+        // 写入层级数据
+        this.fileHierarchyManager.stop();
+
         // 关闭存储
         this.fileStructStorage.close();
     }
@@ -223,11 +228,13 @@ public class FileStorageService extends AbstractModule {
      * @param inputStream
      */
     public void writeFile(String fileCode, InputStream inputStream) {
+        String dataName = this.makeDataName(fileCode);
+
         // 删除旧文件
-        this.fileSystem.deleteFile(fileCode);
+        this.fileSystem.deleteFile(dataName);
 
         // 写入文件系统
-        FileDescriptor descriptor = this.fileSystem.writeFile(fileCode, inputStream);
+        FileDescriptor descriptor = this.fileSystem.writeFile(dataName, inputStream);
 
         // 缓存文件标识
         this.fileDescriptors.put(fileCode, descriptor);
@@ -240,11 +247,13 @@ public class FileStorageService extends AbstractModule {
      * @param file
      */
     public void writeFile(String fileCode, File file) {
+        String dataName = this.makeDataName(fileCode);
+
         // 删除旧文件
-        this.fileSystem.deleteFile(fileCode);
+        this.fileSystem.deleteFile(dataName);
 
         // 写入文件系统
-        FileDescriptor descriptor = this.fileSystem.writeFile(fileCode, file);
+        FileDescriptor descriptor = this.fileSystem.writeFile(dataName, file);
 
         // 缓存文件标识
         this.fileDescriptors.put(fileCode, descriptor);
@@ -283,6 +292,9 @@ public class FileStorageService extends AbstractModule {
             return null;
         }
 
+        // 内容相同的文件共用已存储的数据
+        descriptor = this.deduplicate(fileLabel, descriptor);
+
         fileLabel.setDirectURL(descriptor.getURL());
 
         // 获取外部访问的 URL 信息
@@ -333,15 +345,23 @@ public class FileStorageService extends AbstractModule {
     /**
      * 文件是否存在文件系统里。
      *
+     * @param domainName
      * @param fileCode
      * @return
      */
-    public boolean existsFileData(String fileCode) {
-        if (this.fileSystem.isWriting(fileCode)) {
+    public boolean existsFileData(String domainName, String fileCode) {
+        FileDescriptor descriptor = this.fileDescriptors.get(fileCode);
+        if (null == descriptor) {
+            // 去重后的文件码引用其他文件的数据，需要读取存储的描述符
+            descriptor = this.fileStructStorage.readFileDescriptor(domainName, fileCode);
+        }
+        String dataName = (null != descriptor) ? descriptor.getFileName() : fileCode;
+
+        if (this.fileSystem.isWriting(dataName)) {
             return false;
         }
 
-        return this.fileSystem.existsFile(fileCode);
+        return this.fileSystem.existsFile(dataName);
     }
 
     /**
@@ -406,7 +426,57 @@ public class FileStorageService extends AbstractModule {
             return null;
         }
 
-        return this.fileSystem.loadFileToDisk(fileCode);
+        FileDescriptor descriptor = this.fileDescriptors.get(fileCode);
+        if (null == descriptor) {
+            descriptor = this.fileStructStorage.readFileDescriptor(domainName, fileCode);
+        }
+
+        return this.fileSystem.loadFileToDisk((null != descriptor) ? descriptor.getFileName() : fileCode);
+    }
+
+    /**
+     * 按文件标签的散列码查找内容相同的已存储文件，如果存在则删除新写入的数据并使用已存储的数据。
+     *
+     * @param fileLabel
+     * @param descriptor 新写入数据的描述符。
+     * @return 返回文件标签应使用的描述符。
+     */
+    private FileDescriptor deduplicate(FileLabel fileLabel, FileDescriptor descriptor) {
+        if (null == fileLabel.getMD5Code() || null == fileLabel.getSHA1Code()) {
+            return descriptor;
+        }
+
+        FileDescriptor existing = this.fileStructStorage.findFileDescriptor(fileLabel.getDomain().getName(),
+                fileLabel.getMD5Code(), fileLabel.getSHA1Code(), fileLabel.getFileSize(), fileLabel.getFileCode());
+        if (null == existing || existing.getFileName().equals(descriptor.getFileName())
+                || !existing.getFileSystem().equals(descriptor.getFileSystem())
+                || !this.fileSystem.existsFile(existing.getFileName())) {
+            return descriptor;
+        }
+
+        // 先更新描述符再删除数据
+        this.fileDescriptors.put(fileLabel.getFileCode(), existing);
+        this.fileSystem.deleteFile(descriptor.getFileName());
+
+        if (Logger.isDebugLevel()) {
+            Logger.d(this.getClass(), "Deduplicate file " + fileLabel.getFileCode() + " -> " + existing.getFileName());
+        }
+
+        return existing;
+    }
+
+    /**
+     * 生成文件码对应的数据文件名。如果该文件码原有的数据被其他文件引用，则使用新的文件名以免覆盖。
+     *
+     * @param fileCode
+     * @return
+     */
+    private String makeDataName(String fileCode) {
+        if (this.fileSystem.existsFile(fileCode) && this.fileStructStorage.isFileDataShared(fileCode, fileCode)) {
+            return fileCode + "_" + Utils.generateSerialNumber();
+        }
+
+        return fileCode;
     }
 
     /**
@@ -34,6 +34,8 @@ import cube.core.Conditional;
 import cube.core.Constraint;
 import cube.core.Storage;
 import cube.core.StorageField;
+import cube.core.StorageIndex;
+import cube.service.filestorage.hierarchy.SearchTerms;
 import cube.service.filestorage.recycle.DirectoryTrash;
 import cube.service.filestorage.recycle.FileTrash;
 import cube.service.filestorage.system.FileDescriptor;
@@ -47,8 +49,10 @@ import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 
 /**
@@ -67,6 +71,8 @@ public class FileStructStorage implements Storagable {
 
     private final String recyclebinTablePrefix = "recyclebin_";
 
+    private final String searchIndexTablePrefix = "search_index_";
+
     /**
      * 文件标签字段。
      */
@@ -100,6 +106,41 @@ public class FileStructStorage implements Storagable {
             //new StorageField("reserved", LiteralBase.STRING)
     };
 
+    /**
+     * 批量查询时每条 IN 语句包含的最大 ID 数量。
+     */
+    private final static int IN_BATCH_SIZE = 500;
+
+    /**
+     * 文件标签表的文件大小索引。
+     */
+    private final StorageIndex fileSizeIndex = new StorageIndex("file_size", "file_size");
+
+    /**
+     * 层级表的根节点索引。
+     */
+    private final StorageIndex rootIdIndex = new StorageIndex("root_id", "root_id");
+
+    /**
+     * 搜索索引表的词项索引，按词项查找并按修改时间排序。
+     */
+    private final StorageIndex searchTermIndex = new StorageIndex("term", "root_id", "term", "last_modified");
+
+    /**
+     * 搜索索引表的条目索引，用于删除文件的索引。
+     */
+    private final StorageIndex searchEntryIndex = new StorageIndex("entry", "root_id", "entry");
+
+    /**
+     * 搜索索引表的目录索引，用于删除目录的索引。
+     */
+    private final StorageIndex searchDirectoryIndex = new StorageIndex("directory", "root_id", "directory_id");
+
+    /**
+     * 描述符表的数据文件名哈希索引，用于判断数据是否被共享。
+     */
+    private final StorageIndex nameHashIndex = new StorageIndex("name_hash", "name_hash");
+
     /**
      * 层级表字段。
      */
@@ -137,6 +178,11 @@ public class FileStructStorage implements Storagable {
      */
     private Map<String, String> descriptorTableNameMap;
 
+    /**
+     * 包含文件名哈希字段的描述符表。
+     */
+    private Set<String> nameHashTables;
+
     /**
      * 层级表。
      */
@@ -147,13 +193,20 @@ public class FileStructStorage implements Storagable {
      */
     private Map<String, String> recyclebinTableNameMap;
 
+    /**
+     * 搜索索引表。
+     */
+    private Map<String, String> searchIndexTableNameMap;
+
     public FileStructStorage(ExecutorService executorService, StorageType type, JSONObject config) {
         this.executor = executorService;
         this.storage = StorageFactory.getInstance().createStorage(type, "FileStructStorage", config);
         this.labelTableNameMap = new HashMap<>();
         this.descriptorTableNameMap = new HashMap<>();
+        this.nameHashTables = new HashSet<>();
         this.hierarchyTableNameMap = new HashMap<>();
         this.recyclebinTableNameMap = new HashMap<>();
+        this.searchIndexTableNameMap = new HashMap<>();
     }
 
     @Override
@@ -180,6 +233,9 @@ public class FileStructStorage implements Storagable {
 
             // 检查回收站表
             this.checkRecyclebinTable(domain);
+
+            // 检查搜索索引表
+            this.checkSearchIndexTable(domain);
         }
     }
 
@@ -254,7 +310,14 @@ public class FileStructStorage implements Storagable {
                         new StorageField("direct_url", LiteralBase.STRING, fileLabel.getDirectURL())
                 };
 
-                StorageField[] descriptorFields = new StorageField[]{
+                StorageField[] descriptorFields = nameHashTables.contains(descriptorTable) ? new StorageField[]{
+                        new StorageField("file_code", LiteralBase.STRING, fileLabel.getFileCode()),
+                        new StorageField("system", LiteralBase.STRING, fileDescriptor.getFileSystem()),
+                        new StorageField("file_name", LiteralBase.STRING, fileDescriptor.getFileName()),
+                        new StorageField("url", LiteralBase.STRING, fileDescriptor.getURL()),
+                        new StorageField("descriptor", LiteralBase.STRING, fileDescriptor.getDescriptor().toString()),
+                        new StorageField("name_hash", LiteralBase.LONG, FileStructStorage.hashName(fileDescriptor.getFileName()))
+                } : new StorageField[]{
                         new StorageField("file_code", LiteralBase.STRING, fileLabel.getFileCode()),
                         new StorageField("system", LiteralBase.STRING, fileDescriptor.getFileSystem()),
                         new StorageField("file_name", LiteralBase.STRING, fileDescriptor.getFileName()),
@@ -341,6 +404,116 @@ public class FileStructStorage implements Storagable {
         return null;
     }
 
+    /**
+     * 读取指定文件码的文件描述符。
+     *
+     * @param domain
+     * @param fileCode
+     * @return
+     */
+    public FileDescriptor readFileDescriptor(String domain, String fileCode) {
+        String descriptorTable = this.descriptorTableNameMap.get(domain);
+        if (null == descriptorTable) {
+            return null;
+        }
+
+        List<StorageField[]> result = this.storage.executeQuery(descriptorTable, this.descriptorFields, new Conditional[] {
+                Conditional.createEqualTo(new StorageField("file_code", LiteralBase.STRING, fileCode))
+        });
+
+        if (result.isEmpty()) {
+            return null;
+        }
+
+        Map<String, StorageField> map = StorageFields.get(result.get(0));
+
+        try {
+            JSONObject json = new JSONObject();
+            json.put("system", map.get("system").getString());
+            json.put("filename", map.get("file_name").getString());
+            json.put("url", map.get("url").isNullValue() ? "" : map.get("url").getString());
+            json.put("descriptor", new JSONObject(map.get("descriptor").getString()));
+            return new FileDescriptor(json);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     * 按文件内容散列查找其他文件码已存储的文件描述符。
+     *
+     * @param domain
+     * @param md5Code
+     * @param sha1Code
+     * @param fileSize
+     * @param excludedFileCode 排除的文件码。
+     * @return 没有相同内容的文件时返回 {@code null} 。
+     */
+    public FileDescriptor findFileDescriptor(String domain, String md5Code, String sha1Code, long fileSize,
+                                             String excludedFileCode) {
+        String labelTable = this.labelTableNameMap.get(domain);
+        if (null == labelTable) {
+            return null;
+        }
+
+        List<StorageField[]> result = this.storage.executeQuery(labelTable, new StorageField[] {
+                new StorageField("file_code", LiteralBase.STRING)
+        }, new Conditional[] {
+                Conditional.createEqualTo(new StorageField("file_size", LiteralBase.LONG, fileSize)),
+                Conditional.createAnd(),
+                Conditional.createEqualTo(new StorageField("md5", LiteralBase.STRING, md5Code)),
+                Conditional.createAnd(),
+                Conditional.createEqualTo(new StorageField("sha1", LiteralBase.STRING, sha1Code)),
+                Conditional.createLimit(2)
+        });
+
+        for (StorageField[] fields : result) {
+            String fileCode = fields[0].getString();
+            if (!fileCode.equals(excludedFileCode)) {
+                return this.readFileDescriptor(domain, fileCode);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * 指定的文件数据是否被其他文件码引用。
+     *
+     * @param dataName 文件系统里的文件名。
+     * @param fileCode 当前文件码。
+     * @return
+     */
+    public boolean isFileDataShared(String dataName, String fileCode) {
+        long nameHash = FileStructStorage.hashName(dataName);
+        for (String descriptorTable : this.descriptorTableNameMap.values()) {
+            // 先按哈希索引定位，再比较文件名排除哈希冲突
+            Conditional[] conditionals = this.nameHashTables.contains(descriptorTable) ? new Conditional[] {
+                    Conditional.createEqualTo(new StorageField("name_hash", LiteralBase.LONG, nameHash)),
+                    Conditional.createAnd(),
+                    Conditional.createEqualTo(new StorageField("file_name", LiteralBase.STRING, dataName)),
+                    Conditional.createLimit(2)
+            } : new Conditional[] {
+                    Conditional.createEqualTo(new StorageField("file_name", LiteralBase.STRING, dataName)),
+                    Conditional.createLimit(2)
+            };
+
+            List<StorageField[]> result = this.storage.executeQuery(descriptorTable, new StorageField[] {
+                    new StorageField("file_code", LiteralBase.STRING)
+            }, conditionals);
+
+            for (StorageField[] fields : result) {
+                if (!fields[0].getString().equals(fileCode)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
     /**
      * 写入节点数据。
      *
@@ -417,6 +590,358 @@ public class FileStructStorage implements Storagable {
         });
     }
 
+    /**
+     * 批量写入节点数据，已存在的节点更新数据，不存在的节点批量插入。
+     * 先在一个事务里插入该域所有的新节点，插入失败时不再更新已有节点，由调用者重试。
+     *
+     * @param domain
+     * @param nodes 节点 ID 对应的节点数据。
+     * @param roots 节点 ID 对应的根节点 ID ，未知的根节点不写入。
+     * @return 全部写入成功返回 {@code true} 。
+     */
+    public boolean writeHierarchyNodes(String domain, Map<Long, String> nodes, Map<Long, Long> roots) {
+        String table = this.hierarchyTableNameMap.get(domain);
+        if (null == table) {
+            return false;
+        }
+
+        // 查询已存在的节点
+        Set<Long> existing = new HashSet<>();
+        List<Long> idList = new ArrayList<>(nodes.keySet());
+        for (int i = 0, size = idList.size(); i < size; i += IN_BATCH_SIZE) {
+            List<Long> batch = idList.subList(i, Math.min(i + IN_BATCH_SIZE, size));
+            List<StorageField[]> result = this.storage.executeQuery(table, new StorageField[] {
+                    new StorageField("node_id", LiteralBase.LONG)
+            }, new Conditional[] {
+                    Conditional.createIN(new StorageField("node_id", LiteralBase.LONG), batch.toArray())
+            });
+
+            for (StorageField[] fields : result) {
+                existing.add(fields[0].getLong());
+            }
+        }
+
+        List<StorageField[]> insertList = new ArrayList<>();
+        List<StorageField[]> updateList = new ArrayList<>();
+        for (Long nodeId : idList) {
+            StorageField[] fields = new StorageField[] {
+                    new StorageField("node_id", LiteralBase.LONG, nodeId),
+                    new StorageField("data", LiteralBase.STRING, nodes.get(nodeId)),
+                    new StorageField("root_id", LiteralBase.LONG, roots.get(nodeId))
+            };
+
+            if (existing.contains(nodeId)) {
+                updateList.add(fields);
+            }
+            else {
+                insertList.add(fields);
+            }
+        }
+
+        // 先插入所有新节点，再更新可能引用新节点的已有节点
+        if (!insertList.isEmpty() && !this.storage.executeInsert(table, insertList)) {
+            Logger.w(this.getClass(), "#writeHierarchyNodes - insert failed: " + domain);
+            return false;
+        }
+
+        for (StorageField[] fields : updateList) {
+            if (!this.storage.executeUpdate(table, fields, new Conditional[] {
+                    Conditional.createEqualTo(fields[0])
+            })) {
+                Logger.w(this.getClass(), "#writeHierarchyNodes - update failed: " + domain);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * 批量读取节点数据。
+     *
+     * @param domain
+     * @param nodeIdList
+     * @param roots 用于返回节点 ID 对应的根节点 ID ，可以为 {@code null} 。
+     * @return 返回节点 ID 对应的节点数据，不存在的节点不在结果里。
+     */
+    public Map<Long, String> readHierarchyNodes(String domain, List<Long> nodeIdList, Map<Long, Long> roots) {
+        Map<Long, String> nodes = new HashMap<>();
+
+        String table = this.hierarchyTableNameMap.get(domain);
+        if (null == table) {
+            return nodes;
+        }
+
+        StorageField[] fields = new StorageField[] {
+                new StorageField("node_id", LiteralBase.LONG),
+                new StorageField("data", LiteralBase.STRING),
+                new StorageField("root_id", LiteralBase.LONG)
+        };
+
+        for (int i = 0, size = nodeIdList.size(); i < size; i += IN_BATCH_SIZE) {
+            Object[] values = nodeIdList.subList(i, Math.min(i + IN_BATCH_SIZE, size)).toArray();
+            List<StorageField[]> result = this.storage.executeQuery(table, fields, new Conditional[] {
+                    Conditional.createIN(new StorageField("node_id", LiteralBase.LONG), values)
+            });
+
+            for (StorageField[] row : result) {
+                nodes.put(row[0].getLong(), row[1].getString());
+                // 旧数据的根节点字段为空，读取值为 0
+                if (null != roots && !row[2].isNullValue() && row[2].getLong() != 0) {
+                    roots.put(row[0].getLong(), row[2].getLong());
+                }
+            }
+        }
+
+        return nodes;
+    }
+
+    /**
+     * 读取指定根节点下的所有节点数据，包括根节点自身。
+     *
+     * @param domain
+     * @param rootId
+     * @return 返回节点 ID 对应的节点数据。
+     */
+    public Map<Long, String> readHierarchyNodesByRoot(String domain, Long rootId) {
+        Map<Long, String> nodes = new HashMap<>();
+
+        String table = this.hierarchyTableNameMap.get(domain);
+        if (null == table) {
+            return nodes;
+        }
+
+        List<StorageField[]> result = this.storage.executeQuery(table, this.hierarchyFields, new Conditional[] {
+                Conditional.createEqualTo(new StorageField("root_id", LiteralBase.LONG, rootId))
+        });
+
+        for (StorageField[] row : result) {
+            nodes.put(row[0].getLong(), row[1].getString());
+        }
+
+        return nodes;
+    }
+
+    /**
+     * 批量删除节点数据。
+     *
+     * @param domain
+     * @param nodeIdList
+     * @return 删除成功返回 {@code true} 。
+     */
+    public boolean deleteHierarchyNodes(String domain, List<Long> nodeIdList) {
+        String table = this.hierarchyTableNameMap.get(domain);
+        if (null == table) {
+            return false;
+        }
+
+        boolean success = true;
+
+        for (int i = 0, size = nodeIdList.size(); i < size; i += IN_BATCH_SIZE) {
+            Object[] values = nodeIdList.subList(i, Math.min(i + IN_BATCH_SIZE, size)).toArray();
+            success = this.storage.executeDelete(table, new Conditional[] {
+                    Conditional.createIN(new StorageField("node_id", LiteralBase.LONG), values)
+            }) && success;
+        }
+
+        return success;
+    }
+
+    /**
+     * 写入文件的搜索索引。每个文件写入一条 {@link SearchTerms#FILE} 词项和每个名称分词的词项。
+     *
+     * @param domain
+     * @param rootId 层级的根目录 ID 。
+     * @param directoryId 文件所在目录 ID 。
+     * @param fileLabels 目录里的文件标签。
+     * @return 写入成功返回 {@code true} 。
+     */
+    public boolean writeSearchIndex(String domain, Long rootId, Long directoryId, List<FileLabel> fileLabels) {
+        String table = this.searchIndexTableNameMap.get(domain);
+        if (null == table) {
+            return false;
+        }
+
+        List<StorageField[]> list = new ArrayList<>();
+        for (FileLabel fileLabel : fileLabels) {
+            long entry = SearchTerms.entry(directoryId, fileLabel.getFileCode());
+            long fileType = SearchTerms.fileType(fileLabel.getFileType());
+            long extension = SearchTerms.extension(fileLabel.getFileExtension());
+
+            List<Long> terms = new ArrayList<>();
+            terms.add(SearchTerms.FILE);
+            for (String token : SearchTerms.indexTokens(fileLabel.getFileName())) {
+                terms.add(SearchTerms.token(token));
+            }
+
+            for (Long term : terms) {
+                list.add(new StorageField[] {
+                        new StorageField("root_id", LiteralBase.LONG, rootId),
+                        new StorageField("term", LiteralBase.LONG, term),
+                        new StorageField("entry", LiteralBase.LONG, entry),
+                        new StorageField("directory_id", LiteralBase.LONG, directoryId),
+                        new StorageField("file_code", LiteralBase.STRING, fileLabel.getFileCode()),
+                        new StorageField("file_type", LiteralBase.LONG, fileType),
+                        new StorageField("extension", LiteralBase.LONG, extension),
+                        new StorageField("last_modified", LiteralBase.LONG, fileLabel.getLastModified())
+                });
+            }
+        }
+
+        if (list.isEmpty()) {
+            return true;
+        }
+
+        return this.storage.executeInsert(table, list);
+    }
+
+    /**
+     * 删除文件的搜索索引。
+     *
+     * @param domain
+     * @param rootId 层级的根目录 ID 。
+     * @param directoryId 文件所在目录 ID 。
+     * @param fileCodes 文件码列表。
+     * @return 删除成功返回 {@code true} 。
+     */
+    public boolean deleteSearchIndex(String domain, Long rootId, Long directoryId, List<String> fileCodes) {
+        String table = this.searchIndexTableNameMap.get(domain);
+        if (null == table) {
+            return false;
+        }
+
+        boolean success = true;
+
+        for (int i = 0, size = fileCodes.size(); i < size; i += IN_BATCH_SIZE) {
+            List<String> batch = fileCodes.subList(i, Math.min(i + IN_BATCH_SIZE, size));
+            Object[] values = new Object[batch.size()];
+            for (int n = 0; n < values.length; ++n) {
+                values[n] = SearchTerms.entry(directoryId, batch.get(n));
+            }
+
+            success = this.storage.executeDelete(table, new Conditional[] {
+                    Conditional.createEqualTo(new StorageField("root_id", LiteralBase.LONG, rootId)),
+                    Conditional.createAnd(),
+                    Conditional.createIN(new StorageField("entry", LiteralBase.LONG), values)
+            }) && success;
+        }
+
+        return success;
+    }
+
+    /**
+     * 删除指定目录下所有文件的搜索索引。
+     *
+     * @param domain
+     * @param rootId 层级的根目录 ID 。
+     * @param directoryIds 目录 ID 列表。
+     * @return 删除成功返回 {@code true} 。
+     */
+    public boolean deleteSearchIndexByDirectory(String domain, Long rootId, List<Long> directoryIds) {
+        String table = this.searchIndexTableNameMap.get(domain);
+        if (null == table) {
+            return false;
+        }
+
+        boolean success = true;
+
+        for (int i = 0, size = directoryIds.size(); i < size; i += IN_BATCH_SIZE) {
+            List<Long> batch = directoryIds.subList(i, Math.min(i + IN_BATCH_SIZE, size));
+            success = this.storage.executeDelete(table, new Conditional[] {
+                    Conditional.createEqualTo(new StorageField("root_id", LiteralBase.LONG, rootId)),
+                    Conditional.createAnd(),
+                    Conditional.createIN(new StorageField("directory_id", LiteralBase.LONG), batch.toArray())
+            }) && success;
+        }
+
+        return success;
+    }
+
+    /**
+     * 删除指定层级的所有搜索索引。
+     *
+     * @param domain
+     * @param rootId 层级的根目录 ID 。
+     * @return 删除成功返回 {@code true} 。
+     */
+    public boolean clearSearchIndex(String domain, Long rootId) {
+        String table = this.searchIndexTableNameMap.get(domain);
+        if (null == table) {
+            return false;
+        }
+
+        return this.storage.executeDelete(table, new Conditional[] {
+                Conditional.createEqualTo(new StorageField("root_id", LiteralBase.LONG, rootId))
+        });
+    }
+
+    /**
+     * 按词项查询搜索索引，结果按文件修改时间排序。
+     *
+     * @param domain
+     * @param rootId 层级的根目录 ID 。
+     * @param term 词项。
+     * @param fileTypes 文件类型词项，与扩展名词项任一匹配即可。
+     * @param extensions 扩展名词项。
+     * @param desc 是否按时间倒序。
+     * @param offset 结果的起始位置。
+     * @param count 结果的最大数量。
+     * @return 返回包含 {@code directoryId} 和 {@code fileCode} 的数据列表。
+     */
+    public List<JSONObject> querySearchIndex(String domain, Long rootId, long term,
+                                             List<Long> fileTypes, List<Long> extensions,
+                                             boolean desc, int offset, int count) {
+        List<JSONObject> list = new ArrayList<>();
+
+        String table = this.searchIndexTableNameMap.get(domain);
+        if (null == table) {
+            return list;
+        }
+
+        List<Conditional> conditionals = new ArrayList<>();
+        conditionals.add(Conditional.createEqualTo(new StorageField("root_id", LiteralBase.LONG, rootId)));
+        conditionals.add(Conditional.createAnd());
+        conditionals.add(Conditional.createEqualTo(new StorageField("term", LiteralBase.LONG, term)));
+
+        // 文件类型或扩展名
+        List<Conditional> types = new ArrayList<>();
+        if (!fileTypes.isEmpty()) {
+            types.add(Conditional.createIN(new StorageField("file_type", LiteralBase.LONG), fileTypes.toArray()));
+        }
+        if (!extensions.isEmpty()) {
+            if (!types.isEmpty()) {
+                types.add(Conditional.createOr());
+            }
+            types.add(Conditional.createIN(new StorageField("extension", LiteralBase.LONG), extensions.toArray()));
+        }
+        if (!types.isEmpty()) {
+            conditionals.add(Conditional.createAnd());
+            conditionals.add(Conditional.createBracket(types.toArray(new Conditional[0])));
+        }
+
+        conditionals.add(Conditional.createOrderBy(new String[] { "last_modified" }, desc));
+        conditionals.add(Conditional.createLimit(offset, count));
+
+        List<StorageField[]> result = this.storage.executeQuery(table, new StorageField[] {
+                new StorageField("directory_id", LiteralBase.LONG),
+                new StorageField("file_code", LiteralBase.STRING)
+        }, conditionals.toArray(new Conditional[0]));
+
+        for (StorageField[] row : result) {
+            JSONObject json = new JSONObject();
+            try {
+                json.put("directoryId", row[0].getLong());
+                json.put("fileCode", row[1].getString());
+            } catch (JSONException e) {
+                e.printStackTrace();
+                continue;
+            }
+            list.add(json);
+        }
+
+        return list;
+    }
+
     /**
      * 列出指定索引范围内的回收站数据。
      *
@@ -646,6 +1171,9 @@ public class FileStructStorage implements Storagable {
                 Logger.i(this.getClass(), "Created table '" + table + "' successfully");
             }
         }
+
+        // 按内容查找文件时使用的索引
+        this.storage.executeCreateIndex(table, this.fileSizeIndex);
     }
 
     private void checkDescriptorTable(String domain) {
@@ -675,6 +1203,9 @@ public class FileStructStorage implements Storagable {
                     new StorageField("descriptor", LiteralBase.STRING, new Constraint[] {
                             Constraint.NOT_NULL
                     }),
+                    new StorageField("name_hash", LiteralBase.LONG, new Constraint[] {
+                            Constraint.DEFAULT_0
+                    }),
                     new StorageField("reserved", LiteralBase.STRING, new Constraint[] {
                             Constraint.DEFAULT_NULL
                     })
@@ -684,6 +1215,74 @@ public class FileStructStorage implements Storagable {
                 Logger.i(this.getClass(), "Created table '" + table + "' successfully");
             }
         }
+        else {
+            // 旧版本的表没有文件名哈希字段
+            if (!this.storage.executeAddColumn(table, new StorageField("name_hash", LiteralBase.LONG, new Constraint[] {
+                    Constraint.DEFAULT_0
+            }))) {
+                Logger.e(this.getClass(), "Add column 'name_hash' failed, shared data check falls back to file name: "
+                        + table);
+                return;
+            }
+        }
+
+        // 判断数据是否共享时使用的索引
+        this.storage.executeCreateIndex(table, this.nameHashIndex);
+
+        this.fillNameHash(table);
+
+        this.nameHashTables.add(table);
+    }
+
+    /**
+     * 使用 FNV-1a 算法计算文件名的 64 位哈希值，结果不会是 {@code 0} 。
+     *
+     * @param name
+     * @return
+     */
+    private static long hashName(String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0, len = name.length(); i < len; ++i) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        // 0 表示未计算哈希值的旧数据
+        return (hash == 0L) ? 1L : hash;
+    }
+
+    /**
+     * 为旧数据补齐文件名哈希字段。
+     *
+     * @param table
+     */
+    private void fillNameHash(String table) {
+        while (true) {
+            List<StorageField[]> result = this.storage.executeQuery(table, new StorageField[] {
+                    new StorageField("file_code", LiteralBase.STRING),
+                    new StorageField("file_name", LiteralBase.STRING)
+            }, new Conditional[] {
+                    Conditional.createEqualTo(new StorageField("name_hash", LiteralBase.LONG, 0L)),
+                    Conditional.createLimit(IN_BATCH_SIZE)
+            });
+
+            if (result.isEmpty()) {
+                break;
+            }
+
+            for (StorageField[] fields : result) {
+                boolean success = this.storage.executeUpdate(table, new StorageField[] {
+                        new StorageField("name_hash", LiteralBase.LONG, FileStructStorage.hashName(fields[1].getString()))
+                }, new Conditional[] {
+                        Conditional.createEqualTo(new StorageField("file_code", LiteralBase.STRING, fields[0].getString()))
+                });
+
+                if (!success) {
+                    Logger.w(this.getClass(), "Fill name hash failed: " + table);
+                    return;
+                }
+            }
+        }
     }
 
     private void checkHierarchyTable(String domain) {
@@ -704,6 +1303,9 @@ public class FileStructStorage implements Storagable {
                     new StorageField("data", LiteralBase.STRING, new Constraint[] {
                             Constraint.NOT_NULL
                     }),
+                    new StorageField("root_id", LiteralBase.LONG, new Constraint[] {
+                            Constraint.DEFAULT_NULL
+                    }),
                     new StorageField("reserved", LiteralBase.STRING, new Constraint[] {
                             Constraint.DEFAULT_NULL
                     })
@@ -713,6 +1315,64 @@ public class FileStructStorage implements Storagable {
                 Logger.i(this.getClass(), "Created table '" + table + "' successfully");
             }
         }
+        else {
+            // 旧版本的表没有根节点字段
+            this.storage.executeAddColumn(table, new StorageField("root_id", LiteralBase.LONG, new Constraint[] {
+                    Constraint.DEFAULT_NULL
+            }));
+        }
+
+        // 按根节点批量加载节点时使用的索引
+        this.storage.executeCreateIndex(table, this.rootIdIndex);
+    }
+
+    private void checkSearchIndexTable(String domain) {
+        String table = this.searchIndexTablePrefix + domain;
+
+        table = SQLUtils.correctTableName(table);
+        this.searchIndexTableNameMap.put(domain, table);
+
+        if (!this.storage.exist(table)) {
+            // 表不存在，建表
+            StorageField[] fields = new StorageField[] {
+                    new StorageField("sn", LiteralBase.LONG, new Constraint[] {
+                            Constraint.PRIMARY_KEY, Constraint.AUTOINCREMENT
+                    }),
+                    new StorageField("root_id", LiteralBase.LONG, new Constraint[] {
+                            Constraint.NOT_NULL
+                    }),
+                    new StorageField("term", LiteralBase.LONG, new Constraint[] {
+                            Constraint.NOT_NULL
+                    }),
+                    new StorageField("entry", LiteralBase.LONG, new Constraint[] {
+                            Constraint.NOT_NULL
+                    }),
+                    new StorageField("directory_id", LiteralBase.LONG, new Constraint[] {
+                            Constraint.NOT_NULL
+                    }),
+                    new StorageField("file_code", LiteralBase.STRING, new Constraint[] {
+                            Constraint.NOT_NULL
+                    }),
+                    new StorageField("file_type", LiteralBase.LONG, new Constraint[] {
+                            Constraint.NOT_NULL
+                    }),
+                    new StorageField("extension", LiteralBase.LONG, new Constraint[] {
+                            Constraint.NOT_NULL
+                    }),
+                    new StorageField("last_modified", LiteralBase.LONG, new Constraint[] {
+                            Constraint.NOT_NULL
+                    })
+            };
+
+            if (this.storage.executeCreate(table, fields, new StorageIndex[] {
+                    this.searchTermIndex, this.searchEntryIndex
+            })) {
+                Logger.i(this.getClass(), "Created table '" + table + "' successfully");
+            }
+        }
+
+        // 删除目录时使用的索引
+        this.storage.executeCreateIndex(table, this.searchDirectoryIndex);
     }
 
     private void checkRecyclebinTable(String domain) {
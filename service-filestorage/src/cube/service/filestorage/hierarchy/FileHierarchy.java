@@ -29,8 +29,12 @@ package cube.service.filestorage.hierarchy;
 import cell.util.log.Logger;
 import cube.common.entity.FileLabel;
 import cube.common.entity.HierarchyNode;
+import cube.common.UniqueKey;
 import cube.common.entity.HierarchyNodes;
 import cube.core.Cache;
+import cube.core.CacheKey;
+import cube.core.CacheValue;
+import cube.service.filestorage.FileStructStorage;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
@@ -52,6 +56,8 @@ public class FileHierarchy {
     protected final static String KEY_HIDDEN = "hidden";
     /** 目录内文件占用的空间大小。 */
     protected final static String KEY_SIZE = "size";
+    /** 根目录是否已建立文件搜索索引。 */
+    protected final static String KEY_SEARCH_INDEX = "searchIndex";
 
     /**
      * 该文件层级允许存入的文件的总大小。
@@ -61,7 +67,7 @@ public class FileHierarchy {
     /**
      * 用于读写节点的缓存。
      */
-    private Cache cache;
+    private FileHierarchyCache cache;
 
     /**
      * 根目录。
@@ -92,14 +98,16 @@ public class FileHierarchy {
      * 构造函数。
      *
      * @param cache 用于读写节点的缓存。
+     * @param structStorage 用于存储搜索索引的结构存储。
      * @param root 根目录。
      */
-    public FileHierarchy(Cache cache, HierarchyNode root, FileHierarchyListener listener) {
+    public FileHierarchy(FileHierarchyCache cache, FileStructStorage structStorage, HierarchyNode root,
+                         FileHierarchyListener listener) {
         this.cache = cache;
         this.root = new Directory(this, root);
         this.listener = listener;
         this.directories = new ConcurrentHashMap<>();
-        this.fileSearcher = new FileSearcher(this.root, listener);
+        this.fileSearcher = new FileSearcher(this, structStorage, listener);
         this.timestamp = System.currentTimeMillis();
     }
 
@@ -164,8 +172,13 @@ public class FileHierarchy {
             return dir;
         }
 
-        // 递归方式遍历
-        HierarchyNode node = traversal(this.cache, this.root.node, id);
+        // 按父节点路径查找
+        HierarchyNode node = this.locate(id);
+        if (null == node) {
+            // 递归方式遍历
+            node = traversal(this.cache, this.root.node, id);
+        }
+
         if (null != node) {
             dir = new Directory(this, node);
             this.directories.put(dir.getId(), dir);
@@ -174,6 +187,81 @@ public class FileHierarchy {
         return dir;
     }
 
+    /**
+     * 返回指定 ID 的目录，只按父节点路径查找，不遍历整个层级。
+     *
+     * @param id 指定目录 ID 。
+     * @return 目录不存在时返回 {@code null} 。
+     */
+    protected Directory findDirectory(Long id) {
+        if (id.longValue() == this.root.getId().longValue()) {
+            return this.root;
+        }
+
+        Directory dir = this.directories.get(id);
+        if (null != dir) {
+            return dir;
+        }
+
+        HierarchyNode node = this.locate(id);
+        if (null != node) {
+            dir = new Directory(this, node);
+            this.directories.put(dir.getId(), dir);
+        }
+
+        return dir;
+    }
+
+    /**
+     * 一次性加载整个层级，然后从指定节点沿父节点向上得到路径，再从根节点沿路径向下查找。
+     *
+     * @param id 指定的节点 ID 。
+     * @return 返回查找的节点，层级里没有该节点时返回 {@code null} 。
+     */
+    private HierarchyNode locate(Long id) {
+        String domain = this.root.node.getDomain().getName();
+        this.cache.loadRoot(domain, this.root.getId());
+
+        String rootKey = this.root.node.getUniqueKey();
+
+        // 从指定节点到根节点的路径，不包括根节点
+        List<String> path = new ArrayList<>();
+        String key = UniqueKey.make(id, domain);
+        while (!rootKey.equals(key)) {
+            if (path.size() >= 512) {
+                // 层级过深或数据有误
+                return null;
+            }
+
+            CacheValue value = this.cache.get(new CacheKey(key));
+            if (null == value || !value.get().has("parent")) {
+                return null;
+            }
+
+            path.add(key);
+            key = value.get().optString("parent", null);
+        }
+
+        HierarchyNode node = this.root.node;
+        for (int i = path.size() - 1; i >= 0; --i) {
+            HierarchyNode next = null;
+            for (HierarchyNode child : HierarchyNodes.traversalChildren(this.cache, node)) {
+                if (child.getUniqueKey().equals(path.get(i))) {
+                    next = child;
+                    break;
+                }
+            }
+
+            if (null == next) {
+                return null;
+            }
+
+            node = next;
+        }
+
+        return node;
+    }
+
     /**
      * 递归方式查找指定 ID 的分层节点。
      *
@@ -325,9 +413,6 @@ public class FileHierarchy {
             // 从内存里移除
             this.directories.remove(subdirectory.getId());
 
-            // 更新缓存
-            HierarchyNodes.delete(this.cache, subdirectory.node);
-
             // 记录被删除的目录
             result.add(subdirectory);
 
@@ -340,6 +425,13 @@ public class FileHierarchy {
             return result;
         }
 
+        // 删除目录及其子目录的搜索索引
+        List<Long> directoryIds = new ArrayList<>();
+        for (Directory subdirectory : result) {
+            this.collectDirectoryIds(subdirectory.node, recursive, directoryIds);
+        }
+        this.fileSearcher.removeDirectories(directoryIds);
+
         // 回调
         this.listener.onDirectoryRemove(this, result);
 
@@ -350,9 +442,31 @@ public class FileHierarchy {
 
         HierarchyNodes.save(this.cache, parent);
 
+        // 先保存父节点再删除子节点
+        for (Directory subdirectory : result) {
+            HierarchyNodes.delete(this.cache, subdirectory.node);
+        }
+
         return result;
     }
 
+    /**
+     * 收集指定节点的目录 ID 。
+     *
+     * @param node 目录节点。
+     * @param recursive 是否包括所有子目录。
+     * @param result 收集结果。
+     */
+    private void collectDirectoryIds(HierarchyNode node, boolean recursive, List<Long> result) {
+        result.add(node.getId());
+
+        if (recursive && 0 != node.numChildren()) {
+            for (HierarchyNode child : HierarchyNodes.traversalChildren(this.cache, node)) {
+                this.collectDirectoryIds(child, true, result);
+            }
+        }
+    }
+
     /**
      * 删除目录。
      *
@@ -392,6 +506,11 @@ public class FileHierarchy {
         parent.getContext().put(KEY_LAST_MODIFIED, this.timestamp);
         parent.getContext().put(KEY_SIZE, parent.getContext().getLong(KEY_SIZE) - subdirectory.getSize());
 
+        // 删除目录及其子目录的搜索索引
+        List<Long> directoryIds = new ArrayList<>();
+        this.collectDirectoryIds(subdirectory.node, recursive, directoryIds);
+        this.fileSearcher.removeDirectories(directoryIds);
+
         HierarchyNodes.save(this.cache, parent);
         HierarchyNodes.delete(this.cache, subdirectory.node);
 
@@ -537,6 +656,24 @@ public class FileHierarchy {
         HierarchyNodes.save(this.cache, directory.node);
     }
 
+    /**
+     * 根目录是否已建立文件搜索索引。
+     *
+     * @return 已建立索引返回 {@code true} 。
+     */
+    protected boolean hasSearchIndex() {
+        // 分词规则变化前建立的索引需要重建
+        return this.root.node.getContext().optInt(KEY_SEARCH_INDEX, 0) >= SearchTerms.VERSION;
+    }
+
+    /**
+     * 标记根目录已建立文件搜索索引。
+     */
+    protected void setSearchIndex() {
+        this.root.node.getContext().put(KEY_SEARCH_INDEX, SearchTerms.VERSION);
+        HierarchyNodes.save(this.cache, this.root.node);
+    }
+
     /**
      * 设置目录大小。
      *
@@ -707,7 +844,6 @@ public class FileHierarchy {
             FileLabel fileLabel = this.listener.onQueryFileLabel(this, directory, key);
             if (null != fileLabel) {
                 result.add(fileLabel);
-                this.fileSearcher.addFile(directory, fileLabel);
             }
         }
 
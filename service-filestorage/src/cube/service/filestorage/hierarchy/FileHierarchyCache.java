@@ -26,62 +26,264 @@
 
 package cube.service.filestorage.hierarchy;
 
+import cell.util.log.Logger;
 import cube.common.UniqueKey;
 import cube.core.*;
 import cube.service.filestorage.FileStructStorage;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.*;
+
 /**
- * 使用数据库存储实现的缓存。
+ * 使用数据库存储实现的写回缓存。
+ *
+ * 节点数据保存在内存里，修改过的节点记为脏数据，同一节点的多次保存合并为一次写入，
+ * 由刷写线程定时或在停止时批量写入数据库。每次刷写先写入新增和更新的节点，最后再删除节点，
+ * 保证已持久化的节点不会引用不存在的子节点。写入完成之前，正在写入的节点不会被淘汰，
+ * 也不会被数据库里的旧数据覆盖。
+ *
+ * 缓存同时记录每个节点所属的根节点，写入数据库时一并保存，
+ * 以便按根节点一次性加载整个层级。
  */
 public class FileHierarchyCache extends AbstractCache {
 
     private FileStructStorage structStorage;
 
+    /**
+     * 内存里最多保存的节点数量，仅淘汰已写入数据库的节点。
+     */
+    private int capacity = 100000;
+
+    /**
+     * 刷写间隔，单位：毫秒。
+     */
+    private long flushInterval = 1000L;
+
+    /**
+     * 节点数据，按访问顺序排列。
+     */
+    private final LinkedHashMap<String, String> nodes;
+
+    /**
+     * 待写入的节点，值为 {@code null} 表示待删除。
+     */
+    private LinkedHashMap<String, String> dirty;
+
+    /**
+     * 正在写入数据库的节点，值为 {@code null} 表示正在删除。
+     * 写入完成之前这些节点与待写入的节点一样，不从数据库读取，也不被淘汰。
+     */
+    private LinkedHashMap<String, String> inFlight;
+
+    /**
+     * 节点对应的根节点 ID 。
+     */
+    private final Map<String, Long> roots;
+
+    /**
+     * 已按根节点完整加载的层级。
+     */
+    private final Set<String> loadedRoots;
+
+    /**
+     * 保证同一时间只有一个刷写过程。
+     */
+    private final Object flushMutex = new Object();
+
+    private Thread flushThread;
+
+    private volatile boolean running = false;
+
     public FileHierarchyCache(FileStructStorage structStorage) {
         super("FileHierarchyCache", "FileHierarchyCache");
         this.structStorage = structStorage;
+        this.nodes = new LinkedHashMap<>(1024, 0.75f, true);
+        this.dirty = new LinkedHashMap<>();
+        this.inFlight = new LinkedHashMap<>();
+        this.roots = new HashMap<>();
+        this.loadedRoots = new HashSet<>();
     }
 
     @Override
     public void start() {
-        // Nothing
+        if (this.running) {
+            return;
+        }
+
+        this.running = true;
+
+        this.flushThread = new Thread("FileHierarchyCache-Flush") {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        Thread.sleep(flushInterval);
+                    } catch (InterruptedException e) {
+                        // Nothing
+                    }
+
+                    flush();
+                }
+            }
+        };
+        this.flushThread.setDaemon(true);
+        this.flushThread.start();
     }
 
     @Override
     public void stop() {
-        // Nothing
+        this.running = false;
+
+        if (null != this.flushThread) {
+            this.flushThread.interrupt();
+            try {
+                this.flushThread.join(this.flushInterval * 10L);
+            } catch (InterruptedException e) {
+                // Nothing
+            }
+            this.flushThread = null;
+        }
+
+        // 写入剩余数据
+        this.flush();
     }
 
     @Override
     public void put(CacheKey key, CacheValue value) {
-        Object[] uk = UniqueKey.extract(key.get());
-        Long id = (Long) uk[0];
-        String domain = (String) uk[1];
-        this.structStorage.writeHierarchyNode(domain, id, value.get());
+        JSONObject json = value.get();
+        String data = json.toString();
+
+        synchronized (this.nodes) {
+            this.nodes.put(key.get(), data);
+            this.dirty.put(key.get(), data);
+
+            Long rootId = this.resolveRoot(key.get(), json.optString("parent", null));
+            if (null != rootId) {
+                this.roots.put(key.get(), rootId);
+            }
+
+            this.evict();
+        }
     }
 
     @Override
     public CacheValue get(CacheKey key) {
-        Object[] uk = UniqueKey.extract(key.get());
-        Long id = (Long) uk[0];
-        String domain = (String) uk[1];
+        List<CacheKey> keys = new ArrayList<>(1);
+        keys.add(key);
+        return this.get(keys).get(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * 内存里没有的节点按域合并为一次批量查询。
+     */
+    @Override
+    public List<CacheValue> get(List<CacheKey> keys) {
+        String[] data = new String[keys.size()];
+
+        // 按域整理需要从数据库读取的节点
+        Map<String, List<Long>> missing = null;
+
+        synchronized (this.nodes) {
+            for (int i = 0; i < data.length; ++i) {
+                String key = keys.get(i).get();
+                data[i] = this.nodes.get(key);
+                if (null == data[i] && !this.isPending(key)) {
+                    // 已删除但尚未写入数据库的节点不读取
+                    Object[] uk = UniqueKey.extract(key);
+                    if (null == missing) {
+                        missing = new HashMap<>();
+                    }
+                    List<Long> idList = missing.get((String) uk[1]);
+                    if (null == idList) {
+                        idList = new ArrayList<>();
+                        missing.put((String) uk[1], idList);
+                    }
+                    idList.add((Long) uk[0]);
+                }
+            }
+        }
+
+        if (null != missing) {
+            Map<String, String> loaded = new HashMap<>();
 
-        JSONObject json = this.structStorage.readHierarchyNode(domain, id);
-        if (null == json) {
-            return null;
+            for (Map.Entry<String, List<Long>> e : missing.entrySet()) {
+                String domain = e.getKey();
+                Map<Long, Long> rootMap = new HashMap<>();
+                Map<Long, String> result = this.structStorage.readHierarchyNodes(domain, e.getValue(), rootMap);
+
+                synchronized (this.nodes) {
+                    for (Map.Entry<Long, String> node : result.entrySet()) {
+                        String key = UniqueKey.make(node.getKey(), domain);
+                        loaded.put(key, node.getValue());
+                        this.fill(key, node.getValue(), rootMap.get(node.getKey()));
+                    }
+                    this.evict();
+                }
+            }
+
+            for (int i = 0; i < data.length; ++i) {
+                if (null == data[i]) {
+                    data[i] = loaded.get(keys.get(i).get());
+                }
+            }
+        }
+
+        List<CacheValue> values = new ArrayList<>(data.length);
+        for (String d : data) {
+            if (null == d) {
+                values.add(null);
+                continue;
+            }
+
+            // 每次返回新的实例，避免节点修改缓存里的数据
+            try {
+                values.add(new CacheValue(new JSONObject(d)));
+            } catch (JSONException e) {
+                e.printStackTrace();
+                values.add(null);
+            }
         }
 
-        CacheValue value = new CacheValue(json);
-        return value;
+        return values;
     }
 
     @Override
     public void remove(CacheKey key) {
-        Object[] uk = UniqueKey.extract(key.get());
-        Long id = (Long) uk[0];
-        String domain = (String) uk[1];
-        this.structStorage.deleteHierarchyNode(domain, id);
+        synchronized (this.nodes) {
+            this.nodes.remove(key.get());
+            this.roots.remove(key.get());
+            this.dirty.put(key.get(), null);
+        }
+    }
+
+    /**
+     * 使用一次查询将指定根节点下的所有节点载入内存，已加载过的根节点不再查询。
+     *
+     * @param domain 节点所在域。
+     * @param rootId 根节点 ID 。
+     */
+    public void loadRoot(String domain, Long rootId) {
+        String rootKey = UniqueKey.make(rootId, domain);
+
+        synchronized (this.nodes) {
+            if (this.loadedRoots.contains(rootKey)) {
+                return;
+            }
+        }
+
+        Map<Long, String> result = this.structStorage.readHierarchyNodesByRoot(domain, rootId);
+
+        synchronized (this.nodes) {
+            for (Map.Entry<Long, String> e : result.entrySet()) {
+                this.fill(UniqueKey.make(e.getKey(), domain), e.getValue(), rootId);
+            }
+
+            this.loadedRoots.add(rootKey);
+            this.evict();
+        }
     }
 
     @Override
@@ -94,4 +296,213 @@ public class FileHierarchyCache extends AbstractCache {
     public void execute(CacheKey key, CacheTransaction transaction) {
         // Nothing
     }
+
+    /**
+     * 返回待写入的节点数量。
+     *
+     * @return
+     */
+    public int numDirty() {
+        synchronized (this.nodes) {
+            return this.dirty.size();
+        }
+    }
+
+    /**
+     * 将待写入的节点批量写入数据库。
+     */
+    public void flush() {
+        synchronized (this.flushMutex) {
+            LinkedHashMap<String, String> snapshot = null;
+            Map<String, Long> rootSnapshot = new HashMap<>();
+            synchronized (this.nodes) {
+                if (this.dirty.isEmpty()) {
+                    return;
+                }
+
+                snapshot = this.dirty;
+                this.dirty = new LinkedHashMap<>();
+                this.inFlight = snapshot;
+
+                for (Map.Entry<String, String> e : snapshot.entrySet()) {
+                    if (null != e.getValue() && !this.roots.containsKey(e.getKey())) {
+                        // 保存时父节点的根节点未知，再次尝试
+                        try {
+                            Long rootId = this.resolveRoot(e.getKey(),
+                                    new JSONObject(e.getValue()).optString("parent", null));
+                            if (null != rootId) {
+                                this.roots.put(e.getKey(), rootId);
+                            }
+                        } catch (JSONException je) {
+                            je.printStackTrace();
+                        }
+                    }
+                }
+
+                for (String key : snapshot.keySet()) {
+                    Long rootId = this.roots.get(key);
+                    if (null != rootId) {
+                        rootSnapshot.put(key, rootId);
+                    }
+                }
+            }
+
+            // 按域整理
+            Map<String, Map<Long, String>> writeMap = new HashMap<>();
+            Map<String, Map<Long, Long>> rootMap = new HashMap<>();
+            Map<String, List<Long>> deleteMap = new HashMap<>();
+            for (Map.Entry<String, String> e : snapshot.entrySet()) {
+                Object[] uk = UniqueKey.extract(e.getKey());
+                Long id = (Long) uk[0];
+                String domain = (String) uk[1];
+
+                if (null != e.getValue()) {
+                    Map<Long, String> writes = writeMap.get(domain);
+                    if (null == writes) {
+                        writes = new LinkedHashMap<>();
+                        writeMap.put(domain, writes);
+                    }
+                    writes.put(id, e.getValue());
+
+                    Long rootId = rootSnapshot.get(e.getKey());
+                    if (null != rootId) {
+                        Map<Long, Long> domainRoots = rootMap.get(domain);
+                        if (null == domainRoots) {
+                            domainRoots = new HashMap<>();
+                            rootMap.put(domain, domainRoots);
+                        }
+                        domainRoots.put(id, rootId);
+                    }
+                }
+                else {
+                    List<Long> deletes = deleteMap.get(domain);
+                    if (null == deletes) {
+                        deletes = new ArrayList<>();
+                        deleteMap.put(domain, deletes);
+                    }
+                    deletes.add(id);
+                }
+            }
+
+            Set<String> failedDomains = new HashSet<>();
+
+            // 先写入新增和更新的节点
+            for (Map.Entry<String, Map<Long, String>> e : writeMap.entrySet()) {
+                Map<Long, Long> domainRoots = rootMap.get(e.getKey());
+                if (!this.structStorage.writeHierarchyNodes(e.getKey(), e.getValue(),
+                        (null != domainRoots) ? domainRoots : new HashMap<>())) {
+                    failedDomains.add(e.getKey());
+                }
+            }
+
+            // 再删除节点，写入失败的域不删除节点
+            for (Map.Entry<String, List<Long>> e : deleteMap.entrySet()) {
+                if (failedDomains.contains(e.getKey())
+                        || !this.structStorage.deleteHierarchyNodes(e.getKey(), e.getValue())) {
+                    failedDomains.add(e.getKey());
+                }
+            }
+
+            if (failedDomains.isEmpty()) {
+                synchronized (this.nodes) {
+                    this.inFlight = new LinkedHashMap<>();
+                }
+                return;
+            }
+
+            Logger.w(this.getClass(), "Flush hierarchy nodes failed: " + failedDomains.toString());
+
+            // 失败的数据放回待写入队列，已有更新的节点以新数据为准
+            synchronized (this.nodes) {
+                this.inFlight = new LinkedHashMap<>();
+
+                LinkedHashMap<String, String> pending = new LinkedHashMap<>();
+                for (Map.Entry<String, String> e : snapshot.entrySet()) {
+                    String domain = (String) UniqueKey.extract(e.getKey())[1];
+                    if (failedDomains.contains(domain) && !this.dirty.containsKey(e.getKey())) {
+                        pending.put(e.getKey(), e.getValue());
+                    }
+                }
+
+                pending.putAll(this.dirty);
+                this.dirty = pending;
+            }
+        }
+    }
+
+    /**
+     * 将从数据库读取的节点放入内存，内存里已有或待写入的节点不覆盖。
+     *
+     * @param key
+     * @param data
+     * @param rootId 数据库里记录的根节点 ID ，旧数据为 {@code null} 。
+     */
+    private void fill(String key, String data, Long rootId) {
+        if (this.isPending(key) || this.nodes.containsKey(key)) {
+            return;
+        }
+
+        this.nodes.put(key, data);
+
+        if (null == rootId) {
+            try {
+                rootId = this.resolveRoot(key, new JSONObject(data).optString("parent", null));
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (null != rootId) {
+            this.roots.put(key, rootId);
+        }
+    }
+
+    /**
+     * 节点是否有尚未写入数据库的修改，包括正在写入的节点。
+     *
+     * @param key
+     * @return
+     */
+    private boolean isPending(String key) {
+        return this.dirty.containsKey(key) || this.inFlight.containsKey(key);
+    }
+
+    /**
+     * 根据父节点推算节点的根节点 ID 。
+     *
+     * @param key 节点键。
+     * @param parentKey 父节点键。
+     * @return 无法推算时返回 {@code null} 。
+     */
+    private Long resolveRoot(String key, String parentKey) {
+        if (null == parentKey) {
+            // 没有父节点的是根节点
+            return UniqueKey.extractId(key);
+        }
+
+        return this.roots.get(parentKey);
+    }
+
+    /**
+     * 超过容量时淘汰最久未访问且已写入数据库的节点。
+     */
+    private void evict() {
+        if (this.nodes.size() <= this.capacity) {
+            return;
+        }
+
+        Iterator<Map.Entry<String, String>> iter = this.nodes.entrySet().iterator();
+        while (iter.hasNext() && this.nodes.size() > this.capacity) {
+            Map.Entry<String, String> e = iter.next();
+            if (!this.isPending(e.getKey())) {
+                iter.remove();
+
+                // 层级不再完整，下次需要重新加载
+                Long rootId = this.roots.remove(e.getKey());
+                if (null != rootId) {
+                    this.loadedRoots.remove(UniqueKey.make(rootId, (String) UniqueKey.extract(e.getKey())[1]));
+                }
+            }
+        }
+    }
 }
@@ -59,6 +59,11 @@ public class FileHierarchyManager implements FileHierarchyListener {
      */
     private FileHierarchyCache fileHierarchyCache;
 
+    /**
+     * 文件结构存储。
+     */
+    private FileStructStorage structStorage;
+
     /**
      * 文件存储服务。
      */
@@ -71,10 +76,25 @@ public class FileHierarchyManager implements FileHierarchyListener {
      */
     public FileHierarchyManager(FileStructStorage structStorage, FileStorageService fileStorageService) {
         this.fileHierarchyCache = new FileHierarchyCache(structStorage);
+        this.structStorage = structStorage;
         this.fileStorageService = fileStorageService;
         this.roots = new ConcurrentHashMap<>();
     }
 
+    /**
+     * 启动管理器。
+     */
+    public void start() {
+        this.fileHierarchyCache.start();
+    }
+
+    /**
+     * 停止管理器，写入缓存里尚未写入的节点。
+     */
+    public void stop() {
+        this.fileHierarchyCache.stop();
+    }
+
     /**
      * 获取指定 ROOT 的文件层级实例。
      *
@@ -91,14 +111,14 @@ public class FileHierarchyManager implements FileHierarchyListener {
 
         HierarchyNode node = HierarchyNodes.load(this.fileHierarchyCache, uniqueKey);
         if (null != node) {
-            root = new FileHierarchy(this.fileHierarchyCache, node, this);
+            root = new FileHierarchy(this.fileHierarchyCache, this.structStorage, node, this);
             this.roots.put(uniqueKey, root);
             return root;
         }
 
         // 没有创建过根目录，创建根目录
         node = new HierarchyNode(rootId, domainName);
-        root = new FileHierarchy(this.fileHierarchyCache, node, this);
+        root = new FileHierarchy(this.fileHierarchyCache, this.structStorage, node, this);
         this.roots.put(uniqueKey, root);
 
         HierarchyNodes.save(this.fileHierarchyCache, node);
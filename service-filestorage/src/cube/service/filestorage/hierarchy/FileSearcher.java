@@ -26,90 +26,90 @@
 
 package cube.service.filestorage.hierarchy;
 
+import cell.util.log.Logger;
 import cube.common.JSONable;
 import cube.common.entity.FileLabel;
+import cube.service.filestorage.FileStructStorage;
+import cube.util.FileType;
 import org.json.JSONObject;
 
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * 文件分类器。
+ *
+ * 文件的类型、扩展名、名称分词和修改时间写入 {@link FileStructStorage} 的搜索索引表，
+ * 添加和移除文件时同步更新索引，搜索时由数据库按词项查找并分页。
  */
 public class FileSearcher {
 
-    private Directory root;
+    /**
+     * 需要逐个校验结果时每次查询的索引数量。
+     */
+    private final static int SCAN_BATCH_SIZE = 100;
 
-    private FileHierarchyListener listener;
+    /**
+     * 需要逐个校验结果时最多扫描的索引数量。
+     */
+    private final static int MAX_SCAN_SIZE = 5000;
+
+    private FileHierarchy fileHierarchy;
 
-    private LinkedHashMap<String, IndexingItem> repository;
+    private FileStructStorage structStorage;
+
+    private FileHierarchyListener listener;
 
-    private Vector<IndexingItem> fileQueue;
+    /**
+     * 保证索引更新和重建不会交错执行。
+     */
+    private final Object mutex = new Object();
 
-    private ConcurrentHashMap<SearchFilter, List<IndexingItem>> searchResultMap;
+    private volatile boolean indexed = false;
 
-    public FileSearcher(Directory root, FileHierarchyListener listener) {
-        this.root = root;
+    public FileSearcher(FileHierarchy fileHierarchy, FileStructStorage structStorage, FileHierarchyListener listener) {
+        this.fileHierarchy = fileHierarchy;
+        this.structStorage = structStorage;
         this.listener = listener;
-        this.repository = new LinkedHashMap<>();
-        this.fileQueue = new Vector<>();
-        this.searchResultMap = new ConcurrentHashMap<>();
     }
 
     public void addFile(Directory directory, FileLabel fileLabel) {
-        String key = FileSearcher.makeKey(directory, fileLabel);
-        if (this.repository.containsKey(key)) {
-            return;
-        }
-
-        IndexingItem item = new IndexingItem(key, directory, fileLabel);
-        this.repository.put(key, item);
-        this.fileQueue.add(item);
-
-        // 如果文件符合检索规则，删除指定过滤器的缓存
-        List<SearchFilter> list = this.matchFilter(fileLabel);
-        if (!list.isEmpty()) {
-            for (SearchFilter filter : list) {
-                this.searchResultMap.remove(filter);
-            }
+        List<FileLabel> list = new ArrayList<>(1);
+        list.add(fileLabel);
+
+        List<String> fileCodes = new ArrayList<>(1);
+        fileCodes.add(fileLabel.getFileCode());
+
+        synchronized (this.mutex) {
+            // 删除旧索引，避免重复
+            this.structStorage.deleteSearchIndex(this.getDomainName(), this.fileHierarchy.getId(),
+                    directory.getId(), fileCodes);
+            this.structStorage.writeSearchIndex(this.getDomainName(), this.fileHierarchy.getId(),
+                    directory.getId(), list);
         }
     }
 
     public void removeFile(Directory directory, FileLabel fileLabel) {
-        String key = FileSearcher.makeKey(directory, fileLabel);
-        IndexingItem item = this.repository.remove(key);
-        if (null != item) {
-            this.fileQueue.remove(item);
-
-            // 如果文件符合检索规则，删除指定过滤器的缓存
-            List<SearchFilter> list = this.matchFilter(fileLabel);
-            if (!list.isEmpty()) {
-                for (SearchFilter filter : list) {
-                    this.searchResultMap.remove(filter);
-                }
-            }
+        List<String> fileCodes = new ArrayList<>(1);
+        fileCodes.add(fileLabel.getFileCode());
+
+        synchronized (this.mutex) {
+            this.structStorage.deleteSearchIndex(this.getDomainName(), this.fileHierarchy.getId(),
+                    directory.getId(), fileCodes);
         }
     }
 
-    /**
-     * 匹配已缓存的过滤器。
-     *
-     * @param fileLabel
-     * @return
-     */
-    private List<SearchFilter> matchFilter(FileLabel fileLabel) {
-        List<SearchFilter> result = new ArrayList<>();
-
-        Enumeration<SearchFilter> enumeration = this.searchResultMap.keys();
-        while (enumeration.hasMoreElements()) {
-            SearchFilter filter = enumeration.nextElement();
-            if (filter.containsFileType(fileLabel)) {
-                result.add(filter);
-            }
+    public void removeDirectories(List<Long> directoryIds) {
+        if (directoryIds.isEmpty()) {
+            return;
         }
 
-        return result;
+        synchronized (this.mutex) {
+            this.structStorage.deleteSearchIndexByDirectory(this.getDomainName(), this.fileHierarchy.getId(),
+                    directoryIds);
+        }
     }
 
     /**
@@ -123,49 +123,174 @@ public class FileSearcher {
             return null;
         }
 
-        List<IndexingItem> record = this.searchResultMap.get(filter);
-        if (null != record) {
-            return record;
+        this.checkIndex();
+
+        List<Long> fileTypes = new ArrayList<>();
+        for (FileType fileType : filter.fileTypes) {
+            fileTypes.add(SearchTerms.fileType(fileType));
+        }
+        List<Long> extensions = new ArrayList<>();
+        for (String extension : filter.extensions) {
+            extensions.add(SearchTerms.extension(extension));
+        }
+
+        // 使用最长的分词查询
+        long term = SearchTerms.FILE;
+        if (null != filter.nameTokens) {
+            String token = "";
+            for (String t : filter.nameTokens) {
+                if (t.length() > token.length()) {
+                    token = t;
+                }
+            }
+            term = SearchTerms.token(token);
         }
 
         List<IndexingItem> result = new ArrayList<>();
+        final int num = filter.endIndex - filter.beginIndex;
+
+        if (null == filter.nameTokens || filter.nameTokens.size() == 1) {
+            // 由索引直接分页
+            List<JSONObject> rows = this.structStorage.querySearchIndex(this.getDomainName(),
+                    this.fileHierarchy.getId(), term, fileTypes, extensions,
+                    filter.inverseOrder, filter.beginIndex, num);
+            for (JSONObject row : rows) {
+                IndexingItem item = this.makeItem(row);
+                if (null != item) {
+                    result.add(item);
+                }
+            }
+        }
+        else {
+            // 多个分词时逐个校验其余分词
+            int skip = filter.beginIndex;
+            int offset = 0;
+            int scanned = 0;
+            while (result.size() < num) {
+                if (scanned >= MAX_SCAN_SIZE) {
+                    // 限制扫描量，避免常见分词导致扫描整个层级的索引
+                    Logger.d(this.getClass(), "Search scan limit reached: " + this.fileHierarchy.getId());
+                    break;
+                }
+
+                List<JSONObject> rows = this.structStorage.querySearchIndex(this.getDomainName(),
+                        this.fileHierarchy.getId(), term, fileTypes, extensions,
+                        filter.inverseOrder, offset, SCAN_BATCH_SIZE);
+                scanned += rows.size();
+
+                // 失效的索引被删除后，后续数据的位置会前移
+                int removed = 0;
+                for (JSONObject row : rows) {
+                    IndexingItem item = this.makeItem(row);
+                    if (null == item) {
+                        ++removed;
+                        continue;
+                    }
+
+                    if (!filter.containsName(item.fileLabel)) {
+                        continue;
+                    }
+
+                    if (skip > 0) {
+                        --skip;
+                        continue;
+                    }
+
+                    result.add(item);
+                    if (result.size() >= num) {
+                        break;
+                    }
+                }
 
-        int begin = filter.beginIndex;
-        int end = filter.endIndex;
-        final int num = end - begin;
-
-        // 从根目录开始进行递归
-        AtomicInteger index = new AtomicInteger(0);
-        FileHierarchyTool.recurseFile(this.root, new RecurseHandler() {
-            @Override
-            public boolean handle(Directory directory, FileLabel fileLabel) {
-                if (result.size() >= num) {
-                    return false;
+                if (rows.size() < SCAN_BATCH_SIZE) {
+                    break;
                 }
 
-                if (filter.containsFileType(fileLabel)) {
-                    // 文件类型匹配
-                    int curIndex = index.get();
-                    if (curIndex >= begin && curIndex <= end) {
-                        result.add(new IndexingItem(FileSearcher.makeKey(directory, fileLabel),
-                                directory, fileLabel));
+                offset += SCAN_BATCH_SIZE - removed;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * 层级没有建立过索引时，遍历层级建立索引。
+     */
+    private void checkIndex() {
+        if (this.indexed) {
+            return;
+        }
+
+        synchronized (this.mutex) {
+            if (this.indexed) {
+                return;
+            }
+
+            if (!this.fileHierarchy.hasSearchIndex()) {
+                Logger.i(this.getClass(), "Build search index: " + this.fileHierarchy.getId());
+
+                this.structStorage.clearSearchIndex(this.getDomainName(), this.fileHierarchy.getId());
+
+                // 按目录整理所有文件
+                Map<Directory, List<FileLabel>> map = new HashMap<>();
+                FileHierarchyTool.recurseFile(this.fileHierarchy.getRoot(), new RecurseHandler() {
+                    @Override
+                    public boolean handle(Directory directory, FileLabel fileLabel) {
+                        List<FileLabel> list = map.get(directory);
+                        if (null == list) {
+                            list = new ArrayList<>();
+                            map.put(directory, list);
+                        }
+                        list.add(fileLabel);
+                        return true;
                     }
+                });
 
-                    // 更新索引
-                    index.incrementAndGet();
+                boolean success = true;
+                for (Map.Entry<Directory, List<FileLabel>> e : map.entrySet()) {
+                    success = this.structStorage.writeSearchIndex(this.getDomainName(),
+                            this.fileHierarchy.getId(), e.getKey().getId(), e.getValue()) && success;
                 }
 
-                return true;
+                if (!success) {
+                    Logger.w(this.getClass(), "Build search index failed: " + this.fileHierarchy.getId());
+                    return;
+                }
+
+                this.fileHierarchy.setSearchIndex();
             }
-        });
 
-        // 排序
-        Collections.sort(result);
+            this.indexed = true;
+        }
+    }
+
+    /**
+     * 根据索引数据创建索引项，目录或文件已不存在时删除该索引。
+     *
+     * @param row
+     * @return
+     */
+    private IndexingItem makeItem(JSONObject row) {
+        Long directoryId = row.getLong("directoryId");
+        String fileCode = row.getString("fileCode");
+
+        // 不使用遍历查找，目录已删除时可以快速返回
+        Directory directory = this.fileHierarchy.findDirectory(directoryId);
+        FileLabel fileLabel = (null != directory) ?
+                this.listener.onQueryFileLabel(this.fileHierarchy, directory, fileCode) : null;
+        if (null == fileLabel) {
+            List<String> fileCodes = new ArrayList<>(1);
+            fileCodes.add(fileCode);
+            this.structStorage.deleteSearchIndex(this.getDomainName(), this.fileHierarchy.getId(),
+                    directoryId, fileCodes);
+            return null;
+        }
 
-        // 缓存记录
-        this.searchResultMap.put(filter, result);
+        return new IndexingItem(FileSearcher.makeKey(directory, fileLabel), directory, fileLabel);
+    }
 
-        return result;
+    private String getDomainName() {
+        return this.fileHierarchy.getRoot().getDomain().getName();
     }
 
     protected static String makeKey(Directory directory, FileLabel fileLabel) {
@@ -33,6 +33,7 @@ import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * 搜索过滤器。
@@ -43,6 +44,16 @@ public class SearchFilter {
 
     protected List<String> extensions = new ArrayList<>();
 
+    /**
+     * 文件名关键字。
+     */
+    protected String name = null;
+
+    /**
+     * 文件名关键字的分词。
+     */
+    protected Set<String> nameTokens = null;
+
     protected boolean inverseOrder = true;
 
     protected int beginIndex = 0;
@@ -64,6 +75,15 @@ public class SearchFilter {
             this.endIndex = json.getInt("end");
         }
 
+        if (json.has("name")) {
+            this.name = json.getString("name");
+            this.nameTokens = SearchTerms.tokenize(this.name);
+            if (this.nameTokens.isEmpty()) {
+                this.name = null;
+                this.nameTokens = null;
+            }
+        }
+
         if (json.has("type")) {
             JSONArray array = json.getJSONArray("type");
             for (int i = 0; i < array.length(); ++i) {
@@ -76,7 +96,7 @@ public class SearchFilter {
                 }
             }
         }
-        else {
+        else if (null == this.name) {
             this.fileTypes.add(FileType.UNKNOWN);
         }
     }
@@ -88,6 +108,11 @@ public class SearchFilter {
      * @return
      */
     public boolean containsFileType(FileLabel fileLabel) {
+        if (this.fileTypes.isEmpty() && this.extensions.isEmpty()) {
+            // 仅按文件名搜索
+            return true;
+        }
+
         if (this.fileTypes.contains(fileLabel.getFileType())) {
             return true;
         }
@@ -95,6 +120,20 @@ public class SearchFilter {
         return this.extensions.contains(fileLabel.getFileExtension().toLowerCase());
     }
 
+    /**
+     * 判断指定的文件名是否包含关键字的所有分词。
+     *
+     * @param fileLabel
+     * @return
+     */
+    public boolean containsName(FileLabel fileLabel) {
+        if (null == this.nameTokens) {
+            return true;
+        }
+
+        return SearchTerms.indexTokens(fileLabel.getFileName()).containsAll(this.nameTokens);
+    }
+
     @Override
     public boolean equals(Object object) {
         if (null == object || !(object instanceof SearchFilter)) {
@@ -107,6 +146,10 @@ public class SearchFilter {
             return false;
         }
 
+        if ((null == name) ? (null != other.name) : !name.equals(other.name)) {
+            return false;
+        }
+
         for (FileType type : fileTypes) {
             if (!other.fileTypes.contains(type)) {
                 return false;
@@ -123,6 +166,7 @@ public class SearchFilter {
             for (FileType fileType : this.fileTypes) {
                 buf.append(fileType.getExtensions()[0]);
             }
+            buf.append(this.name);
             buf.append(this.inverseOrder);
             buf.append(this.beginIndex);
             buf.append(this.endIndex);
@@ -0,0 +1,194 @@
+/**
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2021 Shixin Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.service.filestorage.hierarchy;
+
+import cube.util.FileType;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * 文件搜索索引的词项工具。
+ *
+ * 词项以 64 位哈希值存储，使数据库可以在整数列上建立索引。
+ */
+public final class SearchTerms {
+
+    /**
+     * 表示文件本身的词项，每个文件都有一条该词项的索引。
+     */
+    public final static long FILE = 0L;
+
+    /**
+     * 分词规则的版本，规则变化后已建立的索引需要重建。
+     */
+    public final static int VERSION = 2;
+
+    private SearchTerms() {
+    }
+
+    /**
+     * 计算文件类型的词项。
+     *
+     * @param fileType
+     * @return
+     */
+    public static long fileType(FileType fileType) {
+        return SearchTerms.hash("type:" + fileType.name());
+    }
+
+    /**
+     * 计算文件扩展名的词项。
+     *
+     * @param extension
+     * @return
+     */
+    public static long extension(String extension) {
+        return SearchTerms.hash("ext:" + extension.toLowerCase());
+    }
+
+    /**
+     * 计算文件在层级里的条目标识。
+     *
+     * @param directoryId
+     * @param fileCode
+     * @return
+     */
+    public static long entry(Long directoryId, String fileCode) {
+        return SearchTerms.hash(directoryId.toString() + "/" + fileCode);
+    }
+
+    /**
+     * 计算名称分词的词项。
+     *
+     * @param token
+     * @return
+     */
+    public static long token(String token) {
+        return SearchTerms.hash("name:" + token);
+    }
+
+    /**
+     * 对搜索关键字进行分词。
+     *
+     * 连续的字母和数字作为一个词，中日韩文字按相邻两个字切分，单独的一个字作为一个词。
+     *
+     * @param name
+     * @return 返回不重复的分词。
+     */
+    public static Set<String> tokenize(String name) {
+        return SearchTerms.tokenize(name, false);
+    }
+
+    /**
+     * 对文件名进行分词，用于建立索引。
+     *
+     * 在 {@link #tokenize(String)} 的基础上，中日韩文字的每个字也作为一个词，以便按单字搜索。
+     *
+     * @param name
+     * @return 返回不重复的分词。
+     */
+    public static Set<String> indexTokens(String name) {
+        return SearchTerms.tokenize(name, true);
+    }
+
+    private static Set<String> tokenize(String name, boolean unigrams) {
+        Set<String> tokens = new LinkedHashSet<>();
+        String text = name.toLowerCase();
+
+        StringBuilder word = new StringBuilder();
+        StringBuilder ideographs = new StringBuilder();
+        for (int i = 0, len = text.length(); i < len; ++i) {
+            char c = text.charAt(i);
+            if (SearchTerms.isIdeograph(c)) {
+                SearchTerms.flushWord(word, tokens);
+                ideographs.append(c);
+            }
+            else if (Character.isLetterOrDigit(c)) {
+                SearchTerms.flushIdeographs(ideographs, tokens, unigrams);
+                word.append(c);
+            }
+            else {
+                SearchTerms.flushWord(word, tokens);
+                SearchTerms.flushIdeographs(ideographs, tokens, unigrams);
+            }
+        }
+
+        SearchTerms.flushWord(word, tokens);
+        SearchTerms.flushIdeographs(ideographs, tokens, unigrams);
+
+        return tokens;
+    }
+
+    private static void flushWord(StringBuilder word, Set<String> tokens) {
+        if (word.length() > 0) {
+            tokens.add(word.toString());
+            word.setLength(0);
+        }
+    }
+
+    private static void flushIdeographs(StringBuilder ideographs, Set<String> tokens, boolean unigrams) {
+        if (ideographs.length() == 1) {
+            tokens.add(ideographs.toString());
+        }
+        else {
+            for (int i = 0, len = ideographs.length() - 1; i < len; ++i) {
+                tokens.add(ideographs.substring(i, i + 2));
+            }
+
+            if (unigrams) {
+                for (int i = 0, len = ideographs.length(); i < len; ++i) {
+                    tokens.add(ideographs.substring(i, i + 1));
+                }
+            }
+        }
+
+        ideographs.setLength(0);
+    }
+
+    private static boolean isIdeograph(char c) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(c);
+        return script == Character.UnicodeScript.HAN || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA || script == Character.UnicodeScript.HANGUL;
+    }
+
+    /**
+     * 使用 FNV-1a 算法计算 64 位哈希值，结果不会是 {@link #FILE} 。
+     *
+     * @param text
+     * @return
+     */
+    private static long hash(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0, len = text.length(); i < len; ++i) {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return (hash == FILE) ? 1L : hash;
+    }
+}
@@ -70,6 +70,7 @@ public class FileHierarchyTest {
         this.initStorage();
 
         this.manager = new FileHierarchyManager(this.fileStructStorage, null);
+        this.manager.start();
     }
 
     public void test() {
@@ -162,6 +163,8 @@ public class FileHierarchyTest {
     public void teardown() {
         Logger.i(getClass(), "teardown");
 
+        this.manager.stop();
+
         this.fileStructStorage.close();
 
         this.executor.shutdown();
@@ -0,0 +1,164 @@
+/**
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2021 Shixin Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.service.messaging;
+
+import cube.common.UniqueKey;
+import cube.common.entity.Contact;
+import cube.common.entity.Message;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 群组消息的扇出数据。
+ * 消息只序列化一次作为模板，每个成员的副本数据由模板浅复制后修改收件人和持有人生成。
+ */
+public class GroupFanOut {
+
+    private final Message message;
+
+    /**
+     * 消息的 JSON 模板。
+     */
+    private final JSONObject template;
+
+    /**
+     * 成员的消息副本。
+     */
+    private final List<Message> copies;
+
+    /**
+     * 成员副本对应的主题。
+     */
+    private final List<String> topics;
+
+    /**
+     * 成员副本对应的 JSON 数据。
+     */
+    private final List<JSONObject> dataList;
+
+    /**
+     * 构造函数。
+     *
+     * @param message 指定群组消息。
+     * @param members 指定群组成员，发件人将被跳过。
+     */
+    public GroupFanOut(Message message, List<Contact> members) {
+        this.message = message;
+        this.template = message.toJSON();
+        this.copies = new ArrayList<>(members.size());
+        this.topics = new ArrayList<>(members.size());
+        this.dataList = new ArrayList<>(members.size());
+
+        long senderId = message.getFrom().longValue();
+        for (Contact contact : members) {
+            if (contact.getId().longValue() == senderId) {
+                // 跳过发件人
+                continue;
+            }
+
+            Message copy = new Message(message);
+            copy.setTo(contact.getId());
+            copy.setOwner(contact.getId());
+
+            this.copies.add(copy);
+            this.topics.add(UniqueKey.make(contact.getId(), contact.getDomain()));
+            this.dataList.add(makeCopyData(this.template, contact.getId(), contact.getId()));
+        }
+    }
+
+    public JSONObject getTemplate() {
+        return this.template;
+    }
+
+    public List<Message> getCopies() {
+        return this.copies;
+    }
+
+    public List<String> getTopics() {
+        return this.topics;
+    }
+
+    public List<JSONObject> getDataList() {
+        return this.dataList;
+    }
+
+    /**
+     * 创建发件人的副本。
+     *
+     * @return 返回发件人持有的副本。
+     */
+    public Message makeSenderCopy() {
+        Message copy = new Message(this.message);
+        copy.setOwner(this.message.getFrom());
+        return copy;
+    }
+
+    /**
+     * 生成发件人副本的 JSON 数据。
+     *
+     * @return 返回发件人副本的 JSON 数据。
+     */
+    public JSONObject makeSenderData() {
+        return makeCopyData(this.template, this.message.getTo(), this.message.getFrom());
+    }
+
+    /**
+     * 将主题列表按指定大小分段。
+     *
+     * @param size 指定每段的最大数量。
+     * @return 返回分段后的主题列表。
+     */
+    public List<List<String>> partitionTopics(int size) {
+        List<List<String>> result = new ArrayList<>();
+        for (int i = 0; i < this.topics.size(); i += size) {
+            result.add(this.topics.subList(i, Math.min(i + size, this.topics.size())));
+        }
+        return result;
+    }
+
+    /**
+     * 由模板生成副本数据。
+     *
+     * @param template 指定模板。
+     * @param toId 指定收件人 ID 。
+     * @param ownerId 指定持有人 ID 。
+     * @return 返回副本数据。
+     */
+    public static JSONObject makeCopyData(JSONObject template, Long toId, Long ownerId) {
+        JSONObject json = new JSONObject(template, JSONObject.getNames(template));
+        try {
+            json.put("to", toId.longValue());
+            json.put("owner", ownerId.longValue());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+}
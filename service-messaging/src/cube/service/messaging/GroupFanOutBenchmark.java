@@ -0,0 +1,297 @@
+/**
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2021 Shixin Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.service.messaging;
+
+import cell.adapter.CelletAdapter;
+import cell.adapter.extra.timeseries.SeriesMemory;
+import cell.adapter.extra.timeseries.SeriesMemoryConfig;
+import cell.util.CachedQueueExecutor;
+import cell.util.Utils;
+import cube.common.ModuleEvent;
+import cube.common.UniqueKey;
+import cube.common.action.MessagingAction;
+import cube.common.entity.Contact;
+import cube.common.entity.Device;
+import cube.common.entity.Message;
+import cube.common.entity.MessageState;
+import cube.storage.StorageType;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 群组消息扇出的性能测试。
+ * 对比逐个成员处理和 {@link MessagingService#fanOut(GroupFanOut)} 在不同群组规模下的耗时。
+ * 消息缓存和适配器只序列化数据，不进行网络传输，存储使用 SQLite 。
+ * 放在服务所在包内以便调用包内可见的构造函数和扇出方法。
+ */
+public class GroupFanOutBenchmark {
+
+    private final String domain = "shixincube.com";
+
+    private ExecutorService executor;
+
+    private MessagingStorage storage;
+
+    private BenchmarkSeriesMemory messageCache;
+
+    private BenchmarkAdapter adapter;
+
+    private MessagingService service;
+
+    private MessageStateCache stateCache;
+
+    public GroupFanOutBenchmark() {
+        this.executor = CachedQueueExecutor.newCachedQueueThreadPool(4);
+
+        String dbfile = "storage/test-fanout.db";
+        File file = new File(dbfile);
+        if (file.exists()) {
+            file.delete();
+        }
+
+        JSONObject config = new JSONObject();
+        try {
+            config.put("file", dbfile);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        this.storage = new MessagingStorage(this.executor, StorageType.SQLite, config);
+
+        String filepath = "config/messaging-series-memory.properties";
+        if (!(new File(filepath)).exists()) {
+            filepath = "messaging-series-memory.properties";
+        }
+        this.messageCache = new BenchmarkSeriesMemory(new SeriesMemoryConfig(filepath));
+        this.adapter = new BenchmarkAdapter();
+
+        this.service = new MessagingService(this.messageCache, this.storage, this.adapter);
+        this.stateCache = new MessageStateCache(this.storage, 1000000, 60L * 60L * 1000L);
+    }
+
+    public void setup() {
+        this.messageCache.start();
+        this.storage.open();
+
+        List<String> domainList = new ArrayList<>();
+        domainList.add(this.domain);
+        this.storage.execSelfChecking(domainList);
+    }
+
+    public void teardown() {
+        this.messageCache.stop();
+        this.storage.close();
+        this.executor.shutdown();
+    }
+
+    /**
+     * 扇出优化前的处理流程：逐个成员复制、序列化、写入缓存、发布和写入存储，最后处理 FROM 副本。
+     */
+    public long runPerMember(Message message, List<Contact> members) {
+        long start = System.nanoTime();
+        Long from = message.getFrom();
+        for (Contact contact : members) {
+            if (contact.getId().longValue() == from.longValue()) {
+                continue;
+            }
+
+            Message copy = new Message(message);
+            copy.setTo(contact.getId());
+            copy.setOwner(contact.getId());
+
+            String toKey = UniqueKey.make(contact.getId(), contact.getDomain());
+            this.messageCache.add(toKey, copy.toJSON(), copy.getRemoteTimestamp());
+
+            ModuleEvent event = new ModuleEvent(MessagingService.NAME, MessagingAction.Push.name, copy.toJSON());
+            this.adapter.publish(toKey, event.toJSON());
+
+            this.storage.write(copy);
+
+            this.stateCache.put(copy.getOwner(), copy.getId(), MessageState.Sent);
+        }
+
+        Message fromCopy = new Message(message);
+        fromCopy.setOwner(from);
+
+        String fromKey = UniqueKey.make(from, message.getDomain());
+        this.messageCache.add(fromKey, fromCopy.toJSON(), fromCopy.getRemoteTimestamp());
+
+        ModuleEvent event = new ModuleEvent(MessagingService.NAME, MessagingAction.Push.name, fromCopy.toJSON());
+        this.adapter.publish(fromKey, event.toJSON());
+
+        this.storage.write(fromCopy);
+
+        this.stateCache.put(fromCopy.getOwner(), fromCopy.getId(), MessageState.Sent);
+
+        long submit = System.nanoTime() - start;
+
+        this.awaitStored();
+        System.out.println("  per-member submit: " + (submit / 1000) + " us");
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * 服务的批量扇出。
+     */
+    public long runFanOut(Message message, List<Contact> members) {
+        long start = System.nanoTime();
+        this.service.fanOut(new GroupFanOut(message, members));
+        long submit = System.nanoTime() - start;
+
+        this.awaitStored();
+        System.out.println("  fan-out    submit: " + (submit / 1000) + " us");
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * 写入一条标记消息并等待其完成。同一张表的批次依次写入，标记写入时之前的消息都已写入。
+     */
+    private void awaitStored() {
+        final CountDownLatch latch = new CountDownLatch(1);
+        this.storage.write(this.makeMessage(), new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+
+        try {
+            latch.await(60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Message makeMessage() {
+        JSONObject json = new JSONObject();
+        try {
+            JSONObject payload = new JSONObject();
+            payload.put("content", Utils.randomString(256));
+
+            json.put("domain", this.domain);
+            json.put("id", Utils.generateSerialNumber());
+            json.put("from", 500100L);
+            json.put("to", 0L);
+            json.put("source", 900100L);
+            json.put("lts", System.currentTimeMillis());
+            json.put("rts", System.currentTimeMillis());
+            json.put("state", MessageState.Sent.getCode());
+            json.put("payload", payload);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        Message message = new Message(json);
+        message.setSourceDevice(new Device("Benchmark", "Java"));
+        return message;
+    }
+
+    private List<Contact> makeMembers(int num) {
+        List<Contact> list = new ArrayList<>(num);
+        for (int i = 0; i < num; ++i) {
+            list.add(new Contact(600000L + i, this.domain, "Member-" + i));
+        }
+        return list;
+    }
+
+    public static void main(String[] args) {
+        GroupFanOutBenchmark benchmark = new GroupFanOutBenchmark();
+
+        benchmark.setup();
+
+        // 预热
+        benchmark.runPerMember(benchmark.makeMessage(), benchmark.makeMembers(100));
+        benchmark.runFanOut(benchmark.makeMessage(), benchmark.makeMembers(100));
+
+        int[] sizes = new int[] { 10, 100, 1000 };
+        for (int size : sizes) {
+            List<Contact> members = benchmark.makeMembers(size);
+            System.out.println("Group members: " + size);
+
+            long perMember = benchmark.runPerMember(benchmark.makeMessage(), members);
+            long fanOut = benchmark.runFanOut(benchmark.makeMessage(), members);
+
+            System.out.println("  per-member total : " + (perMember / 1000) + " us");
+            System.out.println("  fan-out    total : " + (fanOut / 1000) + " us");
+        }
+
+        System.out.println("Cache items: " + benchmark.messageCache.count.get()
+                + " - published: " + benchmark.adapter.count.get());
+
+        benchmark.teardown();
+    }
+
+    /**
+     * 只序列化数据的消息缓存。
+     */
+    private class BenchmarkSeriesMemory extends SeriesMemory {
+
+        protected final AtomicLong count = new AtomicLong(0);
+
+        protected BenchmarkSeriesMemory(SeriesMemoryConfig config) {
+            super(config);
+        }
+
+        @Override
+        public void add(String key, JSONObject data, long timestamp) {
+            data.toString();
+            this.count.incrementAndGet();
+        }
+    }
+
+    /**
+     * 只序列化数据的适配器。
+     */
+    private class BenchmarkAdapter extends CelletAdapter {
+
+        protected final AtomicLong count = new AtomicLong(0);
+
+        protected BenchmarkAdapter() {
+            super("Benchmark", "127.0.0.1", 0);
+        }
+
+        @Override
+        public boolean publish(String topic, JSONObject data) {
+            data.toString();
+            this.count.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public void publish(List<String> topics, JSONObject data) {
+            data.toString();
+            this.count.addAndGet(topics.size());
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2021 Shixin Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.service.messaging;
+
+import cell.adapter.extra.timeseries.SeriesItem;
+import cube.common.entity.Message;
+import cube.common.entity.MessageState;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 按照 (rts, id) 顺序分页拉取消息的游标。
+ * 缓存里的时间窗口只查询和排序一次，之后每页从上一页结束的位置继续，只解析返回的消息。
+ * 缓存里没有消息时，每页使用游标从存储读取。
+ */
+public class MessagePuller {
+
+    private final MessagingStorage storage;
+
+    private final MessageStateCache stateCache;
+
+    private final String domain;
+
+    private final Long contactId;
+
+    private final long endingTime;
+
+    private long cursorTime;
+
+    private long cursorId;
+
+    /**
+     * 缓存里游标之后的数据，按照 (rts, id) 升序排列。为 {@code null} 时从存储读取。
+     */
+    private List<SeriesItem> items;
+
+    private int index = 0;
+
+    /**
+     * 是否已经从缓存拉取过消息。
+     */
+    private boolean pulled = false;
+
+    protected MessagePuller(MessagingStorage storage, MessageStateCache stateCache, String domain, Long contactId,
+                            long cursorTime, long cursorId, long endingTime, List<SeriesItem> window) {
+        this.storage = storage;
+        this.stateCache = stateCache;
+        this.domain = domain;
+        this.contactId = contactId;
+        this.cursorTime = cursorTime;
+        this.cursorId = cursorId;
+        this.endingTime = endingTime;
+
+        List<SeriesItem> list = new ArrayList<>();
+        for (SeriesItem item : window) {
+            if (item.timestamp < cursorTime || item.timestamp > endingTime) {
+                continue;
+            }
+
+            if (item.timestamp == cursorTime && itemId(item) <= cursorId) {
+                continue;
+            }
+
+            list.add(item);
+        }
+
+        if (!list.isEmpty()) {
+            Collections.sort(list, ITEM_ORDER);
+            this.items = list;
+        }
+    }
+
+    /**
+     * 拉取下一页消息。
+     *
+     * @param limit 最大消息数量。
+     * @return 返回消息列表，数量小于 {@code limit} 时表示没有更多消息。
+     */
+    public List<Message> next(int limit) {
+        List<Message> result = new ArrayList<>(limit);
+
+        if (null != this.items) {
+            while (this.index < this.items.size() && result.size() < limit) {
+                Message message = new Message(this.items.get(this.index++).data);
+
+                MessageState state = this.stateCache.get(this.domain, this.contactId, message.getId());
+                if (null == state) {
+                    state = message.getState();
+                }
+
+                if (state == MessageState.Sent || state == MessageState.Read) {
+                    // 重置状态
+                    message.setState(state);
+                    result.add(message);
+                }
+            }
+
+            if (!result.isEmpty()) {
+                this.pulled = true;
+                this.advance(result);
+                return result;
+            }
+
+            if (this.pulled) {
+                // 缓存里的消息已拉取完
+                return result;
+            }
+
+            // 缓存里没有可拉取的消息
+            this.items = null;
+        }
+
+        // 从存储里读取
+        List<Message> messageList = this.storage.readOrderByTime(this.domain, this.contactId,
+                this.cursorTime, this.cursorId, this.endingTime, limit);
+        if (null != messageList) {
+            this.advance(messageList);
+            return messageList;
+        }
+
+        return result;
+    }
+
+    private void advance(List<Message> page) {
+        if (page.isEmpty()) {
+            return;
+        }
+
+        Message last = page.get(page.size() - 1);
+        this.cursorTime = last.getRemoteTimestamp();
+        this.cursorId = last.getId();
+    }
+
+    private static long itemId(SeriesItem item) {
+        return item.data.optLong("id", 0);
+    }
+
+    /**
+     * 按照 (rts, id) 升序排序。
+     */
+    private final static Comparator<SeriesItem> ITEM_ORDER = new Comparator<SeriesItem>() {
+        @Override
+        public int compare(SeriesItem i1, SeriesItem i2) {
+            int result = Long.compare(i1.timestamp, i2.timestamp);
+            if (0 == result) {
+                result = Long.compare(itemId(i1), itemId(i2));
+            }
+            return result;
+        }
+    };
+}
@@ -0,0 +1,353 @@
+/**
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2021 Shixin Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.service.messaging;
+
+import cube.common.entity.MessageState;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 有界的消息状态缓存。
+ * 以联系人 ID 和消息 ID 两个 {@code long} 作为键，避免装箱。
+ * 缓存分段加锁，每段按照写入顺序链接所有条目，由于所有条目的有效期相同，过期和容量淘汰都只需要从链表头部移除。
+ * 未命中时从 {@link MessagingStorage} 读取状态。
+ */
+public class MessageStateCache {
+
+    private final static int SEGMENTS = 16;
+
+    private final MessagingStorage storage;
+
+    private final Segment[] segments;
+
+    /**
+     * 有效期，单位：毫秒。
+     */
+    private final long expiry;
+
+    private final AtomicLong hits = new AtomicLong(0);
+
+    private final AtomicLong misses = new AtomicLong(0);
+
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    /**
+     * 构造函数。
+     *
+     * @param storage 指定消息存储。
+     * @param capacity 指定最大条目数量。
+     * @param expiry 指定条目有效期，单位：毫秒。
+     */
+    public MessageStateCache(MessagingStorage storage, int capacity, long expiry) {
+        this.storage = storage;
+        this.expiry = expiry;
+        this.segments = new Segment[SEGMENTS];
+        int segmentCapacity = Math.max(1, capacity / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; ++i) {
+            this.segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    /**
+     * 获取消息状态，缓存未命中时从存储读取。
+     *
+     * @param domain 指定域。
+     * @param contactId 指定副本持有人 ID 。
+     * @param messageId 指定消息 ID 。
+     * @return 返回消息状态，如果存储里也没有该消息返回 {@code null} 。
+     */
+    public MessageState get(String domain, long contactId, long messageId) {
+        int hash = hash(contactId, messageId);
+        MessageState state = this.segmentFor(hash).get(contactId, messageId, hash);
+        if (null != state) {
+            this.hits.incrementAndGet();
+            return state;
+        }
+
+        this.misses.incrementAndGet();
+
+        // 存储会先查找后写队列里等待写入的消息，不需要等待写线程
+        state = this.storage.readMessageState(domain, contactId, messageId);
+        if (null != state) {
+            this.segmentFor(hash).putIfAbsent(contactId, messageId, hash, state);
+        }
+        return state;
+    }
+
+    /**
+     * 写入消息状态。
+     *
+     * @param contactId 指定副本持有人 ID 。
+     * @param messageId 指定消息 ID 。
+     * @param state 指定状态。
+     */
+    public void put(long contactId, long messageId, MessageState state) {
+        int hash = hash(contactId, messageId);
+        this.segmentFor(hash).put(contactId, messageId, hash, state);
+    }
+
+    /**
+     * 移除过期的条目。
+     */
+    public void expire() {
+        long threshold = System.currentTimeMillis() - this.expiry;
+        for (Segment segment : this.segments) {
+            segment.expire(threshold);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : this.segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    /**
+     * 获取统计数据。
+     *
+     * @return 返回 JSON 格式的统计数据。
+     */
+    public JSONObject getMetrics() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("size", this.size());
+            json.put("hits", this.hits.get());
+            json.put("misses", this.misses.get());
+            json.put("evictions", this.evictions.get());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+
+    private Segment segmentFor(int hash) {
+        return this.segments[(hash >>> 28) & (SEGMENTS - 1)];
+    }
+
+    private static int hash(long contactId, long messageId) {
+        long h = contactId * 0x9E3779B97F4A7C15L + messageId;
+        h ^= (h >>> 33);
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= (h >>> 33);
+        return (int) h;
+    }
+
+    /**
+     * 缓存条目。
+     */
+    private final static class Entry {
+
+        final long contactId;
+
+        final long messageId;
+
+        final int hash;
+
+        MessageState state;
+
+        final long timestamp;
+
+        /**
+         * 哈希桶内的下一个条目。
+         */
+        Entry next;
+
+        /**
+         * 写入顺序的下一个条目。
+         */
+        Entry after;
+
+        Entry(long contactId, long messageId, int hash, MessageState state, long timestamp) {
+            this.contactId = contactId;
+            this.messageId = messageId;
+            this.hash = hash;
+            this.state = state;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * 缓存分段。
+     */
+    private final class Segment {
+
+        private final int capacity;
+
+        private Entry[] table;
+
+        private int size = 0;
+
+        /**
+         * 最早写入的条目。
+         */
+        private Entry head;
+
+        /**
+         * 最后写入的条目。
+         */
+        private Entry tail;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.table = new Entry[64];
+        }
+
+        synchronized int size() {
+            return this.size;
+        }
+
+        synchronized MessageState get(long contactId, long messageId, int hash) {
+            Entry entry = this.find(contactId, messageId, hash);
+            return (null != entry) ? entry.state : null;
+        }
+
+        synchronized void put(long contactId, long messageId, int hash, MessageState state) {
+            Entry entry = this.find(contactId, messageId, hash);
+            if (null != entry) {
+                entry.state = state;
+                return;
+            }
+
+            this.insert(contactId, messageId, hash, state);
+        }
+
+        synchronized void putIfAbsent(long contactId, long messageId, int hash, MessageState state) {
+            if (null == this.find(contactId, messageId, hash)) {
+                this.insert(contactId, messageId, hash, state);
+            }
+        }
+
+        synchronized void expire(long threshold) {
+            while (null != this.head && this.head.timestamp < threshold) {
+                this.removeHead();
+            }
+        }
+
+        private Entry find(long contactId, long messageId, int hash) {
+            Entry entry = this.table[hash & (this.table.length - 1)];
+            while (null != entry) {
+                if (entry.hash == hash && entry.contactId == contactId && entry.messageId == messageId) {
+                    return entry;
+                }
+                entry = entry.next;
+            }
+            return null;
+        }
+
+        private void insert(long contactId, long messageId, int hash, MessageState state) {
+            if (this.size >= this.capacity) {
+                // 淘汰最早写入的条目
+                this.removeHead();
+                evictions.incrementAndGet();
+            }
+
+            if (this.size >= this.table.length * 3 / 4) {
+                this.resize();
+            }
+
+            Entry entry = new Entry(contactId, messageId, hash, state, System.currentTimeMillis());
+            int index = hash & (this.table.length - 1);
+            entry.next = this.table[index];
+            this.table[index] = entry;
+
+            if (null == this.tail) {
+                this.head = entry;
+            }
+            else {
+                this.tail.after = entry;
+            }
+            this.tail = entry;
+
+            ++this.size;
+        }
+
+        private void removeHead() {
+            Entry entry = this.head;
+            if (null == entry) {
+                return;
+            }
+
+            this.head = entry.after;
+            if (null == this.head) {
+                this.tail = null;
+            }
+            entry.after = null;
+
+            // 从哈希桶中移除
+            int index = entry.hash & (this.table.length - 1);
+            Entry prev = null;
+            Entry cur = this.table[index];
+            while (null != cur) {
+                if (cur == entry) {
+                    if (null == prev) {
+                        this.table[index] = cur.next;
+                    }
+                    else {
+                        prev.next = cur.next;
+                    }
+                    break;
+                }
+                prev = cur;
+                cur = cur.next;
+            }
+
+            --this.size;
+        }
+
+        private void resize() {
+            Entry[] old = this.table;
+            Entry[] table = new Entry[old.length << 1];
+            for (Entry bucket : old) {
+                Entry entry = bucket;
+                while (null != entry) {
+                    Entry next = entry.next;
+                    int index = entry.hash & (table.length - 1);
+                    entry.next = table[index];
+                    table[index] = entry;
+                    entry = next;
+                }
+            }
+            this.table = table;
+        }
+    }
+}
@@ -0,0 +1,499 @@
+/**
+ * This source file is part of Cube.
+ *
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2021 Shixin Cube Team.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cube.service.messaging;
+
+import cell.util.log.Logger;
+import cube.common.entity.Message;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 消息的后写队列。
+ * 每张表一个有界队列，由专用的写线程按照批次大小或者等待时长合并为多行插入。
+ * 队列满时写入方阻塞等待，超时后由写入方直接写入存储。
+ * 数据在写入存储之前可以通过 {@link #getPending(String, Long)} 和 {@link #getPending(String, Long, long, long)} 读取，
+ * 查询时合并等待中的数据即可，不需要等待写线程。对表进行更新之前需要调用 {@link #flush(String)} 写入该表等待中的数据。
+ */
+public class MessageWriteQueue {
+
+    /**
+     * 批量写入器。
+     */
+    public interface Writer {
+
+        /**
+         * 将指定的消息批量写入指定的表。
+         *
+         * @param table 表名。
+         * @param batch 待写入的数据。
+         */
+        void write(String table, List<Entry> batch);
+    }
+
+    private final Writer writer;
+
+    /**
+     * 每批次最大行数。
+     */
+    private int batchSize = 200;
+
+    /**
+     * 批次最长等待时间，单位：毫秒。
+     */
+    private long linger = 50;
+
+    /**
+     * 每张表的队列容量。
+     */
+    private int capacity = 10000;
+
+    /**
+     * 队列满时最长阻塞时间，单位：毫秒。
+     */
+    private long blockTimeout = 500;
+
+    private final ConcurrentHashMap<String, TableQueue> queueMap;
+
+    private final Object signal = new Object();
+
+    /**
+     * 入队时持有读锁，停止时持有写锁，保证停止后没有数据进入队列。
+     */
+    private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+
+    private Thread thread;
+
+    private volatile boolean running = false;
+
+    private final AtomicLong flushCount = new AtomicLong(0);
+
+    private final AtomicLong flushRows = new AtomicLong(0);
+
+    private final AtomicLong flushNanos = new AtomicLong(0);
+
+    private volatile long lastFlushNanos = 0;
+
+    private volatile long maxFlushNanos = 0;
+
+    private final AtomicLong directWrites = new AtomicLong(0);
+
+    public MessageWriteQueue(Writer writer) {
+        this.writer = writer;
+        this.queueMap = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 配置队列参数。
+     *
+     * @param config 存储配置。
+     */
+    public void configure(JSONObject config) {
+        this.batchSize = Math.max(1, config.optInt("writeBatchSize", this.batchSize));
+        this.linger = Math.max(1, config.optLong("writeLinger", this.linger));
+        this.capacity = Math.max(1, config.optInt("writeQueueCapacity", this.capacity));
+        this.blockTimeout = config.optLong("writeBlockTimeout", this.blockTimeout);
+    }
+
+    public void start() {
+        if (this.running) {
+            return;
+        }
+
+        this.running = true;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "MessageWriteQueue");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * 停止写线程，并写入队列里所有数据。
+     */
+    public void stop() {
+        this.stateLock.writeLock().lock();
+        try {
+            if (!this.running) {
+                return;
+            }
+
+            this.running = false;
+        } finally {
+            this.stateLock.writeLock().unlock();
+        }
+
+        synchronized (this.signal) {
+            this.signal.notifyAll();
+        }
+
+        try {
+            this.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.thread = null;
+
+        // 写入剩余数据
+        this.flush();
+    }
+
+    /**
+     * 将数据加入队列。
+     *
+     * @param table 表名。
+     * @param entry 待写入数据。
+     */
+    public void offer(String table, Entry entry) {
+        ArrayBlockingQueue<Entry> queue = null;
+        boolean accepted = false;
+
+        this.stateLock.readLock().lock();
+        try {
+            if (this.running) {
+                TableQueue tableQueue = this.getTableQueue(table);
+                queue = tableQueue.queue;
+
+                // 先登记再入队，写线程写入后才会移除
+                tableQueue.addPending(entry);
+
+                accepted = queue.offer(entry);
+                if (!accepted) {
+                    // 队列已满，通知写线程并等待
+                    synchronized (this.signal) {
+                        this.signal.notifyAll();
+                    }
+
+                    try {
+                        accepted = queue.offer(entry, this.blockTimeout, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            if (null != queue && !accepted) {
+                this.getTableQueue(table).removePending(entry);
+            }
+        } finally {
+            this.stateLock.readLock().unlock();
+        }
+
+        if (null == queue) {
+            // 已停止
+            this.writeDirectly(table, entry);
+            return;
+        }
+
+        if (!accepted) {
+            Logger.w(this.getClass(), "Write queue is full, write directly: " + table);
+            this.writeDirectly(table, entry);
+            return;
+        }
+
+        if (queue.size() >= this.batchSize) {
+            synchronized (this.signal) {
+                this.signal.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 写入指定表里所有等待写入的数据，并等待写线程正在写入的批次完成。
+     *
+     * @param table 表名。
+     */
+    public void flush(String table) {
+        TableQueue tableQueue = this.queueMap.get(table);
+        if (null == tableQueue) {
+            return;
+        }
+
+        this.flush(table, tableQueue);
+    }
+
+    /**
+     * 获取指定表里尚未写入存储的指定 ID 的消息。
+     *
+     * @param table 表名。
+     * @param messageId 消息 ID 。
+     * @return 返回消息的副本。
+     */
+    public List<Message> getPending(String table, Long messageId) {
+        TableQueue tableQueue = this.queueMap.get(table);
+        if (null == tableQueue) {
+            return new ArrayList<>();
+        }
+
+        return tableQueue.getPending(messageId);
+    }
+
+    /**
+     * 获取指定表里尚未写入存储的、属于指定联系人且在指定时间范围内的消息。
+     *
+     * @param table 表名。
+     * @param owner 消息的持有人 ID 。
+     * @param beginning 起始时间戳，包含该时间戳。
+     * @param ending 截止时间戳，包含该时间戳。
+     * @return 返回消息的副本。
+     */
+    public List<Message> getPending(String table, Long owner, long beginning, long ending) {
+        TableQueue tableQueue = this.queueMap.get(table);
+        if (null == tableQueue) {
+            return new ArrayList<>();
+        }
+
+        return tableQueue.getPending(owner, beginning, ending);
+    }
+
+    /**
+     * 获取所有队列里等待写入的数据数量。
+     *
+     * @return 返回队列深度。
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (TableQueue tableQueue : this.queueMap.values()) {
+            depth += tableQueue.queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * 获取统计数据。
+     *
+     * @return 返回 JSON 格式的统计数据。
+     */
+    public JSONObject getMetrics() {
+        JSONObject json = new JSONObject();
+        try {
+            long count = this.flushCount.get();
+            json.put("depth", this.getQueueDepth());
+            json.put("flushCount", count);
+            json.put("flushRows", this.flushRows.get());
+            json.put("directWrites", this.directWrites.get());
+            json.put("lastFlushLatency", TimeUnit.NANOSECONDS.toMillis(this.lastFlushNanos));
+            json.put("maxFlushLatency", TimeUnit.NANOSECONDS.toMillis(this.maxFlushNanos));
+            json.put("avgFlushLatency", (count > 0) ?
+                    TimeUnit.NANOSECONDS.toMillis(this.flushNanos.get() / count) : 0);
+
+            JSONObject tables = new JSONObject();
+            for (Map.Entry<String, TableQueue> e : this.queueMap.entrySet()) {
+                tables.put(e.getKey(), e.getValue().queue.size());
+            }
+            json.put("tables", tables);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+
+    private void loop() {
+        while (this.running) {
+            synchronized (this.signal) {
+                try {
+                    this.signal.wait(this.linger);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            this.flush();
+        }
+    }
+
+    private void flush() {
+        for (Map.Entry<String, TableQueue> e : this.queueMap.entrySet()) {
+            this.flush(e.getKey(), e.getValue());
+        }
+    }
+
+    private void flush(String table, TableQueue tableQueue) {
+        // 同一张表的批次依次写入，持有锁时没有正在写入的批次
+        synchronized (tableQueue) {
+            ArrayBlockingQueue<Entry> queue = tableQueue.queue;
+            List<Entry> batch = new ArrayList<>(Math.min(queue.size(), this.batchSize));
+            while (queue.drainTo(batch, this.batchSize) > 0) {
+                this.write(table, batch);
+                tableQueue.removePending(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private TableQueue getTableQueue(String table) {
+        TableQueue tableQueue = this.queueMap.get(table);
+        if (null == tableQueue) {
+            tableQueue = new TableQueue(this.capacity);
+            TableQueue current = this.queueMap.putIfAbsent(table, tableQueue);
+            if (null != current) {
+                tableQueue = current;
+            }
+        }
+        return tableQueue;
+    }
+
+    private void write(String table, List<Entry> batch) {
+        long start = System.nanoTime();
+        try {
+            this.writer.write(table, batch);
+        } catch (Throwable e) {
+            Logger.e(this.getClass(), "Write batch error: " + table, e);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        this.flushCount.incrementAndGet();
+        this.flushRows.addAndGet(batch.size());
+        this.flushNanos.addAndGet(elapsed);
+        this.lastFlushNanos = elapsed;
+        if (elapsed > this.maxFlushNanos) {
+            this.maxFlushNanos = elapsed;
+        }
+    }
+
+    private void writeDirectly(String table, Entry entry) {
+        this.directWrites.incrementAndGet();
+
+        List<Entry> batch = new ArrayList<>(1);
+        batch.add(entry);
+        this.writer.write(table, batch);
+    }
+
+    /**
+     * 表的等待队列。
+     */
+    private static class TableQueue {
+
+        protected final ArrayBlockingQueue<Entry> queue;
+
+        /**
+         * 尚未写入存储的数据，按消息 ID 索引，包括写线程正在写入的批次。
+         */
+        private final HashMap<Long, List<Entry>> pending;
+
+        protected TableQueue(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.pending = new HashMap<>();
+        }
+
+        protected void addPending(Entry entry) {
+            synchronized (this.pending) {
+                List<Entry> list = this.pending.get(entry.message.getId());
+                if (null == list) {
+                    list = new ArrayList<>(1);
+                    this.pending.put(entry.message.getId(), list);
+                }
+                list.add(entry);
+            }
+        }
+
+        protected void removePending(Entry entry) {
+            synchronized (this.pending) {
+                List<Entry> list = this.pending.get(entry.message.getId());
+                if (null == list) {
+                    return;
+                }
+
+                Iterator<Entry> iter = list.iterator();
+                while (iter.hasNext()) {
+                    if (iter.next() == entry) {
+                        iter.remove();
+                        break;
+                    }
+                }
+
+                if (list.isEmpty()) {
+                    this.pending.remove(entry.message.getId());
+                }
+            }
+        }
+
+        protected void removePending(List<Entry> batch) {
+            for (Entry entry : batch) {
+                this.removePending(entry);
+            }
+        }
+
+        protected List<Message> getPending(Long messageId) {
+            List<Message> result = new ArrayList<>();
+            synchronized (this.pending) {
+                List<Entry> list = this.pending.get(messageId);
+                if (null != list) {
+                    for (Entry entry : list) {
+                        result.add(new Message(entry.message));
+                    }
+                }
+            }
+            return result;
+        }
+
+        protected List<Message> getPending(Long owner, long beginning, long ending) {
+            List<Message> result = new ArrayList<>();
+            synchronized (this.pending) {
+                for (List<Entry> list : this.pending.values()) {
+                    for (Entry entry : list) {
+                        Message message = entry.message;
+                        if (message.getOwner().longValue() == owner.longValue()
+                                && message.getRemoteTimestamp() >= beginning
+                                && message.getRemoteTimestamp() <= ending) {
+                            result.add(new Message(message));
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 队列条目。
+     */
+    public static class Entry {
+
+        public final Message message;
+
+        public final Runnable completed;
+
+        public Entry(Message message, Runnable completed) {
+            this.message = message;
+            this.completed = completed;
+        }
+    }
+}
@@ -47,6 +47,7 @@ import cube.common.state.MessagingStateCode;
 import cube.core.AbstractModule;
 import cube.core.Kernel;
 import cube.plugin.PluginSystem;
+import cube.report.MetricsSource;
 import cube.service.Director;
 import cube.service.auth.AuthService;
 import cube.service.contact.ContactManager;
@@ -60,17 +61,14 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 
 /**
  * 消息管理器。
  */
-public final class MessagingService extends AbstractModule implements CelletAdapterListener {
+public final class MessagingService extends AbstractModule implements CelletAdapterListener, MetricsSource {
 
     public final static String NAME = "Messaging";
 
@@ -89,9 +87,19 @@ public final class MessagingService extends AbstractModule implements CelletAdap
     private SeriesMemory messageCache;
 
     /**
-     * 消息状态映射。
+     * 消息状态缓存。
      */
-    private ConcurrentHashMap<MessageKey, MessageStateBundle> messageStateMap;
+    private MessageStateCache messageStateCache;
+
+    /**
+     * 消息状态缓存的最大条目数量。
+     */
+    private int stateCacheCapacity = 1000000;
+
+    /**
+     * 消息状态缓存的有效期。
+     */
+    private long stateCacheExpiry = 30L * 24L * 60L * 60L * 1000L;
 
     /**
      * 消息存储。
@@ -103,6 +111,11 @@ public final class MessagingService extends AbstractModule implements CelletAdap
      */
     private CelletAdapter contactsAdapter;
 
+    /**
+     * 群组消息扇出时每次发布的最大主题数量。
+     */
+    private int fanOutBatchSize = 200;
+
     /**
      * 召回消息的时间限制。
      */
@@ -121,7 +134,20 @@ public final class MessagingService extends AbstractModule implements CelletAdap
     public MessagingService(MessagingServiceCellet cellet) {
         this.cellet = cellet;
         this.executor = CachedQueueExecutor.newCachedQueueThreadPool(32);
-        this.messageStateMap = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 使用指定的缓存、存储和适配器构造服务。
+     *
+     * @param messageCache
+     * @param storage
+     * @param contactsAdapter
+     */
+    MessagingService(SeriesMemory messageCache, MessagingStorage storage, CelletAdapter contactsAdapter) {
+        this.messageCache = messageCache;
+        this.storage = storage;
+        this.contactsAdapter = contactsAdapter;
+        this.messageStateCache = new MessageStateCache(this.storage, this.stateCacheCapacity, this.stateCacheExpiry);
     }
 
     private void initMessageCache() {
@@ -157,6 +183,7 @@ public final class MessagingService extends AbstractModule implements CelletAdap
         JSONObject config = ConfigUtils.readStorageConfig();
         if (config.has(MessagingService.NAME)) {
             config = config.getJSONObject(MessagingService.NAME);
+            this.stateCacheCapacity = config.optInt("stateCacheCapacity", this.stateCacheCapacity);
             if (config.getString("type").equalsIgnoreCase("SQLite")) {
                 this.storage = new MessagingStorage(this.executor, StorageType.SQLite, config);
             }
@@ -169,6 +196,8 @@ public final class MessagingService extends AbstractModule implements CelletAdap
             this.storage = new MessagingStorage(this.executor, StorageType.SQLite, config);
         }
 
+        this.messageStateCache = new MessageStateCache(this.storage, this.stateCacheCapacity, this.stateCacheExpiry);
+
         (new Thread() {
             @Override
             public void run() {
@@ -211,6 +240,29 @@ public final class MessagingService extends AbstractModule implements CelletAdap
         this.storage.close();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getMetricsName() {
+        return MessagingService.NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public JSONObject getMetrics() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("writeQueue", this.storage.getWriteMetrics());
+            json.put("stateCache", this.messageStateCache.getMetrics());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+
     @Override
     public PluginSystem<?> getPluginSystem() {
         return this.pluginSystem;
@@ -218,16 +270,9 @@ public final class MessagingService extends AbstractModule implements CelletAdap
 
     @Override
     public void onTick(cube.core.Module module, Kernel kernel) {
-        long DAY30 = 30 * 24 * 60 * 60 * 1000L;
-        long now = System.currentTimeMillis();
-        long delta = now - DAY30;
-
-        Iterator<MessageStateBundle> msbiter = this.messageStateMap.values().iterator();
-        while (msbiter.hasNext()) {
-            MessageStateBundle messageStateBundle = msbiter.next();
-            if (messageStateBundle.timestamp < delta) {
-                msbiter.remove();
-            }
+        // 移除过期的消息状态
+        if (null != this.messageStateCache) {
+            this.messageStateCache.expire();
         }
     }
 
@@ -287,10 +332,8 @@ public final class MessagingService extends AbstractModule implements CelletAdap
             this.storage.write(fromCopy);
 
             // 在内存里记录状态
-            this.messageStateMap.put(new MessageKey(toCopy.getOwner(), toCopy.getId()),
-                    new MessageStateBundle(toCopy.getId(), toCopy.getOwner(), MessageState.Sent));
-            this.messageStateMap.put(new MessageKey(fromCopy.getOwner(), fromCopy.getId()),
-                    new MessageStateBundle(fromCopy.getId(), fromCopy.getOwner(), MessageState.Sent));
+            this.messageStateCache.put(toCopy.getOwner(), toCopy.getId(), MessageState.Sent);
+            this.messageStateCache.put(fromCopy.getOwner(), fromCopy.getId(), MessageState.Sent);
         }
         else if (message.getSource().longValue() > 0) {
             // 进行消息的群组管理
@@ -299,56 +342,8 @@ public final class MessagingService extends AbstractModule implements CelletAdap
                 if (group.getState() == GroupState.Normal) {
                     // 群组状态正常
 
-                    Long senderId = message.getFrom();
-                    List<Contact> list = group.getMembers();
-                    for (Contact contact : list) {
-                        if (contact.getId().longValue() == senderId.longValue()) {
-                            // 跳过发件人
-                            continue;
-                        }
-
-                        // 创建 TO 副本
-                        Message copy = new Message(message);
-                        // 更新 To 数据
-                        copy.setTo(contact.getId());
-                        // 设置 Owner
-                        copy.setOwner(contact.getId());
-
-                        // 将消息写入缓存
-                        // 写入 TO
-                        String toKey = UniqueKey.make(contact.getId(), contact.getDomain());
-                        this.messageCache.add(toKey, copy.toJSON(), copy.getRemoteTimestamp());
-
-                        // 发布给 TO
-                        ModuleEvent event = new ModuleEvent(MessagingService.NAME, MessagingAction.Push.name, copy.toJSON());
-                        this.contactsAdapter.publish(toKey, event.toJSON());
-
-                        // 写入存储
-                        this.storage.write(copy);
-
-                        // 在内存里记录状态
-                        this.messageStateMap.put(new MessageKey(contact.getId(), copy.getId()),
-                                new MessageStateBundle(copy.getId(), contact.getId(), MessageState.Sent));
-                    }
-
-                    // 创建 FROM 副本
-                    Message copy = new Message(message);
-                    copy.setOwner(message.getFrom());
-
-                    // 写入 FROM
-                    String fromKey = UniqueKey.make(copy.getFrom(), message.getDomain());
-                    this.messageCache.add(fromKey, copy.toJSON(), copy.getRemoteTimestamp());
-
-                    // 发布给 FROM
-                    ModuleEvent event = new ModuleEvent(MessagingService.NAME, MessagingAction.Push.name, copy.toJSON());
-                    this.contactsAdapter.publish(fromKey, event.toJSON());
-
-                    // 写入存储
-                    this.storage.write(copy);
-
-                    // 在内存里记录状态
-                    this.messageStateMap.put(new MessageKey(copy.getOwner(), copy.getId()),
-                            new MessageStateBundle(copy.getId(), copy.getOwner(), MessageState.Sent));
+                    GroupFanOut fanOut = new GroupFanOut(message, group.getMembers());
+                    this.fanOut(fanOut);
 
                     // 更新群组活跃时间
                     ContactManager.getInstance().updateGroupActiveTime(group, message.getRemoteTimestamp());
@@ -376,55 +371,72 @@ public final class MessagingService extends AbstractModule implements CelletAdap
     }
 
     /**
-     * 拉取指定时间戳到当前时间段的所有消息内容。
+     * 扇出群组消息。
+     * 成员副本数据由模板生成，按主题分段合并发布，并使用一次批量写入存储。
      *
-     * @param contactId
-     * @param beginningTime
-     * @param endingTime
-     * @return
+     * @param fanOut
      */
-    public List<Message> pullMessage(String domain, Long contactId, long beginningTime, long endingTime) {
-        LinkedList<Message> result = new LinkedList<>();
+    void fanOut(GroupFanOut fanOut) {
+        List<Message> copies = fanOut.getCopies();
+        List<String> topics = fanOut.getTopics();
+        List<JSONObject> dataList = fanOut.getDataList();
 
-        String key = UniqueKey.make(contactId, domain);
+        // 将消息写入 TO 缓存
+        for (int i = 0, size = copies.size(); i < size; ++i) {
+            Message copy = copies.get(i);
+            this.messageCache.add(topics.get(i), dataList.get(i), copy.getRemoteTimestamp());
 
-        // 从缓存里读取数据
-        List<SeriesItem> list = this.messageCache.query(key, beginningTime, endingTime);
-        for (SeriesItem item : list) {
-            Message message = new Message(item.data);
-            MessageState state = message.getState();
+            // 在内存里记录状态
+            this.messageStateCache.put(copy.getOwner(), copy.getId(), MessageState.Sent);
+        }
 
-            MessageKey messageKey = new MessageKey(contactId, message.getId());
+        // 分段发布给 TO ，接收方按主题还原副本
+        JSONObject eventJson = new ModuleEvent(MessagingService.NAME, MessagingAction.Push.name,
+                fanOut.getTemplate()).toJSON();
+        for (List<String> part : fanOut.partitionTopics(this.fanOutBatchSize)) {
+            this.contactsAdapter.publish(part, eventJson);
+        }
 
-            MessageStateBundle msb = this.messageStateMap.get(messageKey);
-            if (null != msb) {
-                state = msb.state;
-            }
-            else {
-                MessageState ms = this.storage.readMessageState(domain, contactId, message.getId());
-                if (null != ms) {
-                    this.messageStateMap.put(messageKey, new MessageStateBundle(message.getId(), contactId, ms));
-                    state = ms;
-                }
-            }
+        // 创建 FROM 副本
+        Message fromCopy = fanOut.makeSenderCopy();
+        JSONObject fromData = fanOut.makeSenderData();
 
-            if (state == MessageState.Sent || state == MessageState.Read) {
-                // 重置状态
-                message.setState(state);
-                result.add(message);
-            }
-        }
+        // 写入 FROM
+        String fromKey = UniqueKey.make(fromCopy.getFrom(), fromCopy.getDomain());
+        this.messageCache.add(fromKey, fromData, fromCopy.getRemoteTimestamp());
 
-        // 如果缓存里没有数据，从存储里读取
-        if (result.isEmpty()) {
-            List<Message> messageList = this.storage.readOrderByTime(domain, contactId, beginningTime, endingTime);
-            result.addAll(messageList);
-        }
+        // 发布给 FROM
+        ModuleEvent event = new ModuleEvent(MessagingService.NAME, MessagingAction.Push.name, fromData);
+        this.contactsAdapter.publish(fromKey, event.toJSON());
 
-        // 按照时间戳升序排序
-        Collections.sort(result);
+        this.messageStateCache.put(fromCopy.getOwner(), fromCopy.getId(), MessageState.Sent);
 
-        return result;
+        // 批量写入存储
+        List<Message> list = new ArrayList<>(copies.size() + 1);
+        list.addAll(copies);
+        list.add(fromCopy);
+        this.storage.write(list, null);
+    }
+
+    /**
+     * 创建按照时间顺序分页拉取消息的游标。
+     * 从游标 (cursorTime, cursorId) 之后开始拉取截止时间之前的消息。
+     *
+     * @param domain
+     * @param contactId
+     * @param cursorTime
+     * @param cursorId
+     * @param endingTime
+     * @return
+     */
+    public MessagePuller pullMessage(String domain, Long contactId, long cursorTime, long cursorId,
+                                     long endingTime) {
+        String key = UniqueKey.make(contactId, domain);
+
+        // 缓存里的时间窗口只查询一次
+        List<SeriesItem> list = this.messageCache.query(key, cursorTime, endingTime);
+        return new MessagePuller(this.storage, this.messageStateCache, domain, contactId,
+                cursorTime, cursorId, endingTime, list);
     }
 
     /**
@@ -472,11 +484,7 @@ public final class MessagingService extends AbstractModule implements CelletAdap
         List<Message> msgList = this.storage.read(domain, messageId);
         for (Message msg : msgList) {
             // 更新内存里的数据
-            MessageKey messageKey = new MessageKey(msg.getOwner(), messageId);
-            MessageStateBundle stateBundle = this.messageStateMap.get(messageKey);
-            if (null != stateBundle) {
-                stateBundle.state = MessageState.Recalled;
-            }
+            this.messageStateCache.put(msg.getOwner(), messageId, MessageState.Recalled);
 
             String copyKey = UniqueKey.make(msg.getOwner(), domain);
             // 发布 Recall 动作
@@ -495,12 +503,7 @@ public final class MessagingService extends AbstractModule implements CelletAdap
      * @param messageId
      */
     public void deleteMessage(String domain, Long contactId, Long messageId) {
-        MessageKey messageKey = new MessageKey(contactId, messageId);
-
-        MessageStateBundle stateBundle = this.messageStateMap.get(messageKey);
-        if (null != stateBundle) {
-            stateBundle.state = MessageState.Deleted;
-        }
+        this.messageStateCache.put(contactId, messageId, MessageState.Deleted);
 
         this.storage.writeMessageState(domain, contactId, messageId, MessageState.Deleted);
     }
@@ -526,11 +529,7 @@ public final class MessagingService extends AbstractModule implements CelletAdap
             return null;
         }
 
-        MessageKey key = new MessageKey(contactId, messageId);
-        MessageStateBundle stateBundle = this.messageStateMap.get(key);
-        if (null != stateBundle) {
-            stateBundle.state = MessageState.Read;
-        }
+        this.messageStateCache.put(contactId, messageId, MessageState.Read);
 
         // 修改状态
         message.setState(MessageState.Read);
@@ -607,7 +606,7 @@ public final class MessagingService extends AbstractModule implements CelletAdap
         String domainName = message.getDomain().getName();
 
         int count = 12;
-        while (!fileStorageService.existsFileData(fileAttachment.getFileCode())) {
+        while (!fileStorageService.existsFileData(domainName, fileAttachment.getFileCode())) {
             try {
                 Thread.sleep(500L);
             } catch (InterruptedException e) {
@@ -710,20 +709,7 @@ public final class MessagingService extends AbstractModule implements CelletAdap
                 // 判断是否是推送给 TO 的消息还是推送给 FROM
                 if (ownerId.longValue() == message.getTo().longValue()) {
                     // 将消息发送给目标设备
-                    Contact contact = ContactManager.getInstance().getOnlineContact(message.getDomain().getName(), message.getTo());
-                    if (null != contact) {
-                        for (Device device : contact.getDeviceList()) {
-                            TalkContext talkContext = device.getTalkContext();
-                            if (notifyMessage(MessagingAction.Notify, talkContext, ownerId, message)) {
-                                Logger.d(this.getClass(), "Notify message: '" + message.getFrom()
-                                        + "' -> '" + message.getTo() + "'");
-                            }
-                            else {
-                                Logger.w(this.getClass(), "Notify message error: '" + message.getFrom()
-                                        + "' -> '" + message.getTo() + "'");
-                            }
-                        }
-                    }
+                    this.notifyMessageToTarget(message);
                 }
                 else if (ownerId.longValue() == message.getFrom().longValue()) {
                     // 将消息发送给源联系人的其他设备
@@ -788,7 +774,49 @@ public final class MessagingService extends AbstractModule implements CelletAdap
 
     @Override
     public void onDelivered(List<String> list, Endpoint endpoint, JSONObject jsonObject) {
-        // Nothing
+        if (MessagingService.NAME.equals(ModuleEvent.extractModuleName(jsonObject))) {
+            ModuleEvent event = new ModuleEvent(jsonObject);
+            if (event.getEventName().equals(MessagingAction.Push.name)) {
+                // 群组消息扇出，按主题还原每个成员的副本
+                Message message = new Message(event.getData());
+                for (String topic : list) {
+                    Object[] key = UniqueKey.extract(topic);
+                    if (null == key) {
+                        continue;
+                    }
+
+                    Long id = (Long) key[0];
+                    Message copy = new Message(message);
+                    copy.setTo(id);
+                    copy.setOwner(id);
+                    this.notifyMessageToTarget(copy);
+                }
+            }
+        }
+    }
+
+    /**
+     * 将消息发送给收件人的在线设备。
+     *
+     * @param message
+     */
+    private void notifyMessageToTarget(Message message) {
+        Contact contact = ContactManager.getInstance().getOnlineContact(message.getDomain().getName(), message.getTo());
+        if (null == contact) {
+            return;
+        }
+
+        for (Device device : contact.getDeviceList()) {
+            TalkContext talkContext = device.getTalkContext();
+            if (notifyMessage(MessagingAction.Notify, talkContext, message.getOwner(), message)) {
+                Logger.d(this.getClass(), "Notify message: '" + message.getFrom()
+                        + "' -> '" + message.getTo() + "'");
+            }
+            else {
+                Logger.w(this.getClass(), "Notify message error: '" + message.getFrom()
+                        + "' -> '" + message.getTo() + "'");
+            }
+        }
     }
 
     @Override
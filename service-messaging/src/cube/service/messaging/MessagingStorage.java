@@ -29,12 +29,16 @@ package cube.service.messaging;
 import cell.core.talk.LiteralBase;
 import cell.util.log.Logger;
 import cube.common.Storagable;
+import cube.common.entity.Device;
+import cube.common.entity.FileAttachment;
 import cube.common.entity.Message;
 import cube.common.entity.MessageState;
 import cube.core.Conditional;
 import cube.core.Constraint;
+import cube.core.QueryHandler;
 import cube.core.Storage;
 import cube.core.StorageField;
+import cube.core.StorageIndex;
 import cube.storage.StorageFactory;
 import cube.storage.StorageFields;
 import cube.storage.StorageType;
@@ -43,17 +47,20 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 消息存储器。
  */
 public class MessagingStorage implements Storagable {
 
-    private final String version = "1.0";
+    private final String version = "1.1";
 
     private final String messageTablePrefix = "message_";
 
@@ -76,6 +83,14 @@ public class MessagingStorage implements Storagable {
             new StorageField("attachment", LiteralBase.STRING)
     };
 
+    /**
+     * 消息表索引描述。
+     */
+    private final StorageIndex[] messageIndexes = new StorageIndex[] {
+            new StorageIndex("id_owner", "id", "owner"),
+            new StorageIndex("owner_rts", "owner", "rts")
+    };
+
     /**
      * 消息状态描述。
      */
@@ -92,12 +107,18 @@ public class MessagingStorage implements Storagable {
 
     private Map<String, String> messageTableNameMap;
 
+    /**
+     * 消息后写队列。
+     */
+    private MessageWriteQueue writeQueue;
+
 //    private Map<String, String> stateTableNameMap;
 
     public MessagingStorage(ExecutorService executor, Storage storage) {
         this.executor = executor;
         this.storage = storage;
         this.messageTableNameMap = new HashMap<>();
+        this.writeQueue = new MessageWriteQueue(this.createWriter());
 //        this.stateTableNameMap = new HashMap<>();
     }
 
@@ -105,19 +126,33 @@ public class MessagingStorage implements Storagable {
         this.executor = executor;
         this.storage = StorageFactory.getInstance().createStorage(type, "MessagingStorage", config);
         this.messageTableNameMap = new HashMap<>();
+        this.writeQueue = new MessageWriteQueue(this.createWriter());
+        this.writeQueue.configure(config);
 //        this.stateTableNameMap = new HashMap<>();
     }
 
     @Override
     public void open() {
         this.storage.open();
+        this.writeQueue.start();
     }
 
     @Override
     public void close() {
+        // 写入队列里的剩余消息
+        this.writeQueue.stop();
         this.storage.close();
     }
 
+    /**
+     * 获取消息写入队列的统计数据。
+     *
+     * @return 返回 JSON 格式的统计数据。
+     */
+    public JSONObject getWriteMetrics() {
+        return this.writeQueue.getMetrics();
+    }
+
     @Override
     public void execSelfChecking(List<String> domainNameList) {
         String table = "cube";
@@ -127,6 +162,8 @@ public class MessagingStorage implements Storagable {
                 new StorageField("desc", LiteralBase.STRING)
         };
 
+        String currentVersion = this.version;
+
         List<StorageField[]> result = this.storage.executeQuery(table, fields);
         if (result.isEmpty()) {
             // 数据库没有找到表，创建新表
@@ -147,7 +184,8 @@ public class MessagingStorage implements Storagable {
             // 校验版本
             for (StorageField[] row : result) {
                 if (row[0].getString().equals("version")) {
-                    Logger.i(this.getClass(), "Message storage version " + row[1].getString());
+                    currentVersion = row[1].getString();
+                    Logger.i(this.getClass(), "Message storage version " + currentVersion);
                 }
             }
         }
@@ -160,6 +198,11 @@ public class MessagingStorage implements Storagable {
             // 检查状态表
 //            this.checkStateTable(domain);
         }
+
+        // 升级已有的表
+        if (!this.version.equals(currentVersion)) {
+            this.migrate(currentVersion, domainNameList);
+        }
     }
 
     /**
@@ -173,43 +216,119 @@ public class MessagingStorage implements Storagable {
 
     /**
      * 写入消息。
+     * 消息进入后写队列，由写线程合并为多行插入。
      *
      * @param message
      * @param completed
      */
     public void write(final Message message, final Runnable completed) {
-        this.executor.execute(new Runnable() {
+        // 取表名
+        String table = this.messageTableNameMap.get(message.getDomain().getName());
+        if (null == table) {
+            return;
+        }
+
+        this.writeQueue.offer(table, new MessageWriteQueue.Entry(message, completed));
+    }
+
+    /**
+     * 批量写入消息。
+     *
+     * @param messages
+     * @param completed 所有消息写入后回调。
+     */
+    public void write(final List<Message> messages, final Runnable completed) {
+        if (messages.isEmpty()) {
+            if (null != completed) {
+                completed.run();
+            }
+            return;
+        }
+
+        final AtomicInteger count = new AtomicInteger(messages.size());
+        Runnable counter = (null == completed) ? null : new Runnable() {
             @Override
             public void run() {
-                String domain = message.getDomain().getName();
-                // 取表名
-                String table = messageTableNameMap.get(domain);
-                if (null == table) {
-                    return;
+                if (count.decrementAndGet() == 0) {
+                    completed.run();
                 }
+            }
+        };
 
-                StorageField[] fields = new StorageField[] {
-                        new StorageField("id", LiteralBase.LONG, message.getId()),
-                        new StorageField("from", LiteralBase.LONG, message.getFrom()),
-                        new StorageField("to", LiteralBase.LONG, message.getTo()),
-                        new StorageField("source", LiteralBase.LONG, message.getSource()),
-                        new StorageField("owner", LiteralBase.LONG, message.getOwner()),
-                        new StorageField("lts", LiteralBase.LONG, message.getLocalTimestamp()),
-                        new StorageField("rts", LiteralBase.LONG, message.getRemoteTimestamp()),
-                        new StorageField("state", LiteralBase.INT, message.getState().getCode()),
-                        new StorageField("device", LiteralBase.STRING, message.getSourceDevice().toJSON().toString()),
-                        new StorageField("payload", LiteralBase.STRING, message.getPayload().toString()),
-                        new StorageField("attachment", LiteralBase.STRING,
-                                (null != message.getAttachment()) ? message.getAttachment().toJSON().toString() : null)
-                };
+        for (Message message : messages) {
+            String table = this.messageTableNameMap.get(message.getDomain().getName());
+            if (null == table) {
+                if (null != counter) {
+                    counter.run();
+                }
+                continue;
+            }
 
-                storage.executeInsert(table, fields);
+            this.writeQueue.offer(table, new MessageWriteQueue.Entry(message, counter));
+        }
+    }
 
-                if (null != completed) {
-                    completed.run();
+    private MessageWriteQueue.Writer createWriter() {
+        return new MessageWriteQueue.Writer() {
+            @Override
+            public void write(String table, List<MessageWriteQueue.Entry> batch) {
+                List<StorageField[]> rows = new ArrayList<>(batch.size());
+
+                // 消息副本之间共享同一对象，仅在对象变化时重新序列化
+                Device device = null;
+                String deviceString = null;
+                JSONObject payload = null;
+                String payloadString = null;
+                FileAttachment attachment = null;
+                String attachmentString = null;
+
+                for (MessageWriteQueue.Entry entry : batch) {
+                    Message message = entry.message;
+                    if (device != message.getSourceDevice()) {
+                        device = message.getSourceDevice();
+                        deviceString = device.toJSON().toString();
+                    }
+                    if (payload != message.getPayload()) {
+                        payload = message.getPayload();
+                        payloadString = payload.toString();
+                    }
+                    if (attachment != message.getAttachment()) {
+                        attachment = message.getAttachment();
+                        attachmentString = (null != attachment) ? attachment.toJSON().toString() : null;
+                    }
+
+                    rows.add(makeFields(message, deviceString, payloadString, attachmentString));
+                }
+
+                List<Integer> failedRows = new ArrayList<>();
+                if (!storage.executeInsert(table, rows, failedRows)) {
+                    Logger.w(MessagingStorage.class, "Write messages failed: " + table + " - " +
+                            failedRows.size() + "/" + rows.size());
+                }
+
+                for (MessageWriteQueue.Entry entry : batch) {
+                    if (null != entry.completed) {
+                        entry.completed.run();
+                    }
                 }
             }
-        });
+        };
+    }
+
+    private StorageField[] makeFields(Message message, String device, String payload, String attachment) {
+        return new StorageField[] {
+                new StorageField("id", LiteralBase.LONG, message.getId()),
+                new StorageField("from", LiteralBase.LONG, message.getFrom()),
+                new StorageField("to", LiteralBase.LONG, message.getTo()),
+                new StorageField("source", LiteralBase.LONG, message.getSource()),
+                new StorageField("owner", LiteralBase.LONG, message.getOwner()),
+                new StorageField("lts", LiteralBase.LONG, message.getLocalTimestamp()),
+                new StorageField("rts", LiteralBase.LONG, message.getRemoteTimestamp()),
+                new StorageField("state", LiteralBase.INT, message.getState().getCode()),
+                new StorageField("device", LiteralBase.STRING, device),
+                new StorageField("payload", LiteralBase.STRING, payload),
+                new StorageField("attachment", LiteralBase.STRING, attachment)
+        };
     }
 
     /**
@@ -226,6 +345,13 @@ public class MessagingStorage implements Storagable {
             return null;
         }
 
+        // 先查找等待写入的消息
+        for (Message message : this.writeQueue.getPending(table, messageId)) {
+            if (message.getOwner().longValue() == contactId.longValue()) {
+                return message;
+            }
+        }
+
         List<StorageField[]> result = this.storage.executeQuery(table, this.messageFields, new Conditional[] {
                 Conditional.createEqualTo("id", LiteralBase.LONG, messageId),
                 Conditional.createAnd(),
@@ -269,6 +395,9 @@ public class MessagingStorage implements Storagable {
         List<Message> result = new ArrayList<>();
 
         String table = this.messageTableNameMap.get(domain);
+        if (null == table) {
+            return result;
+        }
 
         List<StorageField[]> list = this.storage.executeQuery(table, this.messageFields, new Conditional[] {
                 Conditional.createEqualTo(new StorageField("id", LiteralBase.LONG, messageId))
@@ -298,6 +427,9 @@ public class MessagingStorage implements Storagable {
             result.add(message);
         }
 
+        // 合并等待写入的消息
+        this.mergePending(result, this.writeQueue.getPending(table, messageId));
+
         return result;
     }
 
@@ -351,63 +483,154 @@ public class MessagingStorage implements Storagable {
             }
         }
 
+        // 合并等待写入的消息
+        for (Long messageId : messageIdList) {
+            List<Message> pending = new ArrayList<>();
+            for (Message message : this.writeQueue.getPending(table, messageId)) {
+                if (message.getOwner().longValue() == contactId.longValue()) {
+                    pending.add(message);
+                }
+            }
+            this.mergePending(messages, pending);
+        }
+
         return messages;
     }
 
     /**
-     * 按照指定的起止时间顺序读取消息。
+     * 按照时间顺序分页读取消息。
+     * 使用 (rts, id) 作为游标，返回游标之后、截止时间之前的最多 {@code limit} 条消息。
      *
      * @param domain
      * @param contactId
-     * @param beginning
+     * @param cursorTime 游标的时间戳，不包含该时间戳之前的消息。
+     * @param cursorId 游标的消息 ID ，与 {@code cursorTime} 相同时间戳的消息只返回 ID 更大的消息。
      * @param ending
+     * @param limit
      * @return
      */
-    public List<Message> readOrderByTime(String domain, Long contactId, long beginning, long ending) {
+    public List<Message> readOrderByTime(final String domain, Long contactId, long cursorTime, long cursorId,
+                                         long ending, int limit) {
         // 取表名
         String table = this.messageTableNameMap.get(domain);
         if (null == table) {
             return null;
         }
 
-        List<StorageField[]> result = this.storage.executeQuery(table, this.messageFields, new Conditional[] {
+        final List<Message> messages = new ArrayList<>(limit);
+
+        // 逐行处理结果，不在内存里保留整个时间段的行数据
+        this.storage.executeQuery(table, this.messageFields, new Conditional[] {
                 Conditional.createEqualTo(new StorageField("owner", LiteralBase.LONG, contactId)),
                 Conditional.createAnd(),
-                Conditional.createGreaterThan(new StorageField("rts", LiteralBase.LONG, beginning)),
+                Conditional.createLessThanEqual(new StorageField("rts", LiteralBase.LONG, ending)),
                 Conditional.createAnd(),
-                Conditional.createLessThanEqual(new StorageField("rts", LiteralBase.LONG, ending))
+                Conditional.createBracket(new Conditional[] {
+                        Conditional.createGreaterThan(new StorageField("rts", LiteralBase.LONG, cursorTime)),
+                        Conditional.createOr(),
+                        Conditional.createBracket(new Conditional[] {
+                                Conditional.createEqualTo(new StorageField("rts", LiteralBase.LONG, cursorTime)),
+                                Conditional.createAnd(),
+                                Conditional.createGreaterThan(new StorageField("id", LiteralBase.LONG, cursorId))
+                        })
+                }),
+                Conditional.createAnd(),
+                Conditional.createIN(new StorageField("state", LiteralBase.INT), new Object[] {
+                        MessageState.Sent.getCode(), MessageState.Read.getCode()
+                }),
+                Conditional.createOrderBy(new String[] { "rts", "id" }, false),
+                Conditional.createLimit(limit)
+        }, new QueryHandler() {
+            @Override
+            public boolean handle(StorageField[] row) {
+                messages.add(makeMessage(domain, row));
+                return true;
+            }
         });
 
-        List<Message> messages = new ArrayList<>(result.size());
-        for (StorageField[] row : result) {
-            Map<String, StorageField> map = StorageFields.get(row);
+        // 合并游标之后等待写入的消息
+        List<Message> pending = new ArrayList<>();
+        for (Message message : this.writeQueue.getPending(table, contactId, cursorTime, ending)) {
+            if (message.getRemoteTimestamp() == cursorTime && message.getId().longValue() <= cursorId) {
+                continue;
+            }
 
-            JSONObject device = null;
-            JSONObject payload = null;
-            JSONObject attachment = null;
-            try {
-                device = new JSONObject(map.get("device").getString());
-                payload = new JSONObject(map.get("payload").getString());
-                if (!map.get("attachment").isNullValue()) {
-                    attachment = new JSONObject(map.get("attachment").getString());
-                }
-            } catch (JSONException e) {
-                e.printStackTrace();
+            if (message.getState() == MessageState.Sent || message.getState() == MessageState.Read) {
+                pending.add(message);
             }
+        }
 
-            Message message = new Message(domain, map.get("id").getLong(), map.get("from").getLong(),
-                    map.get("to").getLong(), map.get("source").getLong(), map.get("owner").getLong(),
-                    map.get("lts").getLong(), map.get("rts").getLong(), map.get("state").getInt(),
-                    device, payload, attachment);
+        if (!pending.isEmpty()) {
+            this.mergePending(messages, pending);
 
-            if (message.getState() == MessageState.Read || message.getState() == MessageState.Sent) {
-                messages.add(message);
+            Collections.sort(messages, new Comparator<Message>() {
+                @Override
+                public int compare(Message m1, Message m2) {
+                    if (m1.getRemoteTimestamp() != m2.getRemoteTimestamp()) {
+                        return (m1.getRemoteTimestamp() < m2.getRemoteTimestamp()) ? -1 : 1;
+                    }
+                    return m1.getId().compareTo(m2.getId());
+                }
+            });
+
+            while (messages.size() > limit) {
+                messages.remove(messages.size() - 1);
             }
         }
 
         return messages;
     }
 
+    /**
+     * 将等待写入的消息合并到查询结果，已在结果里的消息不重复添加。
+     *
+     * @param result 查询结果。
+     * @param pending 等待写入的消息。
+     */
+    private void mergePending(List<Message> result, List<Message> pending) {
+        for (Message message : pending) {
+            boolean exists = false;
+            for (Message cur : result) {
+                if (cur.getId().longValue() == message.getId().longValue()
+                        && cur.getOwner().longValue() == message.getOwner().longValue()) {
+                    exists = true;
+                    break;
+                }
+            }
+
+            if (!exists) {
+                result.add(message);
+            }
+        }
+    }
+
+    /**
+     * 按照 {@link #messageFields} 的字段顺序从行数据创建消息。
+     *
+     * @param domain
+     * @param row
+     * @return
+     */
+    private Message makeMessage(String domain, StorageField[] row) {
+        JSONObject device = null;
+        JSONObject payload = null;
+        JSONObject attachment = null;
+        try {
+            device = new JSONObject(row[8].getString());
+            payload = new JSONObject(row[9].getString());
+            if (!row[10].isNullValue()) {
+                attachment = new JSONObject(row[10].getString());
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        return new Message(domain, row[0].getLong(), row[1].getLong(),
+                row[2].getLong(), row[3].getLong(), row[4].getLong(),
+                row[5].getLong(), row[6].getLong(), row[7].getInt(),
+                device, payload, attachment);
+    }
+
     /**
      * 写入消息状态。
      *
@@ -421,6 +644,9 @@ public class MessagingStorage implements Storagable {
         this.executor.execute(new Runnable() {
             @Override
             public void run() {
+                // 先写入等待中的消息，否则更新不到尚未插入的行
+                writeQueue.flush(table);
+
                 StorageField[] fields = new StorageField[] {
                         new StorageField("state", LiteralBase.INT, state.getCode())
                 };
@@ -446,6 +672,9 @@ public class MessagingStorage implements Storagable {
         this.executor.execute(new Runnable() {
             @Override
             public void run() {
+                // 先写入等待中的消息，否则更新不到尚未插入的行
+                writeQueue.flush(table);
+
                 StorageField[] fields = new StorageField[] {
                         new StorageField("state", LiteralBase.INT, state.getCode())
                 };
@@ -477,6 +706,13 @@ public class MessagingStorage implements Storagable {
                 new StorageField("state", LiteralBase.INT)
         };
 
+        // 先查找等待写入的消息
+        for (Message message : this.writeQueue.getPending(table, messageId)) {
+            if (message.getOwner().longValue() == contactId.longValue()) {
+                return message.getState();
+            }
+        }
+
         List<StorageField[]> result = this.storage.executeQuery(table, fields, new Conditional[]{
                 Conditional.createEqualTo(new StorageField("id", LiteralBase.LONG, messageId)),
                 Conditional.createAnd(),
@@ -491,6 +727,45 @@ public class MessagingStorage implements Storagable {
         return MessageState.parse(state);
     }
 
+    /**
+     * 将存储从指定版本升级到当前版本。
+     *
+     * @param fromVersion 当前存储的版本。
+     * @param domainNameList 域列表。
+     */
+    private void migrate(String fromVersion, List<String> domainNameList) {
+        boolean success = true;
+
+        if ("1.0".equals(fromVersion)) {
+            // 1.0 -> 1.1 ：为消息表添加索引
+            for (String domain : domainNameList) {
+                String table = this.messageTableNameMap.get(domain);
+                for (StorageIndex index : this.messageIndexes) {
+                    if (this.storage.executeCreateIndex(table, index)) {
+                        Logger.i(this.getClass(), "Created index '" + index.getName(table) + "' successfully");
+                    }
+                    else {
+                        success = false;
+                    }
+                }
+            }
+        }
+
+        if (!success) {
+            Logger.w(this.getClass(), "Migrate message storage from " + fromVersion + " failed");
+            return;
+        }
+
+        // 更新版本
+        this.storage.executeUpdate("cube", new StorageField[] {
+                new StorageField("desc", LiteralBase.STRING, this.version)
+        }, new Conditional[] {
+                Conditional.createEqualTo(new StorageField("item", LiteralBase.STRING, "version"))
+        });
+
+        Logger.i(this.getClass(), "Migrated message storage from " + fromVersion + " to " + this.version);
+    }
+
     private void checkMessageTable(String domain) {
         String table = this.messageTablePrefix + domain;
 
@@ -538,7 +813,7 @@ public class MessagingStorage implements Storagable {
                     })
             };
 
-            if (this.storage.executeCreate(table, fields)) {
+            if (this.storage.executeCreate(table, fields, this.messageIndexes)) {
                 Logger.i(this.getClass(), "Created table '" + table + "' successfully");
             }
         }
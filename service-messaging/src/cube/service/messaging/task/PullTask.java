@@ -38,11 +38,13 @@ import cube.common.entity.Message;
 import cube.common.state.MessagingStateCode;
 import cube.service.ServiceTask;
 import cube.service.contact.ContactManager;
+import cube.service.messaging.MessagePuller;
 import cube.service.messaging.MessagingService;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -50,6 +52,21 @@ import java.util.List;
  */
 public class PullTask extends ServiceTask {
 
+    /**
+     * 使用游标拉取时单次拉取的最大消息数量。
+     */
+    private final static int MAX_LIMIT = 1000;
+
+    /**
+     * 每次从存储读取的消息数量。
+     */
+    private final static int PAGE_SIZE = 50;
+
+    /**
+     * 每次应答包含的消息数量。
+     */
+    private final static int BATCH_SIZE = 10;
+
     public PullTask(Cellet cellet, TalkContext talkContext, Primitive primitive) {
         super(cellet, talkContext, primitive);
     }
@@ -64,12 +81,30 @@ public class PullTask extends ServiceTask {
         Device device = null;
         long beginning = 0;
         long ending = 0;
+        long cursorTime = 0;
+        // 起始时间戳上的消息全部包含在内
+        long cursorId = Long.MIN_VALUE;
+        // 未使用游标的客户端不限制数量
+        int limit = Integer.MAX_VALUE;
         try {
             id = packet.data.getLong("id");
             domainName = packet.data.getString("domain");
             device = new Device(packet.data.getJSONObject("device"));
             beginning = packet.data.getLong("beginning");
             ending = packet.data.getLong("ending");
+
+            cursorTime = beginning;
+            if (packet.data.has("cursor")) {
+                // 从上一次拉取的游标处继续
+                JSONObject cursor = packet.data.getJSONObject("cursor");
+                cursorTime = cursor.getLong("rts");
+                cursorId = cursor.getLong("id");
+
+                limit = MAX_LIMIT;
+                if (packet.data.has("limit")) {
+                    limit = Math.max(1, Math.min(packet.data.getInt("limit"), MAX_LIMIT));
+                }
+            }
         } catch (JSONException e) {
             e.printStackTrace();
             return;
@@ -99,25 +134,47 @@ public class PullTask extends ServiceTask {
         if (beginning < now - ONE_MONTH) {
             beginning = now - ONE_MONTH;
         }
+        if (cursorTime < beginning) {
+            cursorTime = beginning;
+            cursorId = Long.MIN_VALUE;
+        }
         // 修正截止时间
         if (ending == 0 || ending <= beginning) {
             ending = now;
         }
 
-        // 获取指定起始时间的消息列表
+        // 按页读取消息，每个应答都携带总数，因此先读取全部消息再分批次发送
         MessagingService messagingService = (MessagingService) this.kernel.getModule(MessagingService.NAME);
-        List<Message> messageList = messagingService.pullMessage(domainName, id, beginning, ending);
+        List<Message> messageList = new ArrayList<>();
+        boolean hasMore = true;
+
+        MessagePuller puller = messagingService.pullMessage(domainName, id, cursorTime, cursorId, ending);
+        while (messageList.size() < limit) {
+            int size = (int) Math.min(PAGE_SIZE, (long) limit - messageList.size());
+            List<Message> page = puller.next(size);
+            messageList.addAll(page);
+
+            if (page.size() < size) {
+                hasMore = false;
+                break;
+            }
+        }
+
         int total = messageList.size();
         int count = 0;
         JSONArray messageArray = new JSONArray();
 
-        while (!messageList.isEmpty()) {
-            Message message = messageList.remove(0);
+        for (Message message : messageList) {
             messageArray.put(message.toJSON());
 
+            // 更新游标
+            cursorTime = message.getRemoteTimestamp();
+            cursorId = message.getId();
             ++count;
-            if (count >= 10) {
-                JSONObject payload = this.makePayload(total, beginning, ending, messageArray);
+
+            if (messageArray.length() >= BATCH_SIZE && count < total) {
+                JSONObject payload = this.makePayload(total, beginning, ending, cursorTime, cursorId,
+                        true, false, messageArray);
                 this.cellet.speak(this.talkContext,
                         this.makeAsynResponse(packet, id, domainName, device,
                                 MessagingStateCode.Ok.code, payload));
@@ -128,23 +185,31 @@ public class PullTask extends ServiceTask {
                     e.printStackTrace();
                 }
 
-                count = 0;
                 messageArray = new JSONArray();
             }
         }
 
-        JSONObject payload = this.makePayload(total, beginning, ending, messageArray);
+        JSONObject payload = this.makePayload(total, beginning, ending, cursorTime, cursorId,
+                hasMore, true, messageArray);
         this.cellet.speak(this.talkContext,
                 this.makeAsynResponse(packet, id, domainName, device,
                         MessagingStateCode.Ok.code, payload));
     }
 
-    private JSONObject makePayload(int totalNum, long beginning, long ending, JSONArray messages) {
+    private JSONObject makePayload(int total, long beginning, long ending, long cursorTime, long cursorId,
+                                   boolean hasMore, boolean last, JSONArray messages) {
         JSONObject payload = new JSONObject();
         try {
-            payload.put("total", totalNum);
+            JSONObject cursor = new JSONObject();
+            cursor.put("rts", cursorTime);
+            cursor.put("id", cursorId);
+
+            payload.put("total", total);
             payload.put("beginning", beginning);
             payload.put("ending", ending);
+            payload.put("cursor", cursor);
+            payload.put("hasMore", hasMore);
+            payload.put("last", last);
             payload.put("messages", messages);
         } catch (JSONException e) {
             e.printStackTrace();
@@ -29,11 +29,19 @@ package cube.service;
 import cell.api.Nucleus;
 import cell.util.log.LogHandle;
 import cell.util.log.LogLevel;
+import cube.core.AbstractCache;
+import cube.core.AbstractModule;
 import cube.core.Kernel;
+import cube.core.Storage;
 import cube.report.JVMReport;
 import cube.report.LogLine;
 import cube.report.LogReport;
+import cube.report.MetricsReport;
+import cube.report.MetricsSource;
 import cube.report.ReportService;
+import cube.storage.ConnectionPool;
+import cube.storage.MySQLStorage;
+import cube.storage.StorageFactory;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -108,6 +116,8 @@ public class Daemon extends TimerTask implements LogHandle {
 
         if (now - this.lastReportTime > this.reportInterval) {
             this.submitJVMReport();
+            this.submitConnectionPoolReports();
+            this.submitMetricsReports();
             this.lastReportTime = now;
         }
     }
@@ -118,6 +128,36 @@ public class Daemon extends TimerTask implements LogHandle {
         ReportService.getInstance().submitReport(report);
     }
 
+    private void submitConnectionPoolReports() {
+        for (Storage storage : StorageFactory.getInstance().getStorages()) {
+            if (storage instanceof MySQLStorage) {
+                ConnectionPool pool = ((MySQLStorage) storage).getConnectionPool();
+                if (null != pool) {
+                    ReportService.getInstance().submitReport(pool.createReport(this.kernel.getNodeName()));
+                }
+            }
+        }
+    }
+
+    private void submitMetricsReports() {
+        List<MetricsSource> sources = new ArrayList<>();
+        for (AbstractModule module : this.kernel.getModules()) {
+            if (module instanceof MetricsSource) {
+                sources.add((MetricsSource) module);
+            }
+        }
+        for (AbstractCache cache : this.kernel.getCaches()) {
+            if (cache instanceof MetricsSource) {
+                sources.add((MetricsSource) cache);
+            }
+        }
+
+        for (MetricsSource source : sources) {
+            ReportService.getInstance().submitReport(new MetricsReport(this.kernel.getNodeName(),
+                    source.getMetricsName(), source.getMetrics()));
+        }
+    }
+
     @Override
     public String getName() {
         return "Daemon";
@@ -64,7 +64,9 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 
@@ -498,7 +500,80 @@ public class ContactManager extends AbstractModule implements CelletAdapterListe
      * @return
      */
     public List<Contact> getContactList(String domain, List<Long> idList) {
-        List<Contact> result = new ArrayList<>(idList.size());
+        return this.getContactList(domain, idList, null);
+    }
+
+    /**
+     * 获取列表里联系人。
+     * 缓存和数据库里都没有的联系人优先使用备选数据。
+     *
+     * @param domain
+     * @param idList
+     * @param fallbackMap 备选的联系人数据，可以为 {@code null} 。
+     * @return
+     */
+    public List<Contact> getContactList(String domain, List<Long> idList, Map<Long, Contact> fallbackMap) {
+        Contact[] contacts = new Contact[idList.size()];
+
+        // 未命中的联系人 ID 及其在结果里的位置
+        Map<Long, List<Integer>> missing = new HashMap<>();
+
+        ContactTable table = this.onlineTables.get(domain);
+        for (int i = 0; i < contacts.length; ++i) {
+            Long id = idList.get(i);
+
+            Contact contact = (null != table) ? table.get(id) : null;
+            if (null == contact) {
+                JSONObject data = this.contactCache.applyGet(UniqueKey.make(id, domain));
+                if (null != data) {
+                    contact = new Contact(data);
+                }
+            }
+
+            if (null != contact) {
+                contacts[i] = contact;
+            }
+            else {
+                List<Integer> positions = missing.get(id);
+                if (null == positions) {
+                    positions = new ArrayList<>(1);
+                    missing.put(id, positions);
+                }
+                positions.add(i);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            // 缓存里没有数据，从数据库批量读取并回填缓存
+            List<Contact> list = this.storage.readContacts(domain, new ArrayList<>(missing.keySet()));
+            for (Contact contact : list) {
+                List<Integer> positions = missing.remove(contact.getId());
+                if (null == positions) {
+                    continue;
+                }
+
+                for (Integer index : positions) {
+                    contacts[index] = contact;
+                }
+
+                this.contactCache.applyPut(contact.getUniqueKey(), contact.toJSON());
+            }
+
+            // 数据库里也没有的联系人
+            for (Map.Entry<Long, List<Integer>> entry : missing.entrySet()) {
+                Long id = entry.getKey();
+                Contact contact = (null != fallbackMap) ? fallbackMap.get(id) : null;
+                if (null == contact) {
+                    contact = new Contact(id, domain, "Cube-" + id);
+                }
+                for (Integer index : entry.getValue()) {
+                    contacts[index] = contact;
+                }
+            }
+        }
+
+        List<Contact> result = new ArrayList<>(contacts.length);
+        Collections.addAll(result, contacts);
         return result;
     }
 
@@ -690,16 +765,7 @@ public class ContactManager extends AbstractModule implements CelletAdapterListe
      * @return
      */
     public GroupBundle addGroupMembersById(String domain, Long groupId, List<Long> memberIdList, Contact operator) {
-        ArrayList<Contact> memberList = new ArrayList<>(memberIdList.size());
-        for (Long id : memberIdList) {
-            Contact contact = this.getOnlineContact(domain, id);
-            if (null == contact) {
-                contact = this.getContact(domain, id);
-            }
-
-            memberList.add(contact);
-        }
-
+        List<Contact> memberList = this.getContactList(domain, memberIdList);
         return this.addGroupMembers(domain, groupId, memberList, operator);
     }
 
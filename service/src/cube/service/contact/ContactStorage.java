@@ -54,6 +54,11 @@ public class ContactStorage implements Storagable {
 
     private final String version = "1.0";
 
+    /**
+     * 批量查询时每条 IN 语句包含的最大 ID 数量。
+     */
+    private final static int IN_BATCH_SIZE = 500;
+
     private final String contactTablePrefix = "contact_";
 
     private final String groupTablePrefix = "group_";
@@ -251,8 +256,41 @@ public class ContactStorage implements Storagable {
             return null;
         }
 
-        StorageField[] data = result.get(0);
+        return this.makeContact(domain, result.get(0));
+    }
+
+    /**
+     * 批量读取联系人。
+     *
+     * @param domain
+     * @param idList
+     * @return 返回读取到的联系人列表，库里不存在的联系人不在列表里。
+     */
+    public List<Contact> readContacts(String domain, List<Long> idList) {
+        List<Contact> list = new ArrayList<>(idList.size());
+        if (idList.isEmpty()) {
+            return list;
+        }
+
+        String table = this.contactTableNameMap.get(domain);
 
+        for (int i = 0, size = idList.size(); i < size; i += IN_BATCH_SIZE) {
+            Object[] values = idList.subList(i, Math.min(i + IN_BATCH_SIZE, size)).toArray();
+            List<StorageField[]> result = this.storage.executeQuery(table, this.contactFields,
+                    new Conditional[] { Conditional.createIN(new StorageField("id", LiteralBase.LONG), values) });
+
+            for (StorageField[] data : result) {
+                Contact contact = this.makeContact(domain, data);
+                if (null != contact) {
+                    list.add(contact);
+                }
+            }
+        }
+
+        return list;
+    }
+
+    private Contact makeContact(String domain, StorageField[] data) {
         Contact contact = null;
 
         try {
@@ -711,6 +749,9 @@ public class ContactStorage implements Storagable {
 
                 Long time = System.currentTimeMillis();
 
+                // 新成员数据，最后批量插入
+                List<StorageField[]> insertList = new ArrayList<>();
+
                 for (Contact member : memberList) {
                     // 先查询该成员是否之前就在群里
                     List<StorageField[]> queryResult = storage.executeQuery(groupMemberTable, new StorageField[] {
@@ -733,8 +774,7 @@ public class ContactStorage implements Storagable {
                                 new StorageField("adding_operator", LiteralBase.LONG, operatorId)
                         };
 
-                        // 插入数据
-                        storage.executeInsert(groupMemberTable, fields);
+                        insertList.add(fields);
                     }
                     else {
                         // 已经有记录，则更新记录
@@ -754,6 +794,15 @@ public class ContactStorage implements Storagable {
                     }
                 }
 
+                if (!insertList.isEmpty()) {
+                    // 批量插入数据
+                    List<Integer> failedRows = new ArrayList<>();
+                    if (!storage.executeInsert(groupMemberTable, insertList, failedRows)) {
+                        Logger.w(this.getClass(), "Add group members failed rows: " + failedRows.size()
+                                + "/" + insertList.size() + " - group " + group.getId());
+                    }
+                }
+
                 if (null != completed) {
                     completed.run();
                 }
@@ -42,6 +42,11 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * 创建群组。
  */
@@ -83,9 +88,17 @@ public class CreateGroupTask extends ServiceTask {
                 return;
             }
 
+            // 批量解析群成员，未知的联系人使用客户端提交的数据
+            List<Long> memberIdList = new ArrayList<>(members.length());
+            Map<Long, Contact> memberMap = new HashMap<>();
             for (int i = 0, size = members.length(); i < size; ++i) {
                 JSONObject memberJson = members.getJSONObject(i);
                 Contact member = new Contact(memberJson, domain);
+                memberIdList.add(member.getId());
+                memberMap.put(member.getId(), member);
+            }
+
+            for (Contact member : ContactManager.getInstance().getContactList(domain, memberIdList, memberMap)) {
                 group.addMember(member);
             }
 